@@ -0,0 +1,35 @@
+package com.coltla.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ *
+ * @author Anders
+ *
+ * Counts the data moved by a benchmark so JMH reports
+ * it as a rate next to ops/s, "megabytes" being MB/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounters {
+
+	private static final double BYTES_PER_MEGABYTE = 1000000.0;
+
+	public double megabytes;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		megabytes = 0;
+	}
+
+	/**
+	 * @param bytes - the number of bytes moved by an operation
+	 */
+	public void add(long bytes) {
+		megabytes += bytes / BYTES_PER_MEGABYTE;
+	}
+}
@@ -0,0 +1,109 @@
+package com.coltla.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.PacketCodec;
+
+/**
+ *
+ * @author Anders
+ *
+ * Parsing of received packets by opcode, through DataPacket
+ * and through the allocation free PacketCodec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataPacketBenchmark {
+
+	@Param({ "RRQ", "WRQ", "DATA", "ACK", "ERR", "OACK" })
+	public String opCode;
+
+	@Param({ "512" })
+	public int blockSize;
+
+	private byte[] packet;
+	private final PacketCodec codec = new PacketCodec();
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup() {
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put(DataPacket.OPTION_BLKSIZE, "1428");
+		options.put(DataPacket.OPTION_WINDOWSIZE, "16");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		switch (opCode) {
+		case "RRQ":
+		case "WRQ":
+			out.write(0);
+			out.write(opCode.equals("RRQ") ? PacketCodec.OP_RRQ : PacketCodec.OP_WRQ);
+			out.writeBytes("images/firmware.bin".getBytes());
+			out.write(0);
+			out.writeBytes("octet".getBytes());
+			out.write(0);
+			out.writeBytes(DataPacket.encodeOptions(options));
+			packet = out.toByteArray();
+			break;
+		case "DATA":
+			packet = new byte[PacketCodec.HEADER_SIZE + blockSize];
+			PacketCodec.putDataHeader(packet, 4711);
+			break;
+		case "ACK":
+			packet = new byte[PacketCodec.HEADER_SIZE];
+			PacketCodec.putAck(packet, 4711);
+			break;
+		case "ERR":
+			out.write(0);
+			out.write(PacketCodec.OP_ERR);
+			out.write(0);
+			out.write(1);
+			out.writeBytes("File not found".getBytes());
+			out.write(0);
+			packet = out.toByteArray();
+			break;
+		case "OACK":
+			out.write(0);
+			out.write(PacketCodec.OP_OACK);
+			out.writeBytes(DataPacket.encodeOptions(options));
+			packet = out.toByteArray();
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid opCode: " + opCode);
+		}
+
+		buffer = ByteBuffer.wrap(packet);
+	}
+
+	@Benchmark
+	public DataPacket dataPacket() {
+		return new DataPacket(packet, packet.length);
+	}
+
+	@Benchmark
+	public int packetCodec() {
+		codec.wrap(buffer);
+		return codec.getOpCode() + codec.getBlock() + codec.getPayloadLength();
+	}
+}
@@ -0,0 +1,327 @@
+package com.coltla.benchmarks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.coltla.utils.BlockNumbers;
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.PacketCodec;
+
+/**
+ *
+ * @author Anders
+ *
+ * Minimal in-process TFTP server on the loopback interface,
+ * used to measure transfers end to end. Binary transfers only,
+ * with the blksize, windowsize and rollover options, block
+ * numbers roll over after 65535 blocks. Files are served
+ * from a directory by name, ignoring any path the client sends,
+ * and kept in memory after the first read so the server adds
+ * little to the allocations measured. Uploads are counted and
+ * discarded.
+ */
+public class LoopbackServer implements Closeable {
+
+	private static final int TIMEOUT = 1000;
+	private static final int MAX_RETRIES = 5;
+
+	private final File root;
+	private final DatagramSocket socket;
+	private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+	private final Thread listener;
+	private volatile boolean running = true;
+
+	/**
+	 * Starts a server listening on an ephemeral loopback port.
+	 * @param root - the directory files are served from
+	 * @throws IOException
+	 */
+	public LoopbackServer(File root) throws IOException {
+		this.root = root;
+		this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		this.listener = new Thread(this::listen, "loopback-tftp");
+		this.listener.setDaemon(true);
+		this.listener.start();
+	}
+
+	/**
+	 * @return the port requests are received on
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * @return the address requests are received on
+	 */
+	public InetAddress getAddress() {
+		return socket.getLocalAddress();
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		socket.close();
+	}
+
+	private void listen() {
+		byte[] buf = new byte[DataPacket.MAX_BLOCK_SIZE + PacketCodec.HEADER_SIZE];
+
+		while (running) {
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+			try {
+				socket.receive(packet);
+			} catch (IOException ex) {
+				// Closed
+				return;
+			}
+
+			DataPacket request = new DataPacket(packet.getData(), packet.getLength());
+			SocketAddress client = packet.getSocketAddress();
+
+			Thread session = new Thread(() -> serve(request, client), "loopback-tftp-session");
+			session.setDaemon(true);
+			session.start();
+		}
+	}
+
+	/**
+	 * Runs one transfer on its own socket, the server's
+	 * transfer identifier.
+	 */
+	private void serve(DataPacket request, SocketAddress client) {
+		try (DatagramSocket session = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			session.setSoTimeout(TIMEOUT);
+			session.connect(client);
+
+			int blockSize = intOption(request, DataPacket.OPTION_BLKSIZE, DataPacket.MAX_DATA_SIZE);
+			int windowSize = intOption(request, DataPacket.OPTION_WINDOWSIZE, DataPacket.MIN_WINDOW_SIZE);
+			BlockNumbers blocks = BlockNumbers.forRollover(intOption(request, DataPacket.OPTION_ROLLOVER, 0));
+			Map<String, String> options = new LinkedHashMap<>();
+
+			if (request.getOption(DataPacket.OPTION_BLKSIZE) != null) {
+				options.put(DataPacket.OPTION_BLKSIZE, Integer.toString(blockSize));
+			}
+
+			if (request.getOption(DataPacket.OPTION_WINDOWSIZE) != null) {
+				options.put(DataPacket.OPTION_WINDOWSIZE, Integer.toString(windowSize));
+			}
+
+			if (request.getOption(DataPacket.OPTION_ROLLOVER) != null) {
+				options.put(DataPacket.OPTION_ROLLOVER, Integer.toString(blocks.getRollover()));
+			}
+
+			if (request.isRRQ()) {
+				byte[] file = files.computeIfAbsent(new File(request.getFilename()).getName(), this::read);
+
+				if (!options.isEmpty() && !sendOptions(session, options, blockSize)) {
+					return;
+				}
+
+				sendFile(session, file, blockSize, windowSize, blocks);
+			} else if (request.isWRQ()) {
+				if (options.isEmpty()) {
+					send(session, ack(new byte[PacketCodec.HEADER_SIZE], 0));
+				} else {
+					send(session, oack(options));
+				}
+
+				receiveFile(session, blockSize, windowSize, blocks);
+			}
+		} catch (IOException ex) {
+			// The transfer is abandoned, the client reports the failure
+		}
+	}
+
+	private byte[] read(String name) {
+		try {
+			return Files.readAllBytes(new File(root, name).toPath());
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Cannot read " + name, ex);
+		}
+	}
+
+	/**
+	 * Sends an OACK and waits for the ACK of block 0.
+	 */
+	private boolean sendOptions(DatagramSocket session, Map<String, String> options, int blockSize) throws IOException {
+		byte[] oack = oack(options);
+		byte[] buf = new byte[blockSize + PacketCodec.HEADER_SIZE];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+		for (int retry = 0; retry < MAX_RETRIES; retry++) {
+			send(session, oack);
+
+			try {
+				session.receive(packet);
+
+				if (PacketCodec.getOpCode(buf, packet.getLength()) == PacketCodec.OP_ACK
+						&& PacketCodec.getBlock(buf, packet.getLength()) == 0) {
+					return true;
+				}
+			} catch (SocketTimeoutException ex) {
+				// Send the OACK again
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sends the file a window of blocks at a time,
+	 * going back to the first unacknowledged block
+	 * when an ACK is late.
+	 */
+	private void sendFile(DatagramSocket session, byte[] file, int blockSize, int windowSize,
+			BlockNumbers blocks) throws IOException {
+		int lastBlock = file.length / blockSize + 1;
+		int windowStart = 1;
+		int nextBlock = 1;
+		int retry = 0;
+
+		byte[] out = new byte[blockSize + PacketCodec.HEADER_SIZE];
+		byte[] in = new byte[PacketCodec.HEADER_SIZE + DataPacket.MAX_DATA_SIZE];
+		DatagramPacket packetOut = new DatagramPacket(out, out.length);
+		DatagramPacket packetIn = new DatagramPacket(in, in.length);
+
+		while (windowStart <= lastBlock) {
+			while (nextBlock <= lastBlock && nextBlock < windowStart + windowSize) {
+				int offset = (nextBlock - 1) * blockSize;
+				int length = Math.min(blockSize, file.length - offset);
+
+				PacketCodec.putDataHeader(out, blocks.toWire(nextBlock));
+				System.arraycopy(file, offset, out, PacketCodec.HEADER_SIZE, length);
+				packetOut.setData(out, 0, PacketCodec.HEADER_SIZE + length);
+				session.send(packetOut);
+				nextBlock++;
+			}
+
+			try {
+				session.receive(packetIn);
+			} catch (SocketTimeoutException ex) {
+				if (++retry >= MAX_RETRIES) {
+					return;
+				}
+
+				nextBlock = windowStart;
+				continue;
+			}
+
+			if (PacketCodec.getOpCode(in, packetIn.getLength()) != PacketCodec.OP_ACK) {
+				return;
+			}
+
+			int block = blocks.fromWire(PacketCodec.getBlock(in, packetIn.getLength()), windowStart - 1);
+
+			if (block >= windowStart && block < nextBlock) {
+				windowStart = block + 1;
+				retry = 0;
+			} else if (block == windowStart - 1) {
+				nextBlock = windowStart;
+			}
+		}
+	}
+
+	/**
+	 * Receives a file, acknowledging the last block
+	 * of each window, and discards the data.
+	 */
+	private void receiveFile(DatagramSocket session, int blockSize, int windowSize,
+			BlockNumbers blocks) throws IOException {
+		byte[] in = new byte[blockSize + PacketCodec.HEADER_SIZE];
+		byte[] out = new byte[PacketCodec.HEADER_SIZE];
+		DatagramPacket packetIn = new DatagramPacket(in, in.length);
+		int expectedBlock = 1;
+		int windowCount = 0;
+		int retry = 0;
+
+		while (true) {
+			try {
+				session.receive(packetIn);
+			} catch (SocketTimeoutException ex) {
+				if (++retry >= MAX_RETRIES) {
+					return;
+				}
+
+				send(session, ack(out, blocks.toWire(expectedBlock - 1)));
+				continue;
+			}
+
+			int length = packetIn.getLength();
+
+			if (PacketCodec.getOpCode(in, length) != PacketCodec.OP_DATA) {
+				return;
+			}
+
+			if (PacketCodec.getBlock(in, length) != blocks.toWire(expectedBlock)) {
+				windowCount = 0;
+				send(session, ack(out, blocks.toWire(expectedBlock - 1)));
+				continue;
+			}
+
+			boolean last = length - PacketCodec.HEADER_SIZE < blockSize;
+			retry = 0;
+
+			if (last || ++windowCount == windowSize) {
+				windowCount = 0;
+				send(session, ack(out, blocks.toWire(expectedBlock)));
+			}
+
+			if (last) {
+				// Answer a lost final ACK until the client stops sending
+				dally(session, packetIn, out, blocks.toWire(expectedBlock));
+				return;
+			}
+
+			expectedBlock++;
+		}
+	}
+
+	private void dally(DatagramSocket session, DatagramPacket packetIn, byte[] ack, int lastBlock) throws IOException {
+		try {
+			session.setSoTimeout(TIMEOUT / 4);
+
+			while (true) {
+				session.receive(packetIn);
+				send(session, ack(ack, lastBlock));
+			}
+		} catch (SocketTimeoutException | SocketException ex) {
+			// Done
+		}
+	}
+
+	private static byte[] ack(byte[] packet, int block) {
+		PacketCodec.putAck(packet, block);
+		return packet;
+	}
+
+	private static byte[] oack(Map<String, String> options) {
+		byte[] encoded = DataPacket.encodeOptions(options);
+		byte[] packet = new byte[2 + encoded.length];
+
+		packet[1] = (byte) PacketCodec.OP_OACK;
+		System.arraycopy(encoded, 0, packet, 2, encoded.length);
+		return packet;
+	}
+
+	private static void send(DatagramSocket session, byte[] packet) throws IOException {
+		session.send(new DatagramPacket(packet, packet.length));
+	}
+
+	private static int intOption(DataPacket request, String name, int defaultValue) {
+		String value = request.getOption(name);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+}
@@ -0,0 +1,105 @@
+package com.coltla.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coltla.utils.NetasciiInputStream;
+import com.coltla.utils.NetasciiOutputStream;
+
+/**
+ *
+ * @author Anders
+ *
+ * NETASCII conversion of large text in both directions, a
+ * block at a time as Engine does during a transfer. Local
+ * text uses LF line ends, NETASCII text CR LF.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NetasciiBenchmark {
+
+	@Param({ "65536", "1048576", "16777216" })
+	public int textSize;
+
+	@Param({ "512", "8192" })
+	public int blockSize;
+
+	private byte[] localText;
+	private byte[] netasciiText;
+	private byte[] block;
+
+	@Setup
+	public void setup() {
+		localText = text(textSize, "\n");
+		netasciiText = text(textSize, "\r\n");
+		block = new byte[blockSize];
+	}
+
+	/**
+	 * Builds lines of printable characters of varying length,
+	 * like a configuration file.
+	 */
+	private static byte[] text(int size, String eol) {
+		Random random = new Random(42);
+		StringBuilder text = new StringBuilder(size + 100);
+
+		while (text.length() < size) {
+			int length = random.nextInt(80);
+
+			for (int i = 0; i < length; i++) {
+				text.append((char) (' ' + random.nextInt(95)));
+			}
+
+			text.append(eol);
+		}
+
+		text.setLength(size);
+		return text.toString().getBytes();
+	}
+
+	@Benchmark
+	public long toNetascii(ByteCounters counters) throws IOException {
+		long total = 0;
+		int count;
+
+		try (InputStream in = new NetasciiInputStream(new ByteArrayInputStream(localText))) {
+			while ((count = in.read(block, 0, blockSize)) > 0) {
+				total += count;
+			}
+		}
+
+		counters.add(localText.length);
+		return total;
+	}
+
+	@Benchmark
+	public void fromNetascii(ByteCounters counters) throws IOException {
+		try (OutputStream out = new NetasciiOutputStream(OutputStream.nullOutputStream(), "\n")) {
+			for (int offset = 0; offset < netasciiText.length; offset += blockSize) {
+				out.write(netasciiText, offset, Math.min(blockSize, netasciiText.length - offset));
+			}
+		}
+
+		counters.add(netasciiText.length);
+	}
+}
@@ -0,0 +1,121 @@
+package com.coltla.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.PacketCodec;
+
+/**
+ *
+ * @author Anders
+ *
+ * Encoding of outgoing packets the way Engine builds them.
+ * buildAck writes an ACK into a reused array and buildData
+ * writes the DATA header and reads the block from the source
+ * file straight into the packet buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketEncodingBenchmark {
+
+	private static final int FILE_SIZE = 1 << 20;
+
+	@Param({ "512", "1428", "8192" })
+	public int blockSize;
+
+	private final byte[] ack = new byte[PacketCodec.HEADER_SIZE];
+	private final Map<String, String> options = new LinkedHashMap<>();
+	private byte[] payload;
+	private byte[] packet;
+	private ByteBuffer buffer;
+	private File file;
+	private FileChannel source;
+	private long position;
+	private int block;
+
+	@Setup
+	public void setup() throws IOException {
+		options.put(DataPacket.OPTION_BLKSIZE, Integer.toString(blockSize));
+		options.put(DataPacket.OPTION_WINDOWSIZE, "16");
+
+		payload = new byte[blockSize];
+		new Random(42).nextBytes(payload);
+		packet = new byte[PacketCodec.HEADER_SIZE + blockSize];
+		buffer = ByteBuffer.allocate(PacketCodec.HEADER_SIZE + blockSize);
+
+		byte[] data = new byte[FILE_SIZE];
+		new Random(42).nextBytes(data);
+		file = File.createTempFile("encode-", ".bin");
+		Files.write(file.toPath(), data);
+		source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		source.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public byte[] buildAck() {
+		PacketCodec.putAck(ack, ++block);
+		return ack;
+	}
+
+	@Benchmark
+	public byte[] buildDataFromArray() {
+		PacketCodec.putDataHeader(packet, ++block);
+		System.arraycopy(payload, 0, packet, PacketCodec.HEADER_SIZE, blockSize);
+		return packet;
+	}
+
+	@Benchmark
+	public ByteBuffer buildDataFromFile(ByteCounters counters) throws IOException {
+		PacketCodec.putDataHeader(buffer, ++block);
+
+		// Read the next block of the file, starting
+		// over at the end so every block is full
+		if (position + blockSize > FILE_SIZE) {
+			position = 0;
+		}
+
+		while (buffer.hasRemaining()) {
+			position += source.read(buffer, position);
+		}
+
+		buffer.flip();
+		counters.add(blockSize);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] encodeOptions() {
+		return DataPacket.encodeOptions(options);
+	}
+}
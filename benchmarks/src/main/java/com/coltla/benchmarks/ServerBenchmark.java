@@ -0,0 +1,180 @@
+package com.coltla.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coltla.tftp.Engine;
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.TransferResult;
+import com.coltla.tftp.nio.NioEngine;
+import com.coltla.tftp.server.TftpServer;
+import com.coltla.utils.FileCache;
+
+/**
+ *
+ * @author Anders
+ *
+ * Throughput of the embedded TftpServer with many clients at
+ * once, as when a rack of machines boots over the network.
+ * Each operation is a burst of clients fetching the same boot
+ * image, or uploading a file each, through a NioEngine on the
+ * loopback interface. The megabytes counter gives the
+ * throughput in MB/s over all clients. With a file cache
+ * the boot image is sent from memory.
+ *
+ * receiveBatch is the number of datagrams client and server
+ * drain from a channel before handling them, 1 handles each
+ * as it is received. It only matters with a window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ServerBenchmark {
+
+	private static final String IMAGE = "boot.img";
+
+	@Param({ "1", "64", "256" })
+	public int clients;
+
+	@Param({ "65536", "1048576" })
+	public int fileSize;
+
+	@Param({ "1428" })
+	public int blockSize;
+
+	@Param({ "1", "8" })
+	public int windowSize;
+
+	@Param({ "2" })
+	public int serverThreads;
+
+	// Megabytes of files the server keeps in memory, 0 for none
+	@Param({ "0", "64" })
+	public int cacheMegabytes;
+
+	@Param({ "1", "16" })
+	public int receiveBatch;
+
+	private File dir;
+	private File clientDir;
+	private TftpServer server;
+	private NioEngine engine;
+	private File upload;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("tftp-bench-").toFile();
+		File serverDir = new File(dir, "server");
+		clientDir = new File(dir, "client");
+		serverDir.mkdir();
+		clientDir.mkdir();
+
+		byte[] data = new byte[fileSize];
+		new Random(42).nextBytes(data);
+
+		Files.write(new File(serverDir, IMAGE).toPath(), data);
+		upload = new File(clientDir, "upload.bin");
+		Files.write(upload.toPath(), data);
+
+		server = new TftpServer(serverDir);
+		server.setAddress(InetAddress.getLoopbackAddress());
+		server.setPort(0);
+		server.setThreads(serverThreads);
+		server.setOverwrite(true);
+		server.setReceiveBatch(receiveBatch);
+
+		if (cacheMegabytes > 0) {
+			server.setFileCache(new FileCache(cacheMegabytes * 1024L * 1024L));
+		}
+
+		server.start();
+
+		engine = new NioEngine(2);
+		engine.setPort(server.getPort());
+		engine.setBlockSize(blockSize);
+		engine.setWindowSize(windowSize);
+		engine.setTimeout(TftpServer.DEFAULT_TIMEOUT);
+		engine.setReceiveBatch(receiveBatch);
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.close();
+		server.close();
+
+		for (File sub : dir.listFiles()) {
+			for (File file : sub.listFiles()) {
+				file.delete();
+			}
+
+			sub.delete();
+		}
+
+		dir.delete();
+	}
+
+	@Benchmark
+	public long get(ByteCounters counters) {
+		return run(Direction.GET, counters);
+	}
+
+	@Benchmark
+	public long put(ByteCounters counters) {
+		return run(Direction.PUT, counters);
+	}
+
+	/**
+	 * Starts a transfer for every client and
+	 * waits for all of them to finish.
+	 */
+	private long run(Direction direction, ByteCounters counters) {
+		@SuppressWarnings("unchecked")
+		CompletableFuture<TransferResult>[] transfers = new CompletableFuture[clients];
+
+		for (int i = 0; i < clients; i++) {
+			if (direction == Direction.GET) {
+				transfers[i] = engine.submit(server.getAddress(), direction, Engine.Mode.OCTET,
+						IMAGE, new File(clientDir, "client-" + i + ".img").getPath());
+			} else {
+				transfers[i] = engine.submit(server.getAddress(), direction, Engine.Mode.OCTET,
+						"client-" + i + ".bin", upload.getPath());
+			}
+		}
+
+		long bytes = 0;
+
+		for (CompletableFuture<TransferResult> transfer : transfers) {
+			TransferResult result = transfer.join();
+
+			if (!result.isComplete() || result.getBytesTransferred() != fileSize) {
+				throw new IllegalStateException("Transfer failed: " + result);
+			}
+
+			bytes += result.getBytesTransferred();
+		}
+
+		counters.add(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,130 @@
+package com.coltla.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coltla.tftp.Engine;
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.TransferResult;
+
+/**
+ *
+ * @author Anders
+ *
+ * End to end binary transfers through Engine against
+ * the in-process LoopbackServer. The megabytes counter
+ * gives the throughput in MB/s. The largest file takes
+ * more than 65535 blocks of 512 bytes, so its block
+ * numbers roll over, to the number given by rollover.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+	@Param({ "65536", "1048576", "16777216", "41943040" })
+	public int fileSize;
+
+	@Param({ "512", "1428", "8192" })
+	public int blockSize;
+
+	@Param({ "1", "16" })
+	public int windowSize;
+
+	@Param({ "false" })
+	public boolean memoryMapped;
+
+	@Param({ "0" })
+	public int rollover;
+
+	private File dir;
+	private LoopbackServer server;
+	private Engine engine;
+	private String file;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("tftp-bench-").toFile();
+		File serverDir = new File(dir, "server");
+		File clientDir = new File(dir, "client");
+		serverDir.mkdir();
+		clientDir.mkdir();
+
+		byte[] data = new byte[fileSize];
+		new Random(42).nextBytes(data);
+
+		String name = "data-" + fileSize + ".bin";
+		Files.write(new File(serverDir, name).toPath(), data);
+		Files.write(new File(clientDir, name).toPath(), data);
+
+		// The server serves files by name, so the client
+		// can use the full path to its copy of the file.
+		// A GET replaces the copy with the same data.
+		file = new File(clientDir, name).getAbsolutePath();
+
+		server = new LoopbackServer(serverDir);
+
+		engine = new Engine();
+		engine.setPort(server.getPort());
+		engine.setBlockSize(blockSize);
+		engine.setWindowSize(windowSize);
+		engine.setMemoryMapped(memoryMapped);
+		engine.setRollover(rollover);
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.close();
+
+		for (File sub : dir.listFiles()) {
+			for (File file : sub.listFiles()) {
+				file.delete();
+			}
+
+			sub.delete();
+		}
+
+		dir.delete();
+	}
+
+	@Benchmark
+	public TransferResult get(ByteCounters counters) {
+		return transfer(Direction.GET, counters);
+	}
+
+	@Benchmark
+	public TransferResult put(ByteCounters counters) {
+		return transfer(Direction.PUT, counters);
+	}
+
+	private TransferResult transfer(Direction direction, ByteCounters counters) {
+		TransferResult result = engine.transfer(server.getAddress(), direction, Engine.Mode.OCTET, file);
+
+		// A block lost to a rollover mistake shows as a short file
+		if (!result.isComplete() || result.getBytesTransferred() != fileSize) {
+			throw new IllegalStateException("Transfer failed: " + result);
+		}
+
+		counters.add(result.getBytesTransferred());
+		return result;
+	}
+}
@@ -0,0 +1,68 @@
+package com.coltla.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+
+/**
+ *
+ * @author Anders
+ *
+ * The messages of a transfer describe its steps, not its packets,
+ * so none are dropped from the event ring however large the file.
+ */
+class EngineEventsTest {
+
+	private static final int BLOCK_SIZE = 16;
+	private static final int BLOCKS = 5000;
+
+	@RegisterExtension
+	static final LoopbackServer server = new LoopbackServer("events");
+
+	private static List<String> transfer(Direction direction, String name) throws InterruptedException {
+		List<String> messages = new CopyOnWriteArrayList<>();
+		Engine engine = server.newEngine();
+		engine.setBlockSize(BLOCK_SIZE);
+		engine.addMsgListener(msg -> messages.add(msg.getMessage()));
+
+		TransferResult result = engine.transfer(InetAddress.getLoopbackAddress(), direction, Mode.OCTET,
+				server.fileName(name));
+
+		assertTrue(result.isComplete(), String.valueOf(result));
+		assertTrue(engine.getEventDispatcher().awaitIdle(5000));
+		assertEquals(0, engine.getEventDispatcher().getDropped());
+
+		return messages;
+	}
+
+	@Test
+	void putSaysItIsConnectedOnce() throws IOException, InterruptedException {
+		Files.write(server.clientFile("put.bin"), new byte[BLOCKS * BLOCK_SIZE]);
+
+		List<String> messages = transfer(Direction.PUT, "put.bin");
+
+		assertEquals(1, messages.stream().filter(message -> message.contains("Connected")).count(), messages::toString);
+		assertTrue(messages.size() < 50, messages::toString);
+	}
+
+	@Test
+	void getSaysItIsConnectedOnce() throws IOException, InterruptedException {
+		Files.write(server.serverFile("get.bin"), new byte[BLOCKS * BLOCK_SIZE]);
+
+		List<String> messages = transfer(Direction.GET, "get.bin");
+
+		assertEquals(1, messages.stream().filter(message -> message.contains("Connected")).count(), messages::toString);
+		assertTrue(messages.size() < 50, messages::toString);
+	}
+}
@@ -0,0 +1,114 @@
+package com.coltla.tftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+import com.coltla.metrics.MetricsRegistry;
+import com.coltla.tftp.server.TftpServer;
+
+/**
+ *
+ * @author Anders
+ *
+ * The embedded server on the loopback address for the tests of a
+ * class, serving a temp directory it deletes afterwards. Register
+ * it in a static field with @RegisterExtension.
+ *
+ * The client and the server name a file by the same relative path,
+ * a directory of the client's working directory and of the server's
+ * root by the name given, so a test writes the source on one side
+ * and reads the target on the other.
+ */
+class LoopbackServer implements BeforeAllCallback, AfterAllCallback {
+
+	private final String directory;
+
+	private TftpServer server;
+	private Path root;
+
+	/**
+	 * @param name - the directory the files of the tests are in
+	 */
+	LoopbackServer(String name) {
+		this.directory = "target/" + name;
+	}
+
+	@Override
+	public void beforeAll(ExtensionContext context) throws IOException {
+		root = Files.createTempDirectory("tftp-" + Paths.get(directory).getFileName());
+		Files.createDirectories(root.resolve(directory));
+		Files.createDirectories(Paths.get(directory));
+
+		server = new TftpServer(root.toFile());
+		server.setAddress(InetAddress.getLoopbackAddress());
+		server.setPort(0);
+		server.setOverwrite(true);
+		server.start();
+	}
+
+	@Override
+	public void afterAll(ExtensionContext context) throws IOException {
+		server.close();
+
+		try (Stream<Path> files = Files.walk(root)) {
+			files.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	/**
+	 * @return an engine sending its requests to the server
+	 */
+	Engine newEngine() {
+		Engine engine = new Engine();
+		engine.setPort(server.getPort());
+
+		return engine;
+	}
+
+	/**
+	 * @param name
+	 * @return the name a request gives the file
+	 */
+	String fileName(String name) {
+		return directory + "/" + name;
+	}
+
+	/**
+	 * @param name
+	 * @return the file on the client's side
+	 */
+	Path clientFile(String name) {
+		return Paths.get(fileName(name));
+	}
+
+	/**
+	 * @param name
+	 * @return the file on the server's side
+	 */
+	Path serverFile(String name) {
+		return root.resolve(fileName(name));
+	}
+
+	/**
+	 * @return the port the server receives requests on
+	 */
+	int getPort() {
+		return server.getPort();
+	}
+
+	/**
+	 * @return the metrics of the transfers the server ran
+	 */
+	MetricsRegistry getMetricsRegistry() {
+		return server.getMetricsRegistry();
+	}
+}
@@ -0,0 +1,103 @@
+package com.coltla.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import com.coltla.cli.ClientCLI;
+import com.coltla.metrics.MetricsRegistry;
+import com.coltla.metrics.PrometheusExporter;
+import com.coltla.metrics.ServerMetrics;
+import com.coltla.metrics.TransferMetrics;
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+
+/**
+ *
+ * @author Anders
+ *
+ * Metrics served by PrometheusExporter, of the client's transfers
+ * and of the server's.
+ */
+class MetricsExportTest {
+
+	@RegisterExtension
+	static final LoopbackServer server = new LoopbackServer("metrics");
+
+	private static String fetch(PrometheusExporter exporter) throws IOException {
+		URL url = new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + exporter.getPort()
+				+ "/metrics");
+
+		try (InputStream in = url.openStream()) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	void transfersOfTheSameFileAreToldApart() throws IOException {
+		MetricsRegistry registry = new MetricsRegistry();
+		InetAddress serverIP = InetAddress.getLoopbackAddress();
+		TransferMetrics first = registry.startTransfer(serverIP, Direction.GET, "boot.img");
+		TransferMetrics second = registry.startTransfer(serverIP, Direction.GET, "boot.img");
+		first.addBytes(100);
+		second.addBytes(200);
+
+		try (PrometheusExporter exporter = new PrometheusExporter(registry, 0)) {
+			String text = fetch(exporter);
+			String labels = "server=\"" + serverIP.getHostAddress() + "\",transfer=\"";
+
+			assertTrue(text.contains("tftp_transfer_bytes{" + labels + first.getId()
+					+ "\",direction=\"GET\",file=\"boot.img\"} 100\n"), text);
+			assertTrue(text.contains("tftp_transfer_bytes{" + labels + second.getId()
+					+ "\",direction=\"GET\",file=\"boot.img\"} 200\n"), text);
+		}
+	}
+
+	@Test
+	void theServerCountsTransfersByClient() throws IOException, InterruptedException {
+		Files.write(server.serverFile("served.bin"), new byte[3000]);
+
+		// Other tests of the class transfer with the server as well
+		ServerMetrics client = server.getMetricsRegistry().getServer(InetAddress.getLoopbackAddress());
+		long completed = client.getTransfersCompleted();
+		long bytes = client.getBytes();
+
+		TransferResult result = server.newEngine().transfer(InetAddress.getLoopbackAddress(), Direction.GET,
+				Mode.OCTET, server.fileName("served.bin"));
+		assertTrue(result.isComplete(), String.valueOf(result));
+
+		// The session finishes once the client's last ACK arrived
+		for (int i = 0; i < 50 && client.getTransfersCompleted() == completed; i++) {
+			Thread.sleep(100);
+		}
+
+		assertEquals(3000, client.getBytes() - bytes);
+
+		try (PrometheusExporter exporter = new PrometheusExporter(server.getMetricsRegistry(), 0, "client")) {
+			String labels = "client=\"" + InetAddress.getLoopbackAddress().getHostAddress() + "\"";
+			String text = fetch(exporter);
+
+			assertTrue(text.contains("tftp_transfers_total{" + labels + ",outcome=\"complete\"} " + (completed + 1)
+					+ "\n"), text);
+		}
+	}
+
+	@Test
+	void theClientServesMetricsWhileTheJobsRun() throws IOException {
+		Files.write(server.serverFile("cli.bin"), new byte[1000]);
+
+		int exit = new ClientCLI().run(new String[] { "--port", String.valueOf(server.getPort()), "--metrics-port", "0",
+				"get", InetAddress.getLoopbackAddress().getHostAddress(), server.fileName("cli.bin") });
+
+		assertEquals(0, exit);
+	}
+}
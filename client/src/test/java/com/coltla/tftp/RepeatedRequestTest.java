@@ -0,0 +1,116 @@
+package com.coltla.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import com.coltla.utils.PacketCodec;
+
+/**
+ *
+ * @author Anders
+ *
+ * A client sharing its socket sends the same request from the same
+ * port for each transfer of a file. Sent again before it was answered
+ * it is served once, sent once the server's reply was answered it is
+ * served by a new session.
+ */
+class RepeatedRequestTest {
+
+	@RegisterExtension
+	static final LoopbackServer server = new LoopbackServer("requests");
+
+	private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+	@BeforeAll
+	static void createFile() throws IOException {
+		// Two blocks, the transfer is not over once the first is acknowledged
+		Files.write(server.serverFile("file.bin"), new byte[1000]);
+	}
+
+	private static void sendRequest(DatagramSocket socket) throws IOException {
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		request.write(0);
+		request.write(PacketCodec.OP_RRQ);
+		request.writeBytes(server.fileName("file.bin").getBytes(StandardCharsets.US_ASCII));
+		request.write(0);
+		request.writeBytes("octet".getBytes(StandardCharsets.US_ASCII));
+		request.write(0);
+
+		socket.send(new DatagramPacket(request.toByteArray(), request.size(), LOOPBACK, server.getPort()));
+	}
+
+	private static DatagramPacket receive(DatagramSocket socket) throws IOException {
+		byte[] buf = new byte[1024];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		socket.receive(packet);
+
+		return packet;
+	}
+
+	private static int getBlock(DatagramPacket packet) {
+		assertEquals(PacketCodec.OP_DATA, PacketCodec.getOpCode(packet.getData(), packet.getLength()));
+
+		return (packet.getData()[2] & 0xff) << 8 | packet.getData()[3] & 0xff;
+	}
+
+	@Test
+	void aRequestSentAgainBeforeItsReplyIsServedOnce() throws IOException {
+		try (DatagramSocket socket = new DatagramSocket(0, LOOPBACK)) {
+			socket.setSoTimeout(5000);
+			sendRequest(socket);
+			sendRequest(socket);
+
+			DatagramPacket first = receive(socket);
+			assertEquals(1, getBlock(first));
+
+			// Blocks sent again by the session come from its port
+			socket.setSoTimeout(1000);
+
+			try {
+				while (true) {
+					assertEquals(first.getPort(), receive(socket).getPort());
+				}
+			} catch (SocketTimeoutException ex) {
+				// Nothing else was sent
+			}
+		}
+	}
+
+	@Test
+	void aRequestSentAgainAfterItsReplyIsANewTransfer() throws IOException {
+		try (DatagramSocket socket = new DatagramSocket(0, LOOPBACK)) {
+			socket.setSoTimeout(5000);
+			sendRequest(socket);
+
+			DatagramPacket first = receive(socket);
+			assertEquals(1, getBlock(first));
+
+			byte[] ack = { 0, PacketCodec.OP_ACK, 0, 1 };
+			socket.send(new DatagramPacket(ack, ack.length, first.getSocketAddress()));
+
+			// The second block is sent once the ACK was handled. The
+			// first session waits for the ACK of it meanwhile.
+			assertEquals(2, getBlock(receive(socket)));
+			sendRequest(socket);
+			DatagramPacket packet;
+
+			do {
+				packet = receive(socket);
+			} while (packet.getPort() == first.getPort());
+
+			assertEquals(1, getBlock(packet));
+		}
+	}
+}
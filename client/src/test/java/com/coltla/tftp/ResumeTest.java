@@ -0,0 +1,126 @@
+package com.coltla.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+
+/**
+ *
+ * @author Anders
+ *
+ * Resumed transfers only keep data that is part of the file
+ * transferred now: a GET checks the file on the server has not
+ * changed, a PUT that the server kept part of the same file.
+ */
+class ResumeTest {
+
+	private static final int SIZE = 1_000_000;
+	private static final int KEPT = 400_000;
+
+	@RegisterExtension
+	static final LoopbackServer server = new LoopbackServer("resume");
+
+	private static byte[] data;
+
+	@BeforeAll
+	static void createData() {
+		data = new byte[SIZE];
+		new Random(21).nextBytes(data);
+	}
+
+	private static Engine newEngine() {
+		Engine engine = server.newEngine();
+		engine.setBlockSize(1428);
+		engine.setWindowSize(16);
+		engine.setResumable(true);
+
+		return engine;
+	}
+
+	/**
+	 * Leaves the partial file and checkpoint of a GET that
+	 * received the first KEPT bytes of the data.
+	 */
+	private static void keepPartialGet(String name) throws IOException {
+		Checkpoint checkpoint = new Checkpoint(server.clientFile(name).toFile());
+		Files.write(checkpoint.getPartialFile().toPath(), Arrays.copyOf(data, KEPT));
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, KEPT);
+		checkpoint.save(server.fileName(name), KEPT, crc.getValue(), SIZE);
+	}
+
+	@Test
+	void getResumesAnUnchangedFile() throws IOException {
+		String name = "same.bin";
+		Files.write(server.serverFile(name), data);
+		keepPartialGet(name);
+
+		Engine engine = newEngine();
+		TransferResult result = engine.transfer(InetAddress.getLoopbackAddress(), Direction.GET, Mode.OCTET,
+				server.fileName(name));
+
+		assertTrue(result.isComplete(), String.valueOf(result));
+		assertEquals(KEPT, engine.getResumeOffset());
+		assertEquals(SIZE - KEPT, result.getBytesTransferred());
+		assertArrayEquals(data, Files.readAllBytes(server.clientFile(name)));
+	}
+
+	@Test
+	void getFailsWhenTheFileChangedWithItsSize() throws IOException {
+		String name = "changed.bin";
+		byte[] changed = data.clone();
+		changed[KEPT - 1] ^= 1;
+		Files.write(server.serverFile(name), changed);
+		keepPartialGet(name);
+
+		TransferResult result = newEngine().transfer(InetAddress.getLoopbackAddress(), Direction.GET, Mode.OCTET,
+				server.fileName(name));
+
+		assertFalse(result.isComplete());
+		assertFalse(Files.exists(server.clientFile(name + ".part")));
+		assertFalse(Files.exists(server.clientFile(name + ".checkpoint")));
+
+		// The next attempt starts over
+		Engine engine = newEngine();
+		result = engine.transfer(InetAddress.getLoopbackAddress(), Direction.GET, Mode.OCTET, server.fileName(name));
+
+		assertTrue(result.isComplete(), String.valueOf(result));
+		assertEquals(0, engine.getResumeOffset());
+		assertArrayEquals(changed, Files.readAllBytes(server.clientFile(name)));
+	}
+
+	@Test
+	void putStartsOverFromAPartialFileOfAnotherSource() throws IOException {
+		String name = "stale.bin";
+		Files.write(server.clientFile(name), data);
+
+		// Same name and size, left by another client
+		byte[] stale = new byte[KEPT];
+		new Random(22).nextBytes(stale);
+		Files.write(server.serverFile(name + "." + SIZE + ".part"), stale);
+
+		Engine engine = newEngine();
+		TransferResult result = engine.transfer(InetAddress.getLoopbackAddress(), Direction.PUT, Mode.OCTET,
+				server.fileName(name));
+
+		assertTrue(result.isComplete(), String.valueOf(result));
+		assertEquals(0, engine.getResumeOffset());
+		assertArrayEquals(data, Files.readAllBytes(server.serverFile(name)));
+	}
+}
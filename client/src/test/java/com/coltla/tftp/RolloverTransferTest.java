@@ -0,0 +1,82 @@
+package com.coltla.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+
+/**
+ *
+ * @author Anders
+ *
+ * GETs and PUTs of more than 65536 blocks against a server on the
+ * loopback address, rolling over to 0 and to 1. Small blocks keep
+ * the files small while the block numbers wrap.
+ */
+class RolloverTransferTest {
+
+	private static final int BLOCK_SIZE = 16;
+	private static final int BLOCKS = 70000;
+
+	@RegisterExtension
+	static final LoopbackServer server = new LoopbackServer("rollover");
+
+	private static byte[] data;
+
+	@BeforeAll
+	static void createData() {
+		data = new byte[BLOCKS * BLOCK_SIZE + BLOCK_SIZE / 2];
+		new Random(65536).nextBytes(data);
+	}
+
+	private static Engine newEngine(int rollover) {
+		Engine engine = server.newEngine();
+		engine.setBlockSize(BLOCK_SIZE);
+		engine.setWindowSize(16);
+		engine.setRollover(rollover);
+
+		return engine;
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void getRollsOver(int rollover) throws IOException {
+		String name = "get" + rollover + ".bin";
+		Files.write(server.serverFile(name), data);
+		Files.deleteIfExists(server.clientFile(name));
+
+		TransferResult result = newEngine(rollover).transfer(InetAddress.getLoopbackAddress(), Direction.GET,
+				Mode.OCTET, server.fileName(name));
+
+		assertTrue(result.isComplete(), String.valueOf(result));
+		assertEquals(data.length, result.getBytesTransferred());
+		assertArrayEquals(data, Files.readAllBytes(server.clientFile(name)));
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void putRollsOver(int rollover) throws IOException {
+		String name = "put" + rollover + ".bin";
+		Files.write(server.clientFile(name), data);
+		Files.deleteIfExists(server.serverFile(name));
+
+		TransferResult result = newEngine(rollover).transfer(InetAddress.getLoopbackAddress(), Direction.PUT,
+				Mode.OCTET, server.fileName(name));
+
+		assertTrue(result.isComplete(), String.valueOf(result));
+		assertEquals(data.length, result.getBytesTransferred());
+		assertArrayEquals(data, Files.readAllBytes(server.serverFile(name)));
+	}
+}
@@ -0,0 +1,154 @@
+package com.coltla.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.utils.PacketCodec;
+
+/**
+ *
+ * @author Anders
+ *
+ * Transfers started at once from a single shared socket to the same
+ * server, whose first replies only differ by the request they answer,
+ * and one after the other with a server using its port again.
+ */
+class SocketPoolTest {
+
+	private static final int FILES = 6;
+	private static final int SIZE = 200_000;
+
+	@RegisterExtension
+	static final LoopbackServer server = new LoopbackServer("pool");
+
+	private static byte[] data;
+
+	@BeforeAll
+	static void createFiles() throws IOException {
+		data = new byte[SIZE];
+		new Random(23).nextBytes(data);
+
+		// Files of different content and the same options,
+		// a transfer given another's reply gets the wrong file
+		for (int i = 0; i < FILES; i++) {
+			Files.write(server.serverFile("get" + i + ".bin"), content(i));
+			Files.write(server.clientFile("put" + i + ".bin"), content(FILES + i));
+		}
+	}
+
+	private static byte[] content(int file) {
+		byte[] content = Arrays.copyOf(data, SIZE);
+		content[0] = (byte) file;
+
+		return content;
+	}
+
+	@Test
+	void transfersSharingASocketGetTheirOwnFiles() throws Exception {
+		SocketPool pool = new SocketPool(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2 * FILES);
+		List<Future<TransferResult>> results = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < 2 * FILES; i++) {
+				Direction direction = i % 2 == 0 ? Direction.GET : Direction.PUT;
+				String fileName = server.fileName((direction == Direction.GET ? "get" : "put") + i / 2 + ".bin");
+
+				results.add(executor.submit(() -> {
+					Engine engine = server.newEngine();
+					engine.setBlockSize(1428);
+					engine.setWindowSize(8);
+					engine.setSocketPool(pool);
+
+					return engine.transfer(InetAddress.getLoopbackAddress(), direction, Mode.OCTET, fileName);
+				}));
+			}
+
+			for (Future<TransferResult> result : results) {
+				TransferResult transferResult = result.get(30, TimeUnit.SECONDS);
+				assertTrue(transferResult.isComplete(), String.valueOf(transferResult));
+			}
+		} finally {
+			executor.shutdownNow();
+			pool.close();
+		}
+
+		for (int i = 0; i < FILES; i++) {
+			assertArrayEquals(content(i), Files.readAllBytes(server.clientFile("get" + i + ".bin")), "get" + i);
+			assertArrayEquals(content(FILES + i), Files.readAllBytes(server.serverFile("put" + i + ".bin")), "put" + i);
+		}
+	}
+
+	@Test
+	void aServerPortUsedAgainAnswersTheNextTransfer() throws Exception {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		byte[] block = { 0, PacketCodec.OP_DATA, 0, 1, 'a', 'b', 'c' };
+		SocketPool pool = new SocketPool(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		// A server sending every file from the same port, the
+		// first reply of a GET is the file in a single block
+		try (DatagramSocket requests = new DatagramSocket(0, loopback);
+				DatagramSocket transfers = new DatagramSocket(0, loopback)) {
+			requests.setSoTimeout(10_000);
+			transfers.setSoTimeout(10_000);
+
+			Future<?> served = executor.submit(() -> {
+				byte[] buf = new byte[1024];
+
+				for (int i = 0; i < 2; i++) {
+					DatagramPacket packet = new DatagramPacket(buf, buf.length);
+					requests.receive(packet);
+					transfers.send(new DatagramPacket(block, block.length, packet.getSocketAddress()));
+
+					do {
+						packet.setLength(buf.length);
+						transfers.receive(packet);
+					} while (PacketCodec.getOpCode(buf, packet.getLength()) != PacketCodec.OP_ACK);
+				}
+
+				return null;
+			});
+
+			for (int i = 0; i < 2; i++) {
+				Engine engine = new Engine();
+				engine.setPort(requests.getLocalPort());
+				engine.setSocketPool(pool);
+
+				String name = "reused" + i + ".bin";
+				TransferResult result = engine.transfer(loopback, Direction.GET, Mode.OCTET, server.fileName(name));
+
+				assertTrue(result.isComplete(), String.valueOf(result));
+				assertArrayEquals(Arrays.copyOfRange(block, PacketCodec.HEADER_SIZE, block.length),
+						Files.readAllBytes(server.clientFile(name)));
+			}
+
+			served.get(10, TimeUnit.SECONDS);
+			assertEquals(0, pool.getDropped());
+		} finally {
+			executor.shutdownNow();
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.coltla.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+
+/**
+ *
+ * @author Anders
+ *
+ * Transfers the server refuses free their socket, or leave the
+ * shared one, as transfers that complete do. A transfer cancelled
+ * before it started does not run.
+ */
+class TransferErrorTest {
+
+	@RegisterExtension
+	static final LoopbackServer server = new LoopbackServer("errors");
+
+	@Test
+	void getOfAMissingFileFreesItsSocket() throws IOException {
+		Engine engine = server.newEngine();
+		TransferResult result = engine.transfer(InetAddress.getLoopbackAddress(), Direction.GET, Mode.OCTET,
+				server.fileName("missing.bin"));
+
+		assertFalse(result.isComplete());
+		assertTrue(result.getError() != null && !result.getError().isEmpty(), String.valueOf(result));
+		assertFalse(Files.exists(server.clientFile("missing.bin")));
+
+		// The port can only be bound again once it is closed
+		new DatagramSocket(engine.getClientPort()).close();
+	}
+
+	@Test
+	void getOfAMissingFileLeavesTheSharedSocket() throws IOException {
+		SocketPool pool = new SocketPool(1);
+
+		try {
+			Engine engine = server.newEngine();
+			engine.setSocketPool(pool);
+			TransferResult result = engine.transfer(InetAddress.getLoopbackAddress(), Direction.GET, Mode.OCTET,
+					server.fileName("missing.bin"));
+
+			assertFalse(result.isComplete());
+			assertEquals(0, pool.getSessionCount());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	void cancelBeforeTheTransferStartsStopsIt() throws IOException {
+		Files.write(server.serverFile("cancelled.bin"), new byte[100_000]);
+		Files.deleteIfExists(server.clientFile("cancelled.bin"));
+
+		Engine engine = server.newEngine();
+		engine.cancel();
+		TransferResult result = engine.transfer(InetAddress.getLoopbackAddress(), Direction.GET, Mode.OCTET,
+				server.fileName("cancelled.bin"));
+
+		assertFalse(result.isComplete());
+		assertEquals(0, result.getBytesTransferred());
+		assertTrue(engine.isCancelled());
+		assertFalse(Files.exists(server.clientFile("cancelled.bin")));
+
+		// The cancel was for that transfer only
+		result = engine.transfer(InetAddress.getLoopbackAddress(), Direction.GET, Mode.OCTET,
+				server.fileName("cancelled.bin"));
+
+		assertTrue(result.isComplete(), String.valueOf(result));
+		assertFalse(engine.isCancelled());
+	}
+}
@@ -0,0 +1,57 @@
+package com.coltla.tftp;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+
+/**
+ *
+ * @author Anders
+ *
+ * Transfers run with the settings the scheduler had when they were
+ * submitted, however long they wait in the queue.
+ */
+class TransferSchedulerTest {
+
+	@RegisterExtension
+	static final LoopbackServer server = new LoopbackServer("scheduler");
+
+	@Test
+	void settingsChangedAfterSubmitLeaveQueuedTransfers() throws Exception {
+		Files.write(server.serverFile("first.bin"), new byte[2_000_000]);
+		Files.write(server.serverFile("second.bin"), new byte[1000]);
+
+		TransferScheduler scheduler = new TransferScheduler(1, 1);
+		scheduler.setPort(server.getPort());
+		scheduler.setMaxRetries(2);
+
+		// A port nothing answers on
+		try (DatagramSocket silent = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			CompletableFuture<TransferResult> first = scheduler.submit(InetAddress.getLoopbackAddress(),
+					Direction.GET, Mode.OCTET, server.fileName("first.bin"));
+			CompletableFuture<TransferResult> second = scheduler.submit(InetAddress.getLoopbackAddress(),
+					Direction.GET, Mode.OCTET, server.fileName("second.bin"));
+
+			// The second transfer waits for the first meanwhile
+			scheduler.setPort(silent.getLocalPort());
+
+			TransferResult result = first.get(30, TimeUnit.SECONDS);
+			assertTrue(result.isComplete(), String.valueOf(result));
+
+			result = second.get(30, TimeUnit.SECONDS);
+			assertTrue(result.isComplete(), String.valueOf(result));
+		} finally {
+			scheduler.shutdown(5, TimeUnit.SECONDS);
+		}
+	}
+}
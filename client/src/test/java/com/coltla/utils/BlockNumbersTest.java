@@ -0,0 +1,114 @@
+package com.coltla.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders
+ *
+ * Block numbers across the wrap after block 65535, for both
+ * rollovers, including duplicates of blocks already acknowledged
+ * and wire numbers outside the window.
+ */
+class BlockNumbersTest {
+
+	private static final int WINDOW = 64;
+
+	@Test
+	void forRolloverReturnsSharedInstances() {
+		assertSame(BlockNumbers.ROLLOVER_TO_ZERO, BlockNumbers.forRollover(0));
+		assertSame(BlockNumbers.ROLLOVER_TO_ONE, BlockNumbers.forRollover(1));
+		assertThrows(IllegalArgumentException.class, () -> BlockNumbers.forRollover(2));
+	}
+
+	@Test
+	void toWireRollsOverToZero() {
+		BlockNumbers numbers = BlockNumbers.ROLLOVER_TO_ZERO;
+
+		assertEquals(0, numbers.toWire(0));
+		assertEquals(1, numbers.toWire(1));
+		assertEquals(65535, numbers.toWire(65535));
+		assertEquals(0, numbers.toWire(65536));
+		assertEquals(1, numbers.toWire(65537));
+		assertEquals(65535, numbers.toWire(131071));
+		assertEquals(0, numbers.toWire(131072));
+	}
+
+	@Test
+	void toWireRollsOverToOne() {
+		BlockNumbers numbers = BlockNumbers.ROLLOVER_TO_ONE;
+
+		assertEquals(0, numbers.toWire(0));
+		assertEquals(1, numbers.toWire(1));
+		assertEquals(65535, numbers.toWire(65535));
+		assertEquals(1, numbers.toWire(65536));
+		assertEquals(2, numbers.toWire(65537));
+		assertEquals(65535, numbers.toWire(131070));
+		assertEquals(1, numbers.toWire(131071));
+	}
+
+	@Test
+	void fromWireInvertsToWireAcrossTheWrap() {
+		for (BlockNumbers numbers : new BlockNumbers[] { BlockNumbers.ROLLOVER_TO_ZERO, BlockNumbers.ROLLOVER_TO_ONE }) {
+			for (int wrap : new int[] { 65536, 131071, 196606 }) {
+				for (int block = wrap - 2 * WINDOW; block < wrap + 2 * WINDOW; block++) {
+					// Any base within a window below the block finds it
+					for (int base = block - WINDOW + 1; base <= block; base++) {
+						assertEquals(block, numbers.fromWire(numbers.toWire(block), base),
+								"rollover " + numbers.getRollover() + " block " + block + " base " + base);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void fromWireFindsTheFirstBlockAfterTheWrap() {
+		assertEquals(65536, BlockNumbers.ROLLOVER_TO_ZERO.fromWire(0, 65535));
+		assertEquals(65537, BlockNumbers.ROLLOVER_TO_ZERO.fromWire(1, 65530));
+		assertEquals(65536, BlockNumbers.ROLLOVER_TO_ONE.fromWire(1, 65535));
+		assertEquals(65537, BlockNumbers.ROLLOVER_TO_ONE.fromWire(2, 65530));
+	}
+
+	@Test
+	void duplicatesMapBeyondTheWindow() {
+		for (BlockNumbers numbers : new BlockNumbers[] { BlockNumbers.ROLLOVER_TO_ZERO, BlockNumbers.ROLLOVER_TO_ONE }) {
+			for (int base : new int[] { 65530, 65535, 65536, 65537, 131071, 131072 }) {
+				// Blocks before base were acknowledged already
+				for (int old = base - WINDOW; old < base; old++) {
+					int block = numbers.fromWire(numbers.toWire(old), base);
+
+					assertTrue(block >= base + WINDOW,
+							"rollover " + numbers.getRollover() + " duplicate " + old + " base " + base + " -> " + block);
+				}
+			}
+		}
+	}
+
+	@Test
+	void outOfWindowNumbersMapBeyondTheWindow() {
+		for (BlockNumbers numbers : new BlockNumbers[] { BlockNumbers.ROLLOVER_TO_ZERO, BlockNumbers.ROLLOVER_TO_ONE }) {
+			int base = 65530;
+			int wire = numbers.toWire(base + 1000);
+
+			assertEquals(base + 1000, numbers.fromWire(wire, base));
+			assertTrue(numbers.fromWire(wire, base) >= base + WINDOW);
+		}
+	}
+
+	@Test
+	void blockZeroAfterTheRequestIsNoBlockWhenRollingOverToOne() {
+		BlockNumbers numbers = BlockNumbers.ROLLOVER_TO_ONE;
+
+		assertEquals(0, numbers.fromWire(0, 0));
+		assertEquals(BlockNumbers.NO_BLOCK, numbers.fromWire(0, 1));
+		assertEquals(BlockNumbers.NO_BLOCK, numbers.fromWire(0, 65535));
+		assertEquals(BlockNumbers.NO_BLOCK, numbers.fromWire(0, 65536));
+		assertEquals(65536, BlockNumbers.ROLLOVER_TO_ZERO.fromWire(0, 65536));
+	}
+}
@@ -0,0 +1,113 @@
+package com.coltla.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders
+ *
+ * The window through slow start, congestion avoidance, loss,
+ * timeouts and a round trip time growing with a queue.
+ */
+class CongestionControlTest {
+
+	private static final long RTT = 10_000_000L;
+
+	@Test
+	void slowStartOpensTheWindowByABlockPerBlock() {
+		CongestionControl congestion = new CongestionControl(64);
+		assertEquals(2, congestion.getWindow());
+
+		congestion.acknowledged(2, RTT);
+		assertEquals(4, congestion.getWindow());
+
+		congestion.acknowledged(4, RTT);
+		assertEquals(8, congestion.getWindow());
+	}
+
+	@Test
+	void theWindowNeverOpensBeyondItsMaximum() {
+		CongestionControl congestion = new CongestionControl(16);
+
+		for (int i = 0; i < 100; i++) {
+			congestion.acknowledged(16, RTT);
+		}
+
+		assertEquals(16, congestion.getWindow());
+	}
+
+	@Test
+	void lossHalvesTheWindowThenItOpensABlockPerWindow() {
+		CongestionControl congestion = new CongestionControl(64);
+		congestion.acknowledged(30, RTT);
+		assertEquals(32, congestion.getWindow());
+
+		congestion.lost();
+		assertEquals(16, congestion.getWindow());
+
+		// Past the threshold a whole window of ACKs adds one block
+		congestion.acknowledged(8, RTT);
+		assertEquals(16, congestion.getWindow());
+		congestion.acknowledged(8, RTT);
+		congestion.acknowledged(1, RTT);
+		assertEquals(17, congestion.getWindow());
+	}
+
+	@Test
+	void aTimeoutClosesTheWindowToABlock() {
+		CongestionControl congestion = new CongestionControl(64);
+		congestion.acknowledged(30, RTT);
+
+		congestion.timedOut();
+		assertEquals(1, congestion.getWindow());
+
+		// Slow start again, up to half the window lost
+		congestion.acknowledged(1, RTT);
+		congestion.acknowledged(2, RTT);
+		congestion.acknowledged(4, RTT);
+		assertEquals(8, congestion.getWindow());
+		congestion.acknowledged(8, RTT);
+		assertEquals(16, congestion.getWindow());
+		congestion.acknowledged(16, RTT);
+		assertEquals(17, congestion.getWindow());
+	}
+
+	@Test
+	void theWindowStopsOpeningWhileAQueueBuildsUp() {
+		CongestionControl congestion = new CongestionControl(64);
+		congestion.acknowledged(2, RTT);
+		assertEquals(4, congestion.getWindow());
+
+		congestion.acknowledged(4, 3 * RTT);
+		assertEquals(4, congestion.getWindow());
+
+		congestion.acknowledged(4, RTT);
+		assertEquals(8, congestion.getWindow());
+	}
+
+	@Test
+	void jitterOnAFastLinkIsNotTakenForAQueue() {
+		CongestionControl congestion = new CongestionControl(64);
+		congestion.acknowledged(2, 100_000L);
+		congestion.acknowledged(4, 500_000L);
+
+		assertEquals(8, congestion.getWindow());
+	}
+
+	@Test
+	void blocksAreSpreadOverTheRoundTripTime() {
+		CongestionControl congestion = new CongestionControl(64);
+		congestion.acknowledged(2, RTT);
+
+		assertEquals(RTT / 4, congestion.getPacingInterval(RTT));
+		assertEquals(0, new CongestionControl(64).getPacingInterval(0));
+	}
+
+	@Test
+	void anEmptyWindowIsRefused() {
+		assertThrows(IllegalArgumentException.class, () -> new CongestionControl(0));
+	}
+}
@@ -0,0 +1,57 @@
+package com.coltla.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders
+ *
+ * Joined CRCs against the CRC of the whole data.
+ */
+class Crc32cTest {
+
+	private static long crc(byte[] data, int offset, int length) {
+		CRC32C crc = new CRC32C();
+		crc.update(data, offset, length);
+
+		return crc.getValue();
+	}
+
+	@Test
+	void combineEqualsTheCrcOfTheWhole() {
+		byte[] data = new byte[200_000];
+		new Random(32).nextBytes(data);
+
+		for (int split : new int[] { 0, 1, 7, 512, 65536, 199_999, 200_000 }) {
+			long joined = Crc32c.combine(crc(data, 0, split), crc(data, split, data.length - split),
+					data.length - split);
+
+			assertEquals(crc(data, 0, data.length), joined, "split at " + split);
+		}
+	}
+
+	@Test
+	void combineJoinsManyPieces() {
+		byte[] data = new byte[100_000];
+		new Random(33).nextBytes(data);
+		long joined = crc(data, 0, 0);
+
+		for (int offset = 0; offset < data.length; offset += 1428) {
+			int length = Math.min(1428, data.length - offset);
+			joined = Crc32c.combine(joined, crc(data, offset, length), length);
+		}
+
+		assertEquals(crc(data, 0, data.length), joined);
+	}
+
+	@Test
+	void toHexPadsToEightDigits() {
+		assertEquals("0000abcd", Crc32c.toHex(0xabcd));
+		assertEquals("e3069283", Crc32c.toHex(0xe3069283L));
+	}
+}
@@ -0,0 +1,80 @@
+package com.coltla.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Anders
+ *
+ * Lookups that never wait for a file to be read.
+ */
+class FileCacheTest {
+
+	@TempDir
+	Path directory;
+
+	private static ByteBuffer await(FileCache cache, Path path) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + 5_000_000_000L;
+		ByteBuffer data;
+
+		while ((data = cache.getNow(path)) == null && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		return data;
+	}
+
+	@Test
+	void getNowReadsMissingFilesInTheBackground() throws Exception {
+		byte[] content = new byte[100_000];
+		new Random(17).nextBytes(content);
+		Path path = Files.write(directory.resolve("boot.img"), content);
+		FileCache cache = new FileCache(1_000_000);
+
+		assertNull(cache.getNow(path));
+
+		ByteBuffer data = await(cache, path);
+		assertNotNull(data);
+
+		byte[] cached = new byte[data.remaining()];
+		data.get(cached);
+		assertEquals(ByteBuffer.wrap(content), ByteBuffer.wrap(cached));
+		assertEquals(1, cache.getFileCount());
+	}
+
+	@Test
+	void getNowNeverCachesFilesBeyondTheBudget() throws Exception {
+		Path path = Files.write(directory.resolve("large.img"), new byte[2000]);
+		FileCache cache = new FileCache(1000);
+
+		assertNull(cache.getNow(path));
+		Thread.sleep(50);
+		assertNull(cache.getNow(path));
+		assertEquals(0, cache.getFileCount());
+	}
+
+	@Test
+	void getNowReadsChangedFilesAgain() throws Exception {
+		Path path = Files.write(directory.resolve("config"), new byte[] { 1, 2, 3 });
+		FileCache cache = new FileCache(1000);
+
+		cache.getNow(path);
+		assertEquals(3, await(cache, path).remaining());
+
+		Files.write(path, new byte[] { 1, 2, 3, 4 });
+
+		assertEquals(4, await(cache, path).remaining());
+		assertEquals(1, cache.getInvalidations());
+	}
+}
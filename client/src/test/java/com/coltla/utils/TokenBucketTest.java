@@ -0,0 +1,95 @@
+package com.coltla.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders
+ *
+ * Waits handed out by buckets, with bounds loose enough for a
+ * loaded machine but tight enough to tell a lost refill.
+ */
+class TokenBucketTest {
+
+	private static final long MILLIS = 1_000_000L;
+	private static final long SECONDS = 1000 * MILLIS;
+
+	@Test
+	void aFullBucketSendsABurstAtOnce() {
+		TokenBucket bucket = new TokenBucket(1000, 100);
+
+		assertEquals(0, bucket.reserve(60));
+		assertEquals(0, bucket.reserve(40));
+	}
+
+	@Test
+	void beyondTheBurstTheWaitIsTheTimeToEarnTheTokens() {
+		TokenBucket bucket = new TokenBucket(1000, 100);
+		bucket.reserve(100);
+
+		// 500 bytes at 1000 bytes per second, less what accumulated meanwhile
+		long wait = bucket.reserve(500);
+
+		assertTrue(wait > 400 * MILLIS && wait <= 500 * MILLIS, "wait " + wait);
+	}
+
+	@Test
+	void sendersSharingABucketWaitInTurn() {
+		TokenBucket bucket = new TokenBucket(1000, 100);
+		bucket.reserve(100);
+
+		long first = bucket.reserve(200);
+		long second = bucket.reserve(200);
+
+		assertTrue(second - first > 150 * MILLIS, first + " then " + second);
+	}
+
+	@Test
+	void aBucketInDebtKeepsAllTheTimeElapsed() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(1000, 100);
+
+		// Many senders reserving at once leave the bucket owing 9.9 s
+		for (int i = 0; i < 100; i++) {
+			bucket.reserve(100);
+		}
+
+		Thread.sleep(1200);
+
+		// 1.2 s of the debt is paid off, not just a burst
+		long wait = bucket.reserve(0);
+
+		assertTrue(wait > 0 && wait <= 9000 * MILLIS, "wait " + wait);
+	}
+
+	@Test
+	void anIdleBucketFillsToTheBurstOnly() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(10_000, 100);
+
+		Thread.sleep(50);
+
+		assertEquals(0, bucket.reserve(100));
+		assertTrue(bucket.reserve(100) > 0);
+	}
+
+	@Test
+	void aHighRateDoesNotOverflowTheRefill() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(Long.MAX_VALUE / SECONDS * 100, 1000);
+		bucket.reserve(1000);
+
+		// Each wait is long enough for elapsed time times rate to overflow
+		for (int i = 0; i < 10; i++) {
+			Thread.sleep(50);
+			assertEquals(0, bucket.reserve(1000));
+		}
+	}
+
+	@Test
+	void invalidRatesAreRefused() {
+		assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0));
+		assertThrows(IllegalArgumentException.class, () -> new TokenBucket(1000, 0));
+	}
+}
@@ -0,0 +1,483 @@
+package com.coltla.cli;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.coltla.metrics.PrometheusExporter;
+import com.coltla.tftp.Engine;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.tftp.SocketPool;
+import com.coltla.tftp.TransferResult;
+import com.coltla.tftp.TransferScheduler;
+import com.coltla.utils.Digest;
+import com.coltla.utils.FileCache;
+
+/**
+ *
+ * @author Anders
+ *
+ * Headless entry point for scripts and provisioning pipelines. Runs
+ * a single GET or PUT, or every job of a manifest (see ManifestReader)
+ * with bounded parallelism, and prints one result per job on stdout
+ * as JSON lines or CSV. Nothing of JavaFX is loaded.
+ *
+ * Exits with 0 when every job completed, 1 when any job failed and
+ * 2 when the arguments or the manifest are invalid.
+ */
+public class ClientCLI {
+
+	private static final int EXIT_COMPLETE = 0;
+	private static final int EXIT_FAILED = 1;
+	private static final int EXIT_USAGE = 2;
+
+	private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+	private static final long BYTES_PER_KILOBYTE = 1024;
+
+	private static final String USAGE =
+			"Usage: ClientCLI [options] get|put <server> <file>\n"
+			+ "       ClientCLI [options] --manifest <file.csv|file.json>\n"
+			+ "Options:\n"
+			+ "  --mode octet|netascii   mode of jobs that do not name one (octet)\n"
+			+ "  --port <n>              server port (69)\n"
+			+ "  --blksize <n>           block size to request (512)\n"
+			+ "  --windowsize <n>        window size to request (1)\n"
+			+ "  --retries <n>           attempts before a job gives up (" + Engine.DEFAULT_MAX_RETRIES + ")\n"
+			+ "  --mmap                  send binary files from a memory mapping\n"
+			+ "  --cache <MB>            keep binary files sent in memory, up to MB in all\n"
+			+ "  --resume                go on from where a failed binary transfer stopped.\n"
+			+ "                          A GET only checks the block before where it resumes\n"
+			+ "                          against the file on the server, use --expect to\n"
+			+ "                          verify the whole file\n"
+			+ "  --shared-sockets <n>    send transfers from n shared sockets, not one each\n"
+			+ "  --rate <KB/s>           limit each job to KB/s\n"
+			+ "  --server-rate <KB/s>    limit the jobs to one server to KB/s together\n"
+			+ "  --total-rate <KB/s>     limit all jobs to KB/s together\n"
+			+ "  --congestion-control    start puts slowly, adapt their pace to loss\n"
+			+ "  --digest crc32c|sha256  digest binary files as they are transferred\n"
+			+ "  --expect <alg:hex>      fail a single job unless its data matches the digest\n"
+			+ "  --parallel <n>          jobs running at once (8)\n"
+			+ "  --per-server <n>        jobs running at once to one server (4)\n"
+			+ "  --format json|csv       result format (json)\n"
+			+ "  --verbose               print engine messages on stderr\n"
+			+ "  --metrics-port <n>      serve Prometheus metrics on localhost:n/metrics\n"
+			+ "                          while the jobs run\n";
+
+	private enum Format {
+		JSON, CSV;
+	}
+
+	private final PrintWriter out = new PrintWriter(new BufferedWriter(
+			new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+
+	private Mode mode = Mode.OCTET;
+	private Format format = Format.JSON;
+	private int parallel = 8;
+	private int perServer = 4;
+	private boolean verbose;
+	private String manifest;
+	private String expectedDigest;
+	private Integer metricsPort;
+	private SocketPool socketPool;
+	private final TransferSettings settings = new TransferSettings();
+
+	/**
+	 * Engine settings collected from the options, applied
+	 * to the scheduler once all options are read.
+	 */
+	private static class TransferSettings {
+		Integer port;
+		Integer blockSize;
+		Integer windowSize;
+		Integer retries;
+		boolean memoryMapped;
+		boolean resumable;
+		Integer cacheMegabytes;
+		Integer sharedSockets;
+		Integer rateKilobytes;
+		Integer serverRateKilobytes;
+		Integer totalRateKilobytes;
+		boolean congestionControl;
+		Digest.Algorithm digestAlgorithm;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		System.exit(new ClientCLI().run(args));
+	}
+
+	/**
+	 * Runs the jobs given by the arguments.
+	 * @param args
+	 * @return the exit code
+	 */
+	public int run(String[] args) {
+		List<TransferJob> jobs;
+
+		try {
+			jobs = parse(args);
+		} catch (IllegalArgumentException | IOException ex) {
+			System.err.println(ex.getMessage());
+			System.err.print(USAGE);
+			return EXIT_USAGE;
+		}
+
+		try {
+			return runJobs(jobs);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return EXIT_FAILED;
+		} finally {
+			out.flush();
+		}
+	}
+
+	private List<TransferJob> parse(String[] args) throws IOException {
+		List<String> operands = new ArrayList<>();
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			switch (arg) {
+			case "--mode":
+				mode = ManifestReader.parseMode(value(args, ++i, arg));
+				break;
+			case "--port":
+				settings.port = number(args, ++i, arg);
+				break;
+			case "--blksize":
+				settings.blockSize = number(args, ++i, arg);
+				break;
+			case "--windowsize":
+				settings.windowSize = number(args, ++i, arg);
+				break;
+			case "--retries":
+				settings.retries = number(args, ++i, arg);
+				break;
+			case "--mmap":
+				settings.memoryMapped = true;
+				break;
+			case "--shared-sockets":
+				settings.sharedSockets = number(args, ++i, arg);
+				break;
+			case "--resume":
+				settings.resumable = true;
+				break;
+			case "--rate":
+				settings.rateKilobytes = number(args, ++i, arg);
+				break;
+			case "--server-rate":
+				settings.serverRateKilobytes = number(args, ++i, arg);
+				break;
+			case "--total-rate":
+				settings.totalRateKilobytes = number(args, ++i, arg);
+				break;
+			case "--congestion-control":
+				settings.congestionControl = true;
+				break;
+			case "--digest":
+				settings.digestAlgorithm = Digest.Algorithm.forName(value(args, ++i, arg));
+				break;
+			case "--expect":
+				expectedDigest = value(args, ++i, arg);
+				Digest.algorithmOf(expectedDigest);
+				break;
+			case "--cache":
+				settings.cacheMegabytes = number(args, ++i, arg);
+				break;
+			case "--parallel":
+				parallel = number(args, ++i, arg);
+				break;
+			case "--per-server":
+				perServer = number(args, ++i, arg);
+				break;
+			case "--format":
+				format = parseFormat(value(args, ++i, arg));
+				break;
+			case "--verbose":
+				verbose = true;
+				break;
+			case "--manifest":
+				manifest = value(args, ++i, arg);
+				break;
+			case "--metrics-port":
+				metricsPort = number(args, ++i, arg);
+				break;
+			default:
+				if (arg.startsWith("--")) {
+					throw new IllegalArgumentException("Invalid option: " + arg);
+				}
+
+				operands.add(arg);
+				break;
+			}
+		}
+
+		if (manifest != null) {
+			if (!operands.isEmpty()) {
+				throw new IllegalArgumentException("Invalid arguments: a manifest and a single job given");
+			}
+
+			if (expectedDigest != null) {
+				throw new IllegalArgumentException("Invalid arguments: --expect with a manifest, give the digests in it");
+			}
+
+			return new ManifestReader(mode).read(Paths.get(manifest));
+		}
+
+		if (operands.size() != 3) {
+			throw new IllegalArgumentException("Invalid arguments: " + String.join(" ", operands));
+		}
+
+		return Collections.singletonList(new TransferJob(1, ManifestReader.parseDirection(operands.get(0)),
+				operands.get(1), operands.get(2), mode, expectedDigest));
+	}
+
+	private static Format parseFormat(String format) {
+		switch (format.toLowerCase(Locale.ROOT)) {
+		case "json":
+			return Format.JSON;
+		case "csv":
+			return Format.CSV;
+		default:
+			throw new IllegalArgumentException("Invalid format: " + format);
+		}
+	}
+
+	private static String value(String[] args, int i, String option) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException("Missing value for " + option);
+		}
+
+		return args[i];
+	}
+
+	private static int number(String[] args, int i, String option) {
+		try {
+			return Integer.parseInt(value(args, i, option));
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid value for " + option + ": " + args[i]);
+		}
+	}
+
+	private TransferScheduler createScheduler() throws IOException {
+		TransferScheduler scheduler = new TransferScheduler(parallel, perServer);
+
+		if (settings.port != null) {
+			scheduler.setPort(settings.port);
+		}
+		if (settings.blockSize != null) {
+			scheduler.setBlockSize(settings.blockSize);
+		}
+		if (settings.windowSize != null) {
+			scheduler.setWindowSize(settings.windowSize);
+		}
+		if (settings.retries != null) {
+			scheduler.setMaxRetries(settings.retries);
+		}
+
+		scheduler.setMemoryMapped(settings.memoryMapped);
+		scheduler.setResumable(settings.resumable);
+		scheduler.setCongestionControl(settings.congestionControl);
+		scheduler.setDigestAlgorithm(settings.digestAlgorithm);
+
+		if (settings.rateKilobytes != null) {
+			scheduler.setRateLimit(settings.rateKilobytes * BYTES_PER_KILOBYTE);
+		}
+		if (settings.serverRateKilobytes != null) {
+			scheduler.setServerRateLimit(settings.serverRateKilobytes * BYTES_PER_KILOBYTE);
+		}
+		if (settings.totalRateKilobytes != null) {
+			scheduler.setTotalRateLimit(settings.totalRateKilobytes * BYTES_PER_KILOBYTE);
+		}
+
+		if (settings.cacheMegabytes != null) {
+			scheduler.setFileCache(new FileCache(settings.cacheMegabytes * BYTES_PER_MEGABYTE));
+		}
+
+		if (settings.sharedSockets != null) {
+			socketPool = new SocketPool(settings.sharedSockets);
+			scheduler.setSocketPool(socketPool);
+		}
+
+		if (verbose) {
+			scheduler.addMsgListener(msg -> System.err.println(msg.getMessage()));
+		}
+
+		return scheduler;
+	}
+
+	private int runJobs(List<TransferJob> jobs) throws InterruptedException {
+		TransferScheduler scheduler;
+
+		try {
+			scheduler = createScheduler();
+		} catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			return EXIT_USAGE;
+		} catch (IOException ex) {
+			System.err.println("Unable to open the shared sockets: " + ex.getMessage());
+			return EXIT_FAILED;
+		}
+
+		PrometheusExporter exporter = null;
+
+		if (metricsPort != null) {
+			try {
+				exporter = new PrometheusExporter(scheduler.getMetricsRegistry(), metricsPort);
+			} catch (IOException ex) {
+				System.err.println("Unable to serve metrics: " + ex.getMessage());
+				scheduler.shutdown(1, TimeUnit.SECONDS);
+
+				if (socketPool != null) {
+					socketPool.close();
+				}
+
+				return EXIT_FAILED;
+			}
+
+			System.err.println("Serving metrics on port " + exporter.getPort());
+		}
+
+		Map<String, InetAddress> addresses = new HashMap<>();
+		List<CompletableFuture<Boolean>> outcomes = new ArrayList<>(jobs.size());
+		long start = System.nanoTime();
+
+		if (format == Format.CSV) {
+			out.println("job,direction,server,file,mode,complete,bytes,duration_ms,retransmits,timeouts,bytes_per_second,digest,error");
+		}
+
+		for (TransferJob job : jobs) {
+			InetAddress serverIP;
+
+			try {
+				serverIP = resolve(addresses, job.getServer());
+			} catch (UnknownHostException ex) {
+				report(job, null, "Unknown host: " + job.getServer());
+				outcomes.add(CompletableFuture.completedFuture(false));
+				continue;
+			}
+
+			// Results are printed as the jobs finish,
+			// not in manifest order
+			outcomes.add(scheduler.submit(serverIP, job.getDirection(), job.getMode(), job.getFileName(),
+					job.getExpectedDigest())
+					.handle((result, ex) -> {
+						report(job, result, ex == null ? null : String.valueOf(ex.getMessage()));
+						return result != null && result.isComplete();
+					}));
+		}
+
+		int failed = 0;
+
+		for (CompletableFuture<Boolean> outcome : outcomes) {
+			if (!outcome.join()) {
+				failed++;
+			}
+		}
+
+		scheduler.shutdown(1, TimeUnit.SECONDS);
+
+		if (socketPool != null) {
+			socketPool.close();
+		}
+
+		if (exporter != null) {
+			exporter.close();
+		}
+
+		System.err.println(String.format(Locale.ROOT, "%d jobs, %d complete, %d failed in %.3f s",
+				jobs.size(), jobs.size() - failed, failed, (System.nanoTime() - start) / 1e9));
+
+		return failed == 0 ? EXIT_COMPLETE : EXIT_FAILED;
+	}
+
+	private static InetAddress resolve(Map<String, InetAddress> addresses, String server) throws UnknownHostException {
+		InetAddress address = addresses.get(server);
+
+		if (address == null) {
+			address = InetAddress.getByName(server);
+			addresses.put(server, address);
+		}
+
+		return address;
+	}
+
+	/**
+	 * Prints the result of a job.
+	 * @param job
+	 * @param result - null if the job did not run
+	 * @param error - why the job did not run, or null to
+	 * print why the transfer failed, if it did
+	 */
+	private synchronized void report(TransferJob job, TransferResult result, String error) {
+		boolean complete = result != null && result.isComplete();
+		long bytes = result == null ? 0 : result.getBytesTransferred();
+		double millis = result == null ? 0 : result.getElapsedNanos() / 1e6;
+		int retransmits = result == null ? 0 : result.getRetransmits();
+		int timeouts = result == null ? 0 : result.getTimeouts();
+		double rate = result == null ? 0 : result.getBytesPerSecond();
+		String digest = result == null ? null : result.getDigest();
+
+		if (error == null && result != null && !complete) {
+			error = result.getError();
+		}
+
+		if (format == Format.CSV) {
+			out.println(String.format(Locale.ROOT, "%d,%s,%s,%s,%s,%b,%d,%.3f,%d,%d,%.0f,%s,%s",
+					job.getNumber(), job.getDirection(), csv(job.getServer()), csv(job.getFileName()),
+					job.getMode(), complete, bytes, millis, retransmits, timeouts, rate,
+					digest == null ? "" : digest, error == null ? "" : csv(error)));
+		} else {
+			out.println(String.format(Locale.ROOT, "{\"job\":%d,\"direction\":\"%s\",\"server\":%s,\"file\":%s,"
+					+ "\"mode\":\"%s\",\"complete\":%b,\"bytes\":%d,\"duration_ms\":%.3f,\"retransmits\":%d,"
+					+ "\"timeouts\":%d,\"bytes_per_second\":%.0f,\"digest\":%s,\"error\":%s}",
+					job.getNumber(), job.getDirection(), json(job.getServer()), json(job.getFileName()),
+					job.getMode(), complete, bytes, millis, retransmits, timeouts, rate,
+					digest == null ? "null" : json(digest), error == null ? "null" : json(error)));
+		}
+
+		out.flush();
+	}
+
+	private static String csv(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String json(String value) {
+		StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,362 @@
+package com.coltla.cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.utils.Digest;
+
+/**
+ *
+ * @author Anders
+ *
+ * Reads the jobs of a batch manifest. A manifest is either CSV,
+ * one job per line:
+ *
+ *   direction,server,file[,mode[,digest]]
+ *   get,10.0.0.5,firmware.bin
+ *   put,10.0.0.5,"config, v2.txt",netascii
+ *   get,10.0.0.5,image.bin,,sha256:9f86d081884c7d65...
+ *
+ * or JSON, an array of objects or one object per line:
+ *
+ *   [{"direction": "get", "server": "10.0.0.5", "file": "firmware.bin"}]
+ *
+ * Blank lines, lines starting with # and a CSV header line are
+ * skipped. Jobs without a mode use the default mode given. A job
+ * with a digest, as algorithm:hex, fails unless its data matches.
+ */
+public class ManifestReader {
+
+	private final Mode defaultMode;
+
+	public ManifestReader(Mode defaultMode) {
+		this.defaultMode = defaultMode;
+	}
+
+	/**
+	 * Reads a manifest, JSON if its first character is [ or {.
+	 * @param manifest
+	 * @return the jobs in manifest order
+	 * @throws IOException
+	 */
+	public List<TransferJob> read(Path manifest) throws IOException {
+		String text = new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8);
+		String start = text.trim();
+
+		if (start.startsWith("[") || start.startsWith("{")) {
+			return readJson(text);
+		}
+
+		return readCsv(text);
+	}
+
+	/**
+	 * @param text
+	 * @return the jobs of a CSV manifest
+	 * @throws IOException
+	 */
+	public List<TransferJob> readCsv(String text) throws IOException {
+		List<TransferJob> jobs = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		String line;
+		int lineNumber = 0;
+
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+
+			List<String> fields = splitCsv(line, lineNumber);
+
+			if (fields.get(0).equalsIgnoreCase("direction")) {
+				continue;
+			}
+
+			if (fields.size() < 3 || fields.size() > 5) {
+				throw new IllegalArgumentException("Invalid manifest line " + lineNumber + ": " + line);
+			}
+
+			jobs.add(job(jobs.size() + 1, fields.get(0), fields.get(1), fields.get(2),
+					fields.size() >= 4 ? fields.get(3) : null, fields.size() == 5 ? fields.get(4) : null,
+					lineNumber));
+		}
+
+		return jobs;
+	}
+
+	/**
+	 * Splits a CSV line, fields may be quoted with
+	 * double quotes doubled inside them.
+	 */
+	private static List<String> splitCsv(String line, int lineNumber) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+
+		if (quoted) {
+			throw new IllegalArgumentException("Invalid manifest line " + lineNumber + ": unterminated quote");
+		}
+
+		fields.add(field.toString().trim());
+		return fields;
+	}
+
+	/**
+	 * @param text
+	 * @return the jobs of a JSON manifest
+	 */
+	public List<TransferJob> readJson(String text) {
+		List<TransferJob> jobs = new ArrayList<>();
+		JsonParser parser = new JsonParser(text);
+
+		parser.skipWhitespace();
+		boolean array = parser.consume('[');
+
+		while (true) {
+			parser.skipWhitespace();
+
+			if (parser.atEnd() || (array && parser.consume(']'))) {
+				break;
+			}
+
+			if (!jobs.isEmpty() && array) {
+				parser.expect(',');
+				parser.skipWhitespace();
+			}
+
+			int line = parser.line();
+			Map<String, String> object = parser.readObject();
+
+			jobs.add(job(jobs.size() + 1, object.get("direction"), object.get("server"),
+					object.get("file"), object.get("mode"), object.get("digest"), line));
+		}
+
+		return jobs;
+	}
+
+	private TransferJob job(int number, String direction, String server, String file, String mode, String digest,
+			int line) {
+		if (direction == null || server == null || server.isEmpty() || file == null || file.isEmpty()) {
+			throw new IllegalArgumentException("Invalid manifest line " + line + ": direction, server and file are required");
+		}
+
+		if (digest != null && !digest.isEmpty()) {
+			try {
+				Digest.algorithmOf(digest);
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException("Invalid manifest line " + line + ": " + ex.getMessage());
+			}
+		}
+
+		return new TransferJob(number, parseDirection(direction), server, file,
+				mode == null || mode.isEmpty() ? defaultMode : parseMode(mode),
+				digest == null || digest.isEmpty() ? null : digest);
+	}
+
+	/**
+	 * @param direction - get or put, in any case
+	 * @return the direction
+	 */
+	public static Direction parseDirection(String direction) {
+		switch (direction.toLowerCase(Locale.ROOT)) {
+		case "get":
+			return Direction.GET;
+		case "put":
+			return Direction.PUT;
+		default:
+			throw new IllegalArgumentException("Invalid direction: " + direction);
+		}
+	}
+
+	/**
+	 * @param mode - octet or binary, netascii or ascii, in any case
+	 * @return the mode
+	 */
+	public static Mode parseMode(String mode) {
+		switch (mode.toLowerCase(Locale.ROOT)) {
+		case "octet":
+		case "binary":
+			return Mode.OCTET;
+		case "netascii":
+		case "ascii":
+			return Mode.NETASCII;
+		default:
+			throw new IllegalArgumentException("Invalid mode: " + mode);
+		}
+	}
+
+	/**
+	 * Just enough JSON for a manifest: objects whose values
+	 * are strings, numbers, booleans or null.
+	 */
+	private static class JsonParser {
+		private final String text;
+		private int pos;
+		private int line = 1;	// Newlines only occur between tokens
+
+		JsonParser(String text) {
+			this.text = text;
+		}
+
+		boolean atEnd() {
+			return pos >= text.length();
+		}
+
+		int line() {
+			return line;
+		}
+
+		void skipWhitespace() {
+			while (!atEnd() && Character.isWhitespace(text.charAt(pos))) {
+				if (text.charAt(pos++) == '\n') {
+					line++;
+				}
+			}
+		}
+
+		boolean consume(char c) {
+			if (!atEnd() && text.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+
+			return false;
+		}
+
+		void expect(char c) {
+			if (!consume(c)) {
+				throw new IllegalArgumentException("Invalid manifest line " + line() + ": expected " + c);
+			}
+		}
+
+		Map<String, String> readObject() {
+			Map<String, String> object = new HashMap<>();
+
+			expect('{');
+			skipWhitespace();
+
+			if (consume('}')) {
+				return object;
+			}
+
+			do {
+				skipWhitespace();
+				String key = readString();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				object.put(key, readValue());
+				skipWhitespace();
+			} while (consume(','));
+
+			expect('}');
+			return object;
+		}
+
+		String readValue() {
+			if (!atEnd() && text.charAt(pos) == '"') {
+				return readString();
+			}
+
+			int start = pos;
+
+			while (!atEnd() && ",}] \t\r\n".indexOf(text.charAt(pos)) < 0) {
+				pos++;
+			}
+
+			String value = text.substring(start, pos);
+
+			if (value.isEmpty()) {
+				throw new IllegalArgumentException("Invalid manifest line " + line() + ": expected a value");
+			}
+
+			return value.equals("null") ? null : value;
+		}
+
+		String readString() {
+			expect('"');
+			StringBuilder value = new StringBuilder();
+
+			while (!atEnd()) {
+				char c = text.charAt(pos++);
+
+				if (c == '"') {
+					return value.toString();
+				}
+
+				if (c == '\\' && !atEnd()) {
+					c = text.charAt(pos++);
+
+					switch (c) {
+					case 'n':
+						c = '\n';
+						break;
+					case 't':
+						c = '\t';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+					case 'b':
+						c = '\b';
+						break;
+					case 'f':
+						c = '\f';
+						break;
+					case 'u':
+						if (pos + 4 > text.length()) {
+							throw new IllegalArgumentException("Invalid manifest line " + line() + ": bad escape");
+						}
+
+						c = (char) Integer.parseInt(text.substring(pos, pos + 4), 16);
+						pos += 4;
+						break;
+					default:
+						// \" \\ and \/ stand for themselves
+						break;
+					}
+				}
+
+				value.append(c);
+			}
+
+			throw new IllegalArgumentException("Invalid manifest line " + line() + ": unterminated string");
+		}
+	}
+}
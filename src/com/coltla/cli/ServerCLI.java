@@ -0,0 +1,239 @@
+package com.coltla.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+
+import com.coltla.metrics.PrometheusExporter;
+import com.coltla.tftp.Engine;
+import com.coltla.tftp.server.TftpServer;
+import com.coltla.utils.FileCache;
+
+/**
+ *
+ * @author Anders
+ *
+ * Runs the embedded TFTP server from the command line until it
+ * is stopped, e.g. as a boot server or as the server integration
+ * tests talk to.
+ *
+ * Exits with 1 when the server cannot be started and 2 when
+ * the arguments are invalid.
+ */
+public class ServerCLI {
+
+	private static final int EXIT_FAILED = 1;
+	private static final int EXIT_USAGE = 2;
+
+	private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+	private static final String USAGE =
+			"Usage: ServerCLI [options] <root directory>\n"
+			+ "Options:\n"
+			+ "  --address <host>        address to listen on (any)\n"
+			+ "  --port <n>              port to listen on (" + Engine.SERVER_DEFAULT_PORT + ")\n"
+			+ "  --threads <n>           event loops running the transfers (1)\n"
+			+ "  --max-blksize <n>       largest block size granted (65464)\n"
+			+ "  --max-windowsize <n>    largest window size granted (" + TftpServer.DEFAULT_MAX_WINDOW_SIZE + ")\n"
+			+ "  --timeout <ms>          retransmit timeout (" + TftpServer.DEFAULT_TIMEOUT + ")\n"
+			+ "  --retries <n>           attempts before a transfer gives up (" + TftpServer.DEFAULT_MAX_RETRIES + ")\n"
+			+ "  --max-sessions <n>      transfers running at once (" + TftpServer.DEFAULT_MAX_SESSIONS + ")\n"
+			+ "  --receive-batch <n>     datagrams a transfer receives at once (" + TftpServer.DEFAULT_RECEIVE_BATCH + ")\n"
+			+ "  --cache <MB>            keep binary files read in memory, up to MB in all\n"
+			+ "  --overwrite             let uploads replace existing files\n"
+			+ "  --metrics-port <n>      serve Prometheus metrics on localhost:n/metrics\n";
+
+	/**
+	 * The server configured by the options, and the
+	 * options of what runs along with it.
+	 */
+	private static class Options {
+		TftpServer server;
+		Integer metricsPort;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Options options;
+
+		try {
+			options = parse(args);
+		} catch (IllegalArgumentException | UnknownHostException ex) {
+			System.err.println(ex.getMessage());
+			System.err.print(USAGE);
+			System.exit(EXIT_USAGE);
+			return;
+		}
+
+		TftpServer server = options.server;
+		PrometheusExporter exporter;
+
+		try {
+			server.start();
+		} catch (IOException ex) {
+			System.err.println("Unable to start server: " + ex.getMessage());
+			System.exit(EXIT_FAILED);
+			return;
+		}
+
+		System.err.println("Serving " + server.getRoot() + " on port " + server.getPort());
+
+		if (options.metricsPort != null) {
+			try {
+				exporter = new PrometheusExporter(server.getMetricsRegistry(), options.metricsPort, "client");
+			} catch (IOException ex) {
+				System.err.println("Unable to serve metrics: " + ex.getMessage());
+				server.close();
+				System.exit(EXIT_FAILED);
+				return;
+			}
+
+			System.err.println("Serving metrics on port " + exporter.getPort());
+		} else {
+			exporter = null;
+		}
+
+		CountDownLatch stopped = new CountDownLatch(1);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if (exporter != null) {
+				exporter.close();
+			}
+
+			server.close();
+			stopped.countDown();
+		}));
+
+		try {
+			stopped.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Options parse(String[] args) throws UnknownHostException {
+		Options options = new Options();
+		TftpServer server = null;
+		String address = null;
+		Integer port = null;
+		Integer threads = null;
+		Integer maxBlockSize = null;
+		Integer maxWindowSize = null;
+		Integer timeout = null;
+		Integer retries = null;
+		Integer maxSessions = null;
+		Integer receiveBatch = null;
+		Integer cacheMegabytes = null;
+		boolean overwrite = false;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			switch (arg) {
+			case "--address":
+				address = value(args, ++i, arg);
+				break;
+			case "--port":
+				port = number(args, ++i, arg);
+				break;
+			case "--threads":
+				threads = number(args, ++i, arg);
+				break;
+			case "--max-blksize":
+				maxBlockSize = number(args, ++i, arg);
+				break;
+			case "--max-windowsize":
+				maxWindowSize = number(args, ++i, arg);
+				break;
+			case "--timeout":
+				timeout = number(args, ++i, arg);
+				break;
+			case "--retries":
+				retries = number(args, ++i, arg);
+				break;
+			case "--max-sessions":
+				maxSessions = number(args, ++i, arg);
+				break;
+			case "--receive-batch":
+				receiveBatch = number(args, ++i, arg);
+				break;
+			case "--cache":
+				cacheMegabytes = number(args, ++i, arg);
+				break;
+			case "--overwrite":
+				overwrite = true;
+				break;
+			case "--metrics-port":
+				options.metricsPort = number(args, ++i, arg);
+				break;
+			default:
+				if (arg.startsWith("--") || server != null) {
+					throw new IllegalArgumentException("Invalid argument: " + arg);
+				}
+
+				server = new TftpServer(new File(arg));
+				break;
+			}
+		}
+
+		if (server == null) {
+			throw new IllegalArgumentException("Missing root directory");
+		}
+
+		if (address != null) {
+			server.setAddress(InetAddress.getByName(address));
+		}
+		if (port != null) {
+			server.setPort(port);
+		}
+		if (threads != null) {
+			server.setThreads(threads);
+		}
+		if (maxBlockSize != null) {
+			server.setMaxBlockSize(maxBlockSize);
+		}
+		if (maxWindowSize != null) {
+			server.setMaxWindowSize(maxWindowSize);
+		}
+		if (timeout != null) {
+			server.setTimeout(timeout);
+		}
+		if (retries != null) {
+			server.setMaxRetries(retries);
+		}
+		if (maxSessions != null) {
+			server.setMaxSessions(maxSessions);
+		}
+		if (receiveBatch != null) {
+			server.setReceiveBatch(receiveBatch);
+		}
+		if (cacheMegabytes != null) {
+			server.setFileCache(new FileCache(cacheMegabytes * BYTES_PER_MEGABYTE));
+		}
+
+		server.setOverwrite(overwrite);
+		options.server = server;
+
+		return options;
+	}
+
+	private static String value(String[] args, int i, String option) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException("Missing value for " + option);
+		}
+
+		return args[i];
+	}
+
+	private static int number(String[] args, int i, String option) {
+		try {
+			return Integer.parseInt(value(args, i, option));
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid value for " + option + ": " + args[i]);
+		}
+	}
+}
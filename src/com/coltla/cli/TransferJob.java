@@ -0,0 +1,91 @@
+package com.coltla.cli;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+
+/**
+ *
+ * @author Anders
+ *
+ * A single GET or PUT read from a manifest.
+ */
+public class TransferJob {
+
+	private final int number;
+	private final Direction direction;
+	private final String server;
+	private final String fileName;
+	private final Mode mode;
+	private final String expectedDigest;
+
+	/**
+	 * @param number - position of the job in the manifest, from 1
+	 * @param direction
+	 * @param server - host name or address of the server
+	 * @param fileName
+	 * @param mode
+	 */
+	public TransferJob(int number, Direction direction, String server, String fileName, Mode mode) {
+		this(number, direction, server, fileName, mode, null);
+	}
+
+	/**
+	 * @param number - position of the job in the manifest, from 1
+	 * @param direction
+	 * @param server - host name or address of the server
+	 * @param fileName
+	 * @param mode
+	 * @param expectedDigest - algorithm:hex the data has to match, or null
+	 */
+	public TransferJob(int number, Direction direction, String server, String fileName, Mode mode,
+			String expectedDigest) {
+		this.number = number;
+		this.direction = direction;
+		this.server = server;
+		this.fileName = fileName;
+		this.mode = mode;
+		this.expectedDigest = expectedDigest;
+	}
+
+	/**
+	 * @return the position of the job in the manifest
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	/**
+	 * @return the direction
+	 */
+	public Direction getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return the host name or address of the server
+	 */
+	public String getServer() {
+		return server;
+	}
+
+	/**
+	 * @return the fileName
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return the mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the digest the data has to match, or null
+	 */
+	public String getExpectedDigest() {
+		return expectedDigest;
+	}
+}
@@ -0,0 +1,328 @@
+package com.coltla.event;
+
+import java.util.EventObject;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author Anders
+ *
+ * Delivers the events of a transfer to its listeners on another
+ * thread, so a slow listener cannot hold up the transfer. Events
+ * are published into a bounded lock free ring buffer and drained
+ * by a task on a small shared pool of daemon threads, which is only
+ * started when the ring goes from empty to not empty. The task
+ * hands its thread on after a batch of events, so thousands of
+ * dispatchers share the pool in turn. Publishing
+ * never blocks: when the ring is full the event is dropped and
+ * counted.
+ *
+ * Events reach each listener in the order they were published.
+ * Progress events are either queued like messages (DROP) or kept
+ * in a single slot that holds the latest one only (COALESCE), so
+ * a listener busy redrawing sees the newest progress without
+ * every block queued in between.
+ */
+public class EventDispatcher {
+
+	/**
+	 * What happens to progress events published faster
+	 * than the listeners take them.
+	 */
+	public enum ProgressPolicy {
+		DROP, COALESCE;
+	}
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	// Threads of the shared pool, and the events a drain task
+	// delivers before it lets the other dispatchers have its thread
+	private static final int SHARED_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private static final int DRAIN_BATCH = 256;
+
+	private static final ExecutorService SHARED = Executors.newFixedThreadPool(SHARED_THREADS,
+			new DaemonThreadFactory());
+
+	private final List<MessageListener> msgListeners = new CopyOnWriteArrayList<>();
+	private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
+	private final Executor executor;
+	private volatile ProgressPolicy progressPolicy = ProgressPolicy.COALESCE;
+
+	// Bounded multi producer ring (Vyukov). Each slot has a sequence
+	// number telling whether it is free for the producer at that
+	// position or holds an event for the consumer at that position.
+	private final AtomicReferenceArray<EventObject> ring;
+	private final AtomicLongArray sequence;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private volatile long tail;		// Only moved by the running drain task
+
+	private final AtomicReference<ProgressEvent> latestProgress = new AtomicReference<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Create a dispatcher with the default capacity
+	 * delivering on the shared pool.
+	 */
+	public EventDispatcher() {
+		this(DEFAULT_CAPACITY, SHARED);
+	}
+
+	/**
+	 * Create a dispatcher.
+	 * @param capacity - the number of events queued before events are dropped, rounded up to a power of two
+	 * @param executor - runs the task delivering the events
+	 */
+	public EventDispatcher(int capacity, Executor executor) {
+		if (capacity < 2 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+
+		this.ring = new AtomicReferenceArray<>(size);
+		this.sequence = new AtomicLongArray(size);
+		this.mask = size - 1;
+		this.executor = executor;
+
+		for (int i = 0; i < size; i++) {
+			sequence.set(i, i);
+		}
+	}
+
+	/**
+	 * Queues a message for the message listeners.
+	 * @param event
+	 * @return false if the ring was full and the event dropped
+	 */
+	public boolean publish(MessageEvent event) {
+		return offer(event);
+	}
+
+	/**
+	 * Queues or coalesces a progress event, depending
+	 * on the progress policy.
+	 * @param event
+	 * @return false if the ring was full and the event dropped
+	 */
+	public boolean publish(ProgressEvent event) {
+		if (progressPolicy == ProgressPolicy.DROP) {
+			return offer(event);
+		}
+
+		latestProgress.set(event);
+		schedule();
+		return true;
+	}
+
+	private boolean offer(EventObject event) {
+		long position;
+
+		while (true) {
+			position = head.get();
+			long available = sequence.get((int) position & mask) - position;
+
+			if (available < 0) {
+				// The consumer has not freed this slot yet
+				dropped.increment();
+				return false;
+			}
+
+			if (available == 0 && head.compareAndSet(position, position + 1)) {
+				break;
+			}
+		}
+
+		int slot = (int) position & mask;
+		ring.set(slot, event);
+		sequence.set(slot, position + 1);
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Starts the drain task unless it is already running.
+	 */
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(this::drain);
+		}
+	}
+
+	/**
+	 * Delivers the queued events, then the latest progress. Only
+	 * one drain task runs at a time. After a batch of events the
+	 * task queues itself again behind the other dispatchers' tasks.
+	 * Events published while the task clears the flag are picked
+	 * up by running it again.
+	 */
+	private void drain() {
+		do {
+			EventObject event;
+			int count = 0;
+
+			while (count < DRAIN_BATCH && (event = poll()) != null) {
+				deliver(event);
+				count++;
+			}
+
+			ProgressEvent progress = latestProgress.getAndSet(null);
+
+			if (progress != null) {
+				deliver(progress);
+			}
+
+			if (count == DRAIN_BATCH) {
+				// The flag stays set while the task is queued
+				executor.execute(this::drain);
+				return;
+			}
+
+			scheduled.set(false);
+		} while (hasPending() && scheduled.compareAndSet(false, true));
+	}
+
+	private EventObject poll() {
+		int slot = (int) tail & mask;
+
+		if (sequence.get(slot) != tail + 1) {
+			return null;
+		}
+
+		EventObject event = ring.get(slot);
+		ring.set(slot, null);
+		sequence.set(slot, tail + mask + 1);
+		tail++;
+		return event;
+	}
+
+	private boolean hasPending() {
+		return sequence.get((int) tail & mask) == tail + 1 || latestProgress.get() != null;
+	}
+
+	private void deliver(EventObject event) {
+		if (event instanceof MessageEvent) {
+			for (MessageListener listener : msgListeners) {
+				try {
+					listener.sendMessage((MessageEvent) event);
+				} catch (RuntimeException ex) {
+					// A failing listener must not stop
+					// the events for the other listeners
+					ex.printStackTrace();
+				}
+			}
+		} else {
+			for (ProgressListener listener : progressListeners) {
+				try {
+					listener.progress((ProgressEvent) event);
+				} catch (RuntimeException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until every event published so far has been delivered.
+	 * Meant for shutting down, e.g. before a command line client exits.
+	 * @param timeoutMillis
+	 * @return true if all events were delivered in time
+	 * @throws InterruptedException
+	 */
+	public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+		while (scheduled.get() || head.get() != tail || latestProgress.get() != null) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+
+			Thread.sleep(1);
+		}
+
+		return true;
+	}
+
+	public void addMsgListener(MessageListener listener) {
+		msgListeners.add(listener);
+	}
+
+	public void removeMsgListener(MessageListener listener) {
+		msgListeners.remove(listener);
+	}
+
+	public void addProgressListener(ProgressListener listener) {
+		progressListeners.add(listener);
+	}
+
+	public void removeProgressListener(ProgressListener listener) {
+		progressListeners.remove(listener);
+	}
+
+	/**
+	 * @return true if any message listener is registered
+	 */
+	public boolean hasMsgListeners() {
+		return !msgListeners.isEmpty();
+	}
+
+	/**
+	 * @return true if any progress listener is registered
+	 */
+	public boolean hasProgressListeners() {
+		return !progressListeners.isEmpty();
+	}
+
+	/**
+	 * @return the progressPolicy
+	 */
+	public ProgressPolicy getProgressPolicy() {
+		return progressPolicy;
+	}
+
+	/**
+	 * @param progressPolicy - the progressPolicy to set
+	 */
+	public void setProgressPolicy(ProgressPolicy progressPolicy) {
+		if (progressPolicy == null) {
+			throw new IllegalArgumentException("Invalid progress policy: " + progressPolicy);
+		}
+
+		this.progressPolicy = progressPolicy;
+	}
+
+	/**
+	 * @return the number of events dropped because the ring was full
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "tftp-events-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
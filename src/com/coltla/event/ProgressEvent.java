@@ -0,0 +1,101 @@
+package com.coltla.event;
+
+import java.util.EventObject;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Reports how far a transfer has come, sent
+ * each time a window of blocks is acknowledged.
+ */
+public class ProgressEvent extends EventObject {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String fileName;
+	private final int block;
+	private final long bytesTransferred;
+	private final long elapsedNanos;
+	
+	// Size of the file, -1 unless the server announced
+	// it (tsize) or the file is sent in binary
+	private final long totalBytes;
+
+	public ProgressEvent(Object source, String fileName, int block, long bytesTransferred, long elapsedNanos) {
+		this(source, fileName, block, bytesTransferred, elapsedNanos, -1);
+	}
+
+	public ProgressEvent(Object source, String fileName, int block, long bytesTransferred, long elapsedNanos,
+			long totalBytes) {
+		super(source);
+		
+		this.fileName = fileName;
+		this.block = block;
+		this.bytesTransferred = bytesTransferred;
+		this.elapsedNanos = elapsedNanos;
+		this.totalBytes = totalBytes;
+	}
+
+	/**
+	 * @return the fileName
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return the last block acknowledged
+	 */
+	public int getBlock() {
+		return block;
+	}
+
+	/**
+	 * @return the number of data bytes transferred so far
+	 */
+	public long getBytesTransferred() {
+		return bytesTransferred;
+	}
+
+	/**
+	 * @return the time since the transfer started in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return the size of the file, or -1 if it is not known
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return the percentage of the file transferred,
+	 * or -1 if the size of the file is not known
+	 */
+	public double getPercentComplete() {
+		if (totalBytes < 0) {
+			return -1;
+		}
+
+		return totalBytes == 0 ? 100 : Math.min(100, 100.0 * bytesTransferred / totalBytes);
+	}
+
+	/**
+	 * Estimates the time left at the average rate so far.
+	 * @return the time left in nanoseconds, or -1 if
+	 * the size of the file is not known
+	 */
+	public long getRemainingNanos() {
+		if (totalBytes < 0 || bytesTransferred == 0) {
+			return -1;
+		}
+
+		long remaining = Math.max(0, totalBytes - bytesTransferred);
+
+		return (long) ((double) elapsedNanos * remaining / bytesTransferred);
+	}
+}
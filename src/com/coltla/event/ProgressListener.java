@@ -0,0 +1,7 @@
+package com.coltla.event;
+
+public interface ProgressListener {
+
+	void progress(ProgressEvent event);
+	
+}
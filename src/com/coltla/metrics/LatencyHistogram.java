@@ -0,0 +1,138 @@
+package com.coltla.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author Anders
+ *
+ * Lock free histogram of latencies in nanoseconds, in the style
+ * of HdrHistogram. Values are counted in buckets on a log-linear
+ * scale: every power of two is split into 32 buckets, so a
+ * percentile is reported to within about 3% of the recorded
+ * value whatever its magnitude. Recording is a single atomic
+ * increment and may be done from any thread while the
+ * histogram is read.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a latency, negative values are ignored.
+	 * @param nanos - the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			return;
+		}
+
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Values below 32 have a bucket each, above that the
+	 * highest bit set picks the power of two and the next
+	 * five bits the bucket within it.
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+
+		return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * @return the highest value counted in a bucket
+	 */
+	private static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKET_COUNT) {
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKET_COUNT - 1;
+		long subBucket = SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT;
+
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param percentile - between 0 and 100
+	 * @return the latency in nanoseconds at or below which the
+	 * given percentage of recorded values lie, 0 if none were recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Invalid percentile: " + percentile);
+		}
+
+		long total = 0;
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			total += counts.get(i);
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+
+			if (seen >= rank) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the sum of the values recorded in nanoseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return the highest value recorded in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the values recorded in nanoseconds
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+}
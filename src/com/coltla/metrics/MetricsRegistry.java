@@ -0,0 +1,70 @@
+package com.coltla.metrics;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.coltla.tftp.Engine.Direction;
+
+/**
+ *
+ * @author Anders
+ *
+ * Holds the metrics of the transfers running and the totals
+ * for every server. Engines sharing a registry add up into the
+ * same server totals. Safe to read from any thread, e.g. by
+ * PrometheusExporter while transfers run.
+ */
+public class MetricsRegistry {
+
+	private final ConcurrentMap<InetAddress, ServerMetrics> servers = new ConcurrentHashMap<>();
+	private final Set<TransferMetrics> active = ConcurrentHashMap.newKeySet();
+	private final AtomicLong nextTransferId = new AtomicLong(1);
+
+	/**
+	 * Starts the metrics of a new transfer.
+	 * @param serverIP
+	 * @param direction
+	 * @param fileName
+	 * @return the metrics to update as the transfer runs
+	 */
+	public TransferMetrics startTransfer(InetAddress serverIP, Direction direction, String fileName) {
+		ServerMetrics server = getServer(serverIP);
+		TransferMetrics transfer = new TransferMetrics(this, nextTransferId.getAndIncrement(), server, direction,
+				fileName);
+
+		server.transfersStarted.increment();
+		active.add(transfer);
+		return transfer;
+	}
+
+	void finished(TransferMetrics transfer) {
+		active.remove(transfer);
+	}
+
+	/**
+	 * @param serverIP
+	 * @return the totals of the server, created if needed
+	 */
+	public ServerMetrics getServer(InetAddress serverIP) {
+		return servers.computeIfAbsent(serverIP, ServerMetrics::new);
+	}
+
+	/**
+	 * @return the totals of every server transferred with
+	 */
+	public Collection<ServerMetrics> getServers() {
+		return Collections.unmodifiableCollection(servers.values());
+	}
+
+	/**
+	 * @return the metrics of the transfers running
+	 */
+	public Collection<TransferMetrics> getActiveTransfers() {
+		return Collections.unmodifiableSet(active);
+	}
+}
@@ -0,0 +1,206 @@
+package com.coltla.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.coltla.metrics.TransferMetrics.Phase;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * @author Anders
+ *
+ * Serves the metrics of a registry in the Prometheus text
+ * format at http://localhost:port/metrics. Server totals are
+ * counters and summaries labelled by server, the transfers
+ * running are gauges labelled by server, transfer id, direction
+ * and file. The metrics of TftpServer are labelled by client
+ * instead of server. Only listens on the loopback interface.
+ */
+public class PrometheusExporter implements Closeable {
+
+	private static final double NANOS_PER_SECOND = 1e9;
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	private final MetricsRegistry registry;
+	private final String peerLabel;
+	private final HttpServer server;
+
+	/**
+	 * Starts serving the metrics of transfers to servers.
+	 * @param registry - the metrics to serve
+	 * @param port - the port to listen on, 0 for an ephemeral port
+	 * @throws IOException
+	 */
+	public PrometheusExporter(MetricsRegistry registry, int port) throws IOException {
+		this(registry, port, "server");
+	}
+
+	/**
+	 * Starts serving the metrics.
+	 * @param registry - the metrics to serve
+	 * @param port - the port to listen on, 0 for an ephemeral port
+	 * @param peerLabel - the label of the address the transfers
+	 * ran with, "server" or "client" for the registry of TftpServer
+	 * @throws IOException
+	 */
+	public PrometheusExporter(MetricsRegistry registry, int port, String peerLabel) throws IOException {
+		this.registry = registry;
+		this.peerLabel = peerLabel;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/metrics", this::handle);
+		this.server.start();
+	}
+
+	/**
+	 * @return the port the metrics are served on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * @return the current metrics in the Prometheus text format
+	 */
+	public String scrape() {
+		StringBuilder text = new StringBuilder();
+
+		header(text, "tftp_transfers_total", "counter", "Transfers finished by outcome.");
+		for (ServerMetrics s : registry.getServers()) {
+			sample(text, "tftp_transfers_total", server(s) + ",outcome=\"complete\"", s.getTransfersCompleted());
+			sample(text, "tftp_transfers_total", server(s) + ",outcome=\"failed\"", s.getTransfersFailed());
+		}
+
+		header(text, "tftp_transfers_active", "gauge", "Transfers running.");
+		for (ServerMetrics s : registry.getServers()) {
+			sample(text, "tftp_transfers_active", server(s), s.getTransfersActive());
+		}
+
+		counter(text, "tftp_bytes_total", "Data bytes transferred.", Counter.BYTES);
+		counter(text, "tftp_packets_sent_total", "Packets sent.", Counter.SENT);
+		counter(text, "tftp_packets_received_total", "Packets received.", Counter.RECEIVED);
+		counter(text, "tftp_retransmits_total", "Packets sent again.", Counter.RETRANSMITS);
+		counter(text, "tftp_timeouts_total", "Retransmit timeouts expired.", Counter.TIMEOUTS);
+
+		header(text, "tftp_rtt_seconds", "summary", "Round trip times measured.");
+		for (ServerMetrics s : registry.getServers()) {
+			summary(text, "tftp_rtt_seconds", server(s), s.getRtt());
+		}
+
+		header(text, "tftp_transfer_duration_seconds", "summary", "Durations of finished transfers.");
+		for (ServerMetrics s : registry.getServers()) {
+			summary(text, "tftp_transfer_duration_seconds", server(s), s.getTransferTime());
+		}
+
+		header(text, "tftp_transfer_bytes", "gauge", "Data bytes transferred by a running transfer.");
+		for (TransferMetrics t : registry.getActiveTransfers()) {
+			sample(text, "tftp_transfer_bytes", transfer(t), t.getBytes());
+		}
+
+		header(text, "tftp_transfer_block", "gauge", "Last block acknowledged by a running transfer.");
+		for (TransferMetrics t : registry.getActiveTransfers()) {
+			sample(text, "tftp_transfer_block", transfer(t), t.getBlock());
+		}
+
+		header(text, "tftp_transfer_phase_seconds", "gauge", "Time a running transfer spent in each phase.");
+		for (TransferMetrics t : registry.getActiveTransfers()) {
+			for (Phase phase : Phase.values()) {
+				sample(text, "tftp_transfer_phase_seconds",
+						transfer(t) + ",phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"",
+						t.getPhaseNanos(phase) / NANOS_PER_SECOND);
+			}
+		}
+
+		return text.toString();
+	}
+
+	private enum Counter {
+		BYTES, SENT, RECEIVED, RETRANSMITS, TIMEOUTS;
+	}
+
+	private void counter(StringBuilder text, String name, String help, Counter counter) {
+		header(text, name, "counter", help);
+
+		for (ServerMetrics s : registry.getServers()) {
+			long value;
+
+			switch (counter) {
+			case BYTES:
+				value = s.getBytes();
+				break;
+			case SENT:
+				value = s.getPacketsSent();
+				break;
+			case RECEIVED:
+				value = s.getPacketsReceived();
+				break;
+			case RETRANSMITS:
+				value = s.getRetransmits();
+				break;
+			default:
+				value = s.getTimeouts();
+				break;
+			}
+
+			sample(text, name, server(s), value);
+		}
+	}
+
+	private static void summary(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+		for (double quantile : QUANTILES) {
+			sample(text, name, labels + ",quantile=\"" + quantile + "\"",
+					histogram.getPercentile(quantile * 100) / NANOS_PER_SECOND);
+		}
+
+		sample(text, name + "_sum", labels, histogram.getSum() / NANOS_PER_SECOND);
+		sample(text, name + "_count", labels, histogram.getCount());
+	}
+
+	private static void header(StringBuilder text, String name, String type, String help) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, String labels, double value) {
+		text.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, String labels, long value) {
+		text.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private String server(ServerMetrics s) {
+		return peerLabel + "=\"" + escape(s.getAddress().getHostAddress()) + "\"";
+	}
+
+	private String transfer(TransferMetrics t) {
+		return server(t.getServer()) + ",transfer=\"" + t.getId() + "\",direction=\"" + t.getDirection()
+				+ "\",file=\"" + escape(t.getFileName()) + "\"";
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,116 @@
+package com.coltla.metrics;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author Anders
+ *
+ * Totals of every transfer made with one server. The counters
+ * are updated as the transfers run, so they can be read at any
+ * time without waiting for a transfer to finish.
+ */
+public class ServerMetrics {
+
+	private final InetAddress address;
+
+	final LongAdder transfersStarted = new LongAdder();
+	final LongAdder transfersCompleted = new LongAdder();
+	final LongAdder transfersFailed = new LongAdder();
+	final LongAdder bytes = new LongAdder();
+	final LongAdder packetsSent = new LongAdder();
+	final LongAdder packetsReceived = new LongAdder();
+	final LongAdder retransmits = new LongAdder();
+	final LongAdder timeouts = new LongAdder();
+	final LatencyHistogram rtt = new LatencyHistogram();
+	final LatencyHistogram transferTime = new LatencyHistogram();
+
+	ServerMetrics(InetAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * @return the address
+	 */
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the number of transfers started
+	 */
+	public long getTransfersStarted() {
+		return transfersStarted.sum();
+	}
+
+	/**
+	 * @return the number of transfers completed
+	 */
+	public long getTransfersCompleted() {
+		return transfersCompleted.sum();
+	}
+
+	/**
+	 * @return the number of transfers that failed
+	 */
+	public long getTransfersFailed() {
+		return transfersFailed.sum();
+	}
+
+	/**
+	 * @return the number of transfers still running
+	 */
+	public long getTransfersActive() {
+		return transfersStarted.sum() - transfersCompleted.sum() - transfersFailed.sum();
+	}
+
+	/**
+	 * @return the number of data bytes transferred
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * @return the number of packets sent
+	 */
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	/**
+	 * @return the number of packets received
+	 */
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	/**
+	 * @return the number of packets sent again
+	 */
+	public long getRetransmits() {
+		return retransmits.sum();
+	}
+
+	/**
+	 * @return the number of times the retransmit timeout expired
+	 */
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return the round trip times measured
+	 */
+	public LatencyHistogram getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * @return the durations of the finished transfers
+	 */
+	public LatencyHistogram getTransferTime() {
+		return transferTime;
+	}
+}
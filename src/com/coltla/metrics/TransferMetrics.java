@@ -0,0 +1,271 @@
+package com.coltla.metrics;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.coltla.tftp.Engine.Direction;
+
+/**
+ *
+ * @author Anders
+ *
+ * Counters and timings of a single transfer. The transfer
+ * updates them as it runs and adds every update to the totals
+ * of its server as well, other threads may read them at any
+ * time. Created by MetricsRegistry.startTransfer.
+ */
+public class TransferMetrics {
+
+	/**
+	 * Phases of a transfer, REQUEST until the server
+	 * replies, TRANSFER while blocks are exchanged and
+	 * FINISH while the file is closed or renamed.
+	 */
+	public enum Phase {
+		REQUEST, TRANSFER, FINISH;
+	}
+
+	private final MetricsRegistry registry;
+	private final long id;
+	private final ServerMetrics server;
+	private final Direction direction;
+	private final String fileName;
+	private final long startNanos;
+
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder packetsSent = new LongAdder();
+	private final LongAdder packetsReceived = new LongAdder();
+	private final LongAdder retransmits = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LatencyHistogram rtt = new LatencyHistogram();
+
+	// Time spent in each phase, the current phase
+	// is added when the next one is entered
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+	private volatile Phase phase = Phase.REQUEST;
+	private volatile long phaseStart;
+
+	private volatile int block;
+	private volatile long elapsedNanos = -1;
+	private volatile boolean complete;
+
+	TransferMetrics(MetricsRegistry registry, long id, ServerMetrics server, Direction direction, String fileName) {
+		this.registry = registry;
+		this.id = id;
+		this.server = server;
+		this.direction = direction;
+		this.fileName = fileName;
+		this.startNanos = System.nanoTime();
+		this.phaseStart = startNanos;
+	}
+
+	/**
+	 * @param count - data bytes sent or received
+	 */
+	public void addBytes(long count) {
+		bytes.add(count);
+		server.bytes.add(count);
+	}
+
+	public void packetSent() {
+		packetsSent.increment();
+		server.packetsSent.increment();
+	}
+
+	public void packetReceived() {
+		packetsReceived.increment();
+		server.packetsReceived.increment();
+	}
+
+	public void retransmit() {
+		retransmits.increment();
+		server.retransmits.increment();
+	}
+
+	public void timeout() {
+		timeouts.increment();
+		server.timeouts.increment();
+	}
+
+	/**
+	 * @param nanos - a round trip time measured
+	 */
+	public void rtt(long nanos) {
+		rtt.record(nanos);
+		server.rtt.record(nanos);
+	}
+
+	/**
+	 * @param block - the last block acknowledged
+	 */
+	public void setBlock(int block) {
+		this.block = block;
+	}
+
+	/**
+	 * Ends the current phase and starts the next.
+	 * @param next - the phase entered
+	 */
+	public void enterPhase(Phase next) {
+		long now = System.nanoTime();
+
+		phaseNanos.addAndGet(phase.ordinal(), now - phaseStart);
+		phase = next;
+		phaseStart = now;
+	}
+
+	/**
+	 * Ends the transfer, its metrics no longer change.
+	 * @param complete - true if every block was transferred
+	 */
+	public void finish(boolean complete) {
+		if (elapsedNanos >= 0) {
+			return;
+		}
+
+		enterPhase(phase);
+		this.complete = complete;
+		this.elapsedNanos = System.nanoTime() - startNanos;
+
+		if (complete) {
+			server.transfersCompleted.increment();
+		} else {
+			server.transfersFailed.increment();
+		}
+
+		server.transferTime.record(elapsedNanos);
+		registry.finished(this);
+	}
+
+	/**
+	 * @return the number of the transfer in its registry, telling
+	 * apart transfers of the same file running at once
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the metrics of the server
+	 */
+	public ServerMetrics getServer() {
+		return server;
+	}
+
+	/**
+	 * @return the direction
+	 */
+	public Direction getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return the fileName
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return the number of data bytes transferred
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * @return the number of packets sent
+	 */
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	/**
+	 * @return the number of packets received
+	 */
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	/**
+	 * @return the number of packets sent again
+	 */
+	public long getRetransmits() {
+		return retransmits.sum();
+	}
+
+	/**
+	 * @return the number of times the retransmit timeout expired
+	 */
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return the round trip times measured
+	 */
+	public LatencyHistogram getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * @return the last block acknowledged
+	 */
+	public int getBlock() {
+		return block;
+	}
+
+	/**
+	 * @return the current phase
+	 */
+	public Phase getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @param phase
+	 * @return the time spent in the phase in nanoseconds,
+	 * including the time so far if it is the current phase
+	 */
+	public long getPhaseNanos(Phase phase) {
+		long nanos = phaseNanos.get(phase.ordinal());
+
+		if (phase == this.phase && elapsedNanos < 0) {
+			nanos += System.nanoTime() - phaseStart;
+		}
+
+		return nanos;
+	}
+
+	/**
+	 * @return the time since the transfer started, or
+	 * the duration of a finished transfer, in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		long elapsed = elapsedNanos;
+		return elapsed >= 0 ? elapsed : System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * @return true once the transfer has finished
+	 */
+	public boolean isFinished() {
+		return elapsedNanos >= 0;
+	}
+
+	/**
+	 * @return true if the transfer finished with every block transferred
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the throughput so far in bytes per second
+	 */
+	public double getBytesPerSecond() {
+		long elapsed = getElapsedNanos();
+		return elapsed <= 0 ? 0 : bytes.sum() * 1e9 / elapsed;
+	}
+}
@@ -0,0 +1,195 @@
+package com.coltla.tftp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import com.coltla.utils.Digest;
+
+/**
+ *
+ * @author Anders
+ *
+ * Progress of a resumable GET, kept next to its partial file so
+ * that a transfer that failed can go on from where it stopped.
+ * It records how many bytes at the start of the partial file were
+ * received in order and their CRC-32, which the partial file is
+ * checked against before it is trusted, along with the size the
+ * server announced and the name the file was fetched by.
+ */
+class Checkpoint {
+
+	private static final String PARTIAL_SUFFIX = ".part";
+	private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	private static final String KEY_FILE = "file";
+	private static final String KEY_OFFSET = "offset";
+	private static final String KEY_CRC = "crc32";
+	private static final String KEY_SIZE = "size";
+
+	private final File partialFile;
+	private final File file;
+
+	private long offset;
+	private long crc;
+	private long size = -1;
+
+	/**
+	 * @param target - the file the GET is received into
+	 */
+	Checkpoint(File target) {
+		this.partialFile = new File(target.getPath() + PARTIAL_SUFFIX);
+		this.file = new File(target.getPath() + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * Reads the checkpoint and checks the partial file against it.
+	 * @param remoteFile - the name the file is fetched by
+	 * @param partial - the partial file, open for reading
+	 * @param checksum - set to the CRC-32 of the bytes received
+	 * @param digest - updated with the bytes received in the same
+	 * pass, or null
+	 * @return the number of bytes to resume from, 0 if there
+	 * is no checkpoint for the file or the partial file does
+	 * not match it
+	 */
+	long resume(String remoteFile, FileChannel partial, CRC32 checksum, Digest digest) {
+		Properties properties = new Properties();
+
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+
+			offset = Long.parseLong(properties.getProperty(KEY_OFFSET));
+			crc = Long.parseLong(properties.getProperty(KEY_CRC));
+			size = Long.parseLong(properties.getProperty(KEY_SIZE));
+		} catch (IOException | RuntimeException ex) {
+			// No checkpoint, or not one we wrote
+			return 0;
+		}
+
+		if (!remoteFile.equals(properties.getProperty(KEY_FILE)) || offset <= 0) {
+			return 0;
+		}
+
+		// The data may not have reached the disk before the
+		// checkpoint did, e.g. if the system went down
+		try {
+			if (partial.size() < offset || checksum(partial, offset, checksum, digest) != crc) {
+				reset(checksum, digest);
+				return 0;
+			}
+		} catch (IOException ex) {
+			reset(checksum, digest);
+			return 0;
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Computes the CRC-32 of the start of a file.
+	 * @param partial
+	 * @param length - the number of bytes to read
+	 * @param checksum - reset and updated with the bytes read
+	 * @param digest - reset and updated with the bytes read, or null
+	 * @return the CRC-32
+	 * @throws IOException
+	 */
+	private static long checksum(FileChannel partial, long length, CRC32 checksum, Digest digest)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+		long position = 0;
+
+		reset(checksum, digest);
+
+		while (position < length) {
+			buf.clear().limit((int) Math.min(buf.capacity(), length - position));
+
+			int count = partial.read(buf, position);
+
+			if (count < 0) {
+				throw new IOException("Partial file shorter than its checkpoint");
+			}
+
+			buf.flip();
+
+			if (digest != null) {
+				digest.update(buf.duplicate());
+			}
+
+			checksum.update(buf);
+			position += count;
+		}
+
+		return checksum.getValue();
+	}
+
+	private static void reset(CRC32 checksum, Digest digest) {
+		checksum.reset();
+
+		if (digest != null) {
+			digest.reset();
+		}
+	}
+
+	/**
+	 * Records the bytes received in order. The checkpoint is
+	 * replaced in one step, so a resume never reads half of one.
+	 * @param remoteFile - the name the file is fetched by
+	 * @param offset - the number of bytes received in order
+	 * @param crc - their CRC-32
+	 * @param size - the size the server announced, or -1
+	 * @throws IOException
+	 */
+	void save(String remoteFile, long offset, long crc, long size) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(KEY_FILE, remoteFile);
+		properties.setProperty(KEY_OFFSET, Long.toString(offset));
+		properties.setProperty(KEY_CRC, Long.toString(crc));
+		properties.setProperty(KEY_SIZE, Long.toString(size));
+
+		File temp = new File(file.getPath() + ".tmp");
+
+		try (OutputStream out = new FileOutputStream(temp)) {
+			properties.store(out, "TFTP transfer checkpoint");
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		this.offset = offset;
+		this.crc = crc;
+		this.size = size;
+	}
+
+	/**
+	 * Removes the checkpoint, e.g. once the file is complete.
+	 */
+	void delete() {
+		file.delete();
+	}
+
+	/**
+	 * @return the file the data is received into until complete
+	 */
+	File getPartialFile() {
+		return partialFile;
+	}
+
+	/**
+	 * @return the size of the file when the checkpoint
+	 * was made, or -1 if the server did not announce it
+	 */
+	long getSize() {
+		return size;
+	}
+}
@@ -1,37 +1,57 @@
 package com.coltla.tftp;
 
-import java.util.List;
-
 import org.apache.logging.log4j.core.net.DatagramOutputStream;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
 
+import com.coltla.event.EventDispatcher;
+import com.coltla.event.EventDispatcher.ProgressPolicy;
 import com.coltla.event.MessageEvent;
 import com.coltla.event.MessageListener;
+import com.coltla.event.ProgressEvent;
+import com.coltla.event.ProgressListener;
+import com.coltla.metrics.MetricsRegistry;
+import com.coltla.metrics.TransferMetrics;
+import com.coltla.metrics.TransferMetrics.Phase;
+import com.coltla.utils.BlockNumbers;
+import com.coltla.utils.CongestionControl;
+import com.coltla.utils.Crc32c;
 import com.coltla.utils.DataPacket;
 import com.coltla.utils.DataParser;
+import com.coltla.utils.Digest;
+import com.coltla.utils.FileCache;
+import com.coltla.utils.NetasciiInputStream;
+import com.coltla.utils.NetasciiOutputStream;
+import com.coltla.utils.PacketCodec;
+import com.coltla.utils.RttEstimator;
+import com.coltla.utils.TokenBucket;
 
 public class Engine {
 
-	private List<MessageListener> msgListeners = new ArrayList<>();
+	// Listeners are called on the dispatcher's thread,
+	// never on the thread running the transfer
+	private final EventDispatcher events = new EventDispatcher();
 	
 	
 	private InetAddress serverIP;
@@ -47,6 +67,8 @@ public class Engine {
 		NETASCII, OCTET;
 	}
 
+	private static final String MESSAGE_PREFIX = "-->\t";
+	
 	private static final String ERROR_WRITING_FILE = "-->\tError writing to file. Terminating.";
 	private static final String ERROR_CLOSING_FILE = "-->\tError closing file.";
 
@@ -55,11 +77,15 @@ public class Engine {
 	private static final String ERROR_GETTING_SERVER_CONNECTION = "-->\tError getting connection to server.";
 
 	private static final String ERROR_FILE_NOT_FOUND = "-->\tFile not found.";
-	private static final String ERROR_WRITE_TO_TEMP_FILE = "-->\tCould not write to temporary file.";
 	private static final String ERROR_READING_PACKET = "-->\tError reading data packet.";
 
 	private static final String ERROR_SERVER_REPORTED_ERROR = "-->\tServer reported error.";
-	private static final String ERROR_NO_FREE_PORT_FOUND = "-->\tNo free port found.";
+	private static final String ERROR_RETRIES_EXCEEDED = "-->\tNo response from server. Terminating.";
+	private static final String ERROR_OPTIONS_REFUSED = "-->\tServer acknowledged unacceptable options. Terminating.";
+	private static final String ERROR_DISK_FULL = "-->\tNot enough disk space for the file. Terminating.";
+	private static final String ERROR_DIGEST_MISMATCH = "-->\tData does not match the digest expected: ";
+	private static final String ERROR_DIGEST_TEXT = "-->\tText transfers are not digested, the digest expected cannot be checked.";
+	private static final String ERROR_FILE_CHANGED = "-->\tFile changed on the server since the partial file was received. Terminating.";
 
 	private static final String INFO_PROCESSING_REQUEST = "-->\tProcessing request.";
 	private static final String INFO_CREATING_TEMP_FILE = "-->\tCreating temporary file.";
@@ -67,84 +93,287 @@ public class Engine {
 
 	private static final String INFO_CONNECTING_TO_SERVER = "-->\tConnecting to server...";
 	private static final String INFO_CONNECTED_SUCCESS = "-->\tConnected to server.";
+	private static final String INFO_OPTIONS_ACCEPTED = "-->\tServer accepted options: ";
+	private static final String INFO_OPTIONS_IGNORED = "-->\tServer ignored options, using default block size.";
+	private static final String INFO_TRANSFER_SIZE = "-->\tFile size: ";
+	private static final String INFO_DIGEST = "-->\tDigest: ";
+	private static final String INFO_RESUMING = "-->\tResuming from byte ";
+	private static final String INFO_RESUME_REFUSED = "-->\tServer cannot resume, starting over.";
+	private static final String INFO_KEPT_MISMATCH = "-->\tServer kept part of another file, sending the whole file.";
 	private static final String INFO_CONVERTING_TO_NETASCII = "-->\tConverting to NETASCII...";
-	private static final String INFO_CONVERTED_TO_NETASCII = "-->\tConverted to NETASCII.";
 
-	private static final String INFO_READING_DATA_INTO_TEMP_FILE = "-->\tReading file data into temporary file...";
 	private static final String INFO_SENDING_FILE_TO_SERVER = "-->\tSending file to server...";
 	private static final String INFO_READING_FILE_FROM_SERVER = "-->\tReading file from server...";
 	private static final String INFO_CONVERTING_FILE_FROM_NETASCII = "-->\tConvert file from NETASCII to system text...";
 	private static final String INFO_RENAMING_FILE = "-->\tRename temp file to target name...";
 
-	private static final String INFO_SUCCESS_DATA_IN_TEMP_FILE = "-->\tData moved into temporary file.";
 	private static final String INFO_SUCCESS_READING_FILE = "-->\tFile read";
 	private static final String INFO_SUCCESS_TRANSFER_COMPLETE = "-->\tTransfer complete.";
-	private static final String INFO_SUCCESS_FILE_CONVERTED = "-->\tFile converted.";
+	private static final String INFO_TRANSFER_CANCELLED = "-->\tTransfer cancelled.";
 
 	private static final String PUT_DATA = "-->\tSending data to server.";
 	private static final String GET_DATA = "-->\tGetting data from server.";
 
-	private static final int SOCKET_TIMEOUT = 10000;
+	// Attempts to send a packet before giving up, the
+	// retransmit timeout doubles with every attempt
+	public static final int DEFAULT_MAX_RETRIES = 8;
 	private static final byte NULL_BYTE = 0x00;
 	
 	// TFTP servers listen on port 69 for connections
 	public static final int SERVER_DEFAULT_PORT = 69;
 	
-	// TFTP client ports to use
-	private int[] port_range = new int[] {
-		50152, 50153, 50154, 50155, 50156, 50157, 50158
-	};
-
+	// Bytes received by a resumable GET between checkpoints
+	public static final long CHECKPOINT_INTERVAL = 8 * 1024 * 1024;
+	
+	// A GET is received into tempFile, next to the
+	// target file, and renamed once it is complete.
+	// Text is written through fout to convert it.
 	File tempFile;
-	FileOutputStream fout;
+	FileChannel target;
+	OutputStream fout;
 	
-	private DatagramSocket server = null;
+	private volatile DatagramSocket server = null;
+	
+	// A transfer started while a socket of the pool is free
+	// shares it instead of binding server, see SocketPool
+	private SocketPool socketPool;
+	private volatile SocketPool.Session session;
+	private int port = SERVER_DEFAULT_PORT;
 	private int serverPort;
 	private int clientPort;
-	private DatagramPacket packetOut = null;
-	private FileInputStream fin;
-	private DatagramPacket packetIn;
+	
+	// Block size requested from the server and the
+	// block size in effect for the current transfer
+	private int requestedBlockSize = DataPacket.MAX_DATA_SIZE;
+	private int blockSize = DataPacket.MAX_DATA_SIZE;
+	
+	// Number of blocks sent before waiting for an ACK,
+	// requested and in effect for the current transfer
+	private int requestedWindowSize = DataPacket.MIN_WINDOW_SIZE;
+	private int windowSize = DataPacket.MIN_WINDOW_SIZE;
+	
+	// Blocks are counted from 1 without limit and mapped
+	// onto the 16 bit wire numbers, which roll over to the
+	// requested number if the server acknowledges it, else 0
+	private int requestedRollover;
+	private BlockNumbers blockNumbers = BlockNumbers.ROLLOVER_TO_ZERO;
+	
+	// The size of a GET is asked for, and the size of a binary
+	// PUT announced, with the tsize option (RFC 2349). The size
+	// of the current transfer is -1 until it is known.
+	private boolean transferSizeOption = true;
+	private long transferSize = -1;
+	
+	// A resumable GET keeps its partial file and a checkpoint of
+	// the bytes received in order, and asks the server for the
+	// rest of the file with the offset option the next time. The
+	// end of what it has is asked for again, to check the file on
+	// the server is still the one it was received from. A resumable
+	// PUT asks the server how much of the file it kept, and checks
+	// the CRC of the part kept against its own before skipping it.
+	private boolean resumable;
+	private long resumeOffset;
+	private Checkpoint checkpoint;
+	private final CRC32 checksum = new CRC32();
+	private long checkpointedAt;
+	private int overlap;
+	private boolean keptRefused;
+	
+	// The data of a binary transfer is digested as it passes, so
+	// the file is verified without being read again. A GET that
+	// does not match the digest expected is never renamed to the
+	// target file.
+	private Digest.Algorithm digestAlgorithm;
+	private String expectedDigest;
+	private Digest digest;
+	private String digestValue;
+	
+	// Set when the last block has been acknowledged
+	private boolean complete;
+	
+	// Set by cancel() from another thread. Cleared once a transfer
+	// ends rather than when one starts, so a cancel that comes
+	// before the transfer has started stops it as soon as it does.
+	private volatile boolean cancelled;
+	private volatile boolean lastCancelled;
+	private long bytesTransferred;
+	
+	// The last error reported, why the transfer failed
+	private String error;
+	
+	// Send binary files from a memory mapped source,
+	// or from a cache shared by the engines
+	private boolean memoryMapped;
+	private FileCache fileCache;
+	
+	// The retransmit timeout follows the round trip
+	// time measured during the transfer
+	private RttEstimator rtt = new RttEstimator();
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private int retransmits;
+	
+	// Data is sent, or acknowledged, no faster than the rate
+	// limit of the transfer and the buckets shared with other
+	// transfers allow. A PUT with congestion control spreads
+	// its blocks out to the pace of its controller, the next
+	// block is sent at nextSendAt.
+	private long rateLimit;
+	private TokenBucket rateLimiter;
+	private TokenBucket[] rateLimiters = new TokenBucket[0];
+	private boolean congestionControl;
+	private CongestionControl congestion;
+	private long nextSendAt;
+	
+	// Counters of the current transfer, added up
+	// per server in the registry
+	private MetricsRegistry metricsRegistry = new MetricsRegistry();
+	private TransferMetrics metrics;
+	
+	// Packets and buffers are kept for the whole transfer, and
+	// reused by the next one, so that no packet allocates
+	private final DatagramPacket packetOut = new DatagramPacket(new byte[0], 0);
+	// A PUT reads blocks straight from the source
+	// file, text is read through fin to convert it
+	private FileChannel source;
+	private InputStream fin;
+	
+	// Set for a memory mapped or cached PUT. Blocks are slices
+	// of the region of the source file mapped from mappedStart,
+	// or of the whole file held by the cache, and are sent with
+	// a gathering write on the channel.
+	private DatagramChannel channel;
+	private ByteBuffer mapped;
+	private ByteBuffer mappedView;
+	private long mappedStart;
+	private long mappedPosition;
+	private long mappedSize;
+	
+	private final DatagramPacket packetIn = new DatagramPacket(new byte[0], 0);
+	private byte[] receiveBuffer = new byte[0];
+	private byte[] ackPacket = new byte[PacketCodec.HEADER_SIZE];
 	
 	/**
 	 * Entry point to initiate communication with a server.
+	 * An Engine holds the state of a single transfer, use
+	 * one instance per concurrent transfer (see TransferScheduler).
 	 * 
 	 * @param serverIP
 	 * @param direction
 	 * @param mode
 	 * @param file
+	 * @return the outcome of the transfer
 	 */
-	public void transfer(InetAddress serverIP, Direction direction, Mode mode, String file) {
+	public TransferResult transfer(InetAddress serverIP, Direction direction, Mode mode, String file) {
 		setServerIP(serverIP);
 		setDirection(direction);
 		setMode(mode);
 		setFileName(file);
 		
+		// Until the server acknowledges the options we have to
+		// be able to receive a block of the requested size, and
+		// an OACK of up to 512 bytes when blocks are smaller
+		blockSize = requestedBlockSize;
+		windowSize = DataPacket.MIN_WINDOW_SIZE;
+		
+		if (receiveBuffer.length < receiveSize()) {
+			receiveBuffer = new byte[receiveSize()];
+		}
+		blockNumbers = BlockNumbers.ROLLOVER_TO_ZERO;
+		
+		complete = false;
+		lastCancelled = false;
+		bytesTransferred = 0;
+		error = null;
+		transferSize = direction == Direction.PUT && mode == Mode.OCTET ? new File(file).length() : -1;
+		resumeOffset = 0;
+		checkpoint = null;
+		checksum.reset();
+		checkpointedAt = 0;
+		overlap = 0;
+		keptRefused = false;
+		Digest.Algorithm algorithm = expectedDigest != null ? Digest.algorithmOf(expectedDigest) : digestAlgorithm;
+		digest = algorithm != null && mode == Mode.OCTET ? new Digest(algorithm) : null;
+		digestValue = null;
+		retransmits = 0;
+		rtt.reset();
+		rateLimiter = rateLimit > 0 ? new TokenBucket(rateLimit) : null;
+		congestion = null;
+		nextSendAt = 0;
+		fin = null;
+		fout = null;
+		server = null;
+		session = null;
+		channel = null;
+		mapped = null;
+		mappedView = null;
+		long start = System.nanoTime();
+		metrics = metricsRegistry.startTransfer(serverIP, direction, file);
+		
 		fireMsgEvent(INFO_PROCESSING_REQUEST);
 		
-		writeTempFile();
+		try {
+			// Only a GET needs a temp file, a PUT
+			// is sent straight from the source file
+			if (direction == Direction.GET) {
+				writeTempFile();
+			} else {
+				initiateRequest();
+				
+				// Nothing was sent yet, the request is made once more
+				// without asking the server to resume
+				if (keptRefused && !cancelled) {
+					resumeOffset = 0;
+					error = null;
+					
+					if (digest != null) {
+						digest.reset();
+					}
+					
+					initiateRequest();
+				}
+			}
+		} finally {
+			// However the transfer ended, e.g. on an error from the
+			// server, its socket is freed or the shared one left
+			closeSocket();
+			
+			lastCancelled = cancelled;
+			cancelled = false;
+		}
+		
+		metrics.finish(complete);
+		
+		return new TransferResult(serverIP, direction, mode, file, complete,
+				bytesTransferred, System.nanoTime() - start, retransmits, rtt.getBackoffs(),
+				rtt.getSmoothedRtt(), rtt.getRttVariation(), rtt.getTimeout(), digestValue, complete ? null : error);
 	}
 	
 	/**
-	 * Passed an array of integers, loops through each
-	 * looking for a free port with which to create a
-	 * datagram socket with. Returns the datagram socket
-	 * when the first port is found.
-	 * If not found port, throws an exception.
-	 * @param ports
-	 * @return
-	 * @throws IOException
+	 * Stops the transfer running, from any thread. The socket
+	 * is closed so a transfer waiting for the server stops at
+	 * once, a GET leaves the target file untouched. Called
+	 * before the transfer has started, it stops the transfer
+	 * as soon as it starts.
 	 */
-	private DatagramSocket getPort(int[] ports) throws IOException {
-		for (int port : ports) {
-			try {
-				return new DatagramSocket(port);
-			} catch (IOException ex) {
-				continue;
-			}
-		}
+	public void cancel() {
+		cancelled = true;
 		
-		// If the application gets here, no port in range was found
-		throw new IOException(ERROR_NO_FREE_PORT_FOUND);
+		DatagramSocket socket = server;
+		SocketPool.Session shared = session;
+		
+		if (shared != null) {
+			shared.close();
+		} else if (socket != null) {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * @return true if the transfer running, or else the
+	 * last one, was cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled || lastCancelled;
 	}
 	
 	/**
@@ -179,7 +408,7 @@ public class Engine {
 		if (direction == Direction.GET) {
 			header[1] = 0x01;
 			fireMsgEvent(GET_DATA);
-		} else if (direction == Direction.GET) {
+		} else if (direction == Direction.PUT) {
 			header[1] = 0x02;
 			fireMsgEvent(PUT_DATA);
 		}
@@ -191,6 +420,7 @@ public class Engine {
 		outputStream.write(NULL_BYTE);
 		outputStream.write(transferMode.toString().getBytes());
 		outputStream.write(NULL_BYTE);
+		outputStream.write(DataPacket.encodeOptions(buildOptions()));
 		
 		// Convert output stream to byte array
 		byte[] result = outputStream.toByteArray();
@@ -200,12 +430,148 @@ public class Engine {
 	}
 	
 	/**
-	 * Builds a Datagram packet using the byte array passed
-	 * and assigns it to packetOut.
+	 * Builds the options to append to the request.
+	 * Options are only sent when they differ from the
+	 * RFC 1350 defaults so that servers without option
+	 * support see a plain request. The tsize option is
+	 * sent unless turned off, it does not change the
+	 * transfer itself.
+	 * @return map of option names and values
+	 */
+	private Map<String, String> buildOptions() {
+		Map<String, String> options = new LinkedHashMap<>();
+		
+		if (requestedBlockSize != DataPacket.MAX_DATA_SIZE) {
+			options.put(DataPacket.OPTION_BLKSIZE, Integer.toString(requestedBlockSize));
+		}
+		
+		if (requestedWindowSize != DataPacket.MIN_WINDOW_SIZE) {
+			options.put(DataPacket.OPTION_WINDOWSIZE, Integer.toString(requestedWindowSize));
+		}
+		
+		if (requestedRollover != 0) {
+			options.put(DataPacket.OPTION_ROLLOVER, Integer.toString(requestedRollover));
+		}
+		
+		// A GET asks for the size with 0. The size of text
+		// is only known once converted, so it is not sent.
+		if (transferSizeOption) {
+			if (direction == Direction.GET) {
+				options.put(DataPacket.OPTION_TSIZE, "0");
+			} else if (transferSize >= 0) {
+				options.put(DataPacket.OPTION_TSIZE, Long.toString(transferSize));
+			}
+		}
+		
+		// A PUT asks the server where to resume with 0,
+		// naming the file it sends
+		if (resumeOffset > 0) {
+			options.put(DataPacket.OPTION_OFFSET, Long.toString(resumeOffset - overlap));
+		} else if (resumable && direction == Direction.PUT && mode == Mode.OCTET && !keptRefused) {
+			options.put(DataPacket.OPTION_OFFSET, "0");
+			options.put(DataPacket.OPTION_SOURCE, getSourceId());
+		}
+		
+		return options;
+	}
+	
+	/**
+	 * Applies the options acknowledged by the server.
+	 * The server may lower the block and window sizes but
+	 * never raise them above the requested size. If the acknowledged
+	 * options are not acceptable an error is sent to the
+	 * server and the transfer must be terminated.
+	 * @param oack - the OACK packet received from the server
+	 * @return true if the options were accepted
+	 */
+	private boolean acceptOptions(DataPacket oack) {
+		int size = getIntOption(oack, DataPacket.OPTION_BLKSIZE, DataPacket.MAX_DATA_SIZE);
+		int window = getIntOption(oack, DataPacket.OPTION_WINDOWSIZE, DataPacket.MIN_WINDOW_SIZE);
+		int rollover = getIntOption(oack, DataPacket.OPTION_ROLLOVER, 0);
+		
+		if (size < DataPacket.MIN_BLOCK_SIZE || size > requestedBlockSize
+				|| window < DataPacket.MIN_WINDOW_SIZE || window > requestedWindowSize
+				|| rollover < 0 || rollover > 1) {
+			fireErrorEvent(ERROR_OPTIONS_REFUSED);
+			buildDatagramPacket(DataParser.OPTION_NEGOTIATION_FAILED);
+			sendData();
+			return false;
+		}
+		
+		blockSize = size;
+		windowSize = window;
+		blockNumbers = BlockNumbers.forRollover(rollover);
+		
+		// A size that is not a number is ignored, it
+		// only serves the progress and the space check
+		if (direction == Direction.GET) {
+			transferSize = getLongOption(oack, DataPacket.OPTION_TSIZE);
+		}
+		
+		fireMsgEvent(INFO_OPTIONS_ACCEPTED + oack.getOptions());
+		return true;
+	}
+	
+	/**
+	 * Returns the numeric value of an option.
+	 * @param packet - the packet holding the options
+	 * @param name - the option name
+	 * @param defaultValue - returned if the option is not present
+	 * @return the value, or -1 if the value is not a number
+	 */
+	private int getIntOption(DataPacket packet, String name, int defaultValue) {
+		String value = packet.getOption(name);
+		
+		if (value == null) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns the numeric value of an option.
+	 * @param packet - the packet holding the options
+	 * @param name - the option name
+	 * @return the value, or -1 if the option is not
+	 * present or not a number
+	 */
+	private long getLongOption(DataPacket packet, String name) {
+		String value = packet.getOption(name);
+		
+		if (value == null) {
+			return -1;
+		}
+		
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Points packetOut at the byte array passed.
 	 * @param buf
 	 */
 	private void buildDatagramPacket(byte[] buf) {
-		packetOut = new DatagramPacket(buf, buf.length, serverIP, serverPort);
+		buildDatagramPacket(buf, buf.length);
+	}
+	
+	/**
+	 * Points packetOut at the first length bytes of the
+	 * array passed, addressed to the server.
+	 * @param buf
+	 * @param length
+	 */
+	private void buildDatagramPacket(byte[] buf, int length) {
+		packetOut.setData(buf, 0, length);
+		packetOut.setAddress(serverIP);
+		packetOut.setPort(serverPort);
 	}
 	
 	/**
@@ -214,12 +580,21 @@ public class Engine {
 	 * @return true or false depending on result
 	 */
 	private boolean sendData() {
+		if (cancelled) {
+			return false;
+		}
+		
 		try {
-			server.send(packetOut);
-			fireMsgEvent(INFO_CONNECTED_SUCCESS);
+			if (session != null) {
+				session.send(packetOut);
+			} else {
+				server.send(packetOut);
+			}
+			
+			metrics.packetSent();
 		} catch (IOException ex) {
 			// Set error
-			fireMsgEvent(ERROR_SENDING_PACKET);
+			fireErrorEvent(ERROR_SENDING_PACKET);
 			ex.printStackTrace();
 			return false;
 		}
@@ -227,6 +602,19 @@ public class Engine {
 		return true;
 	}
 	
+	/**
+	 * Closes the socket of the transfer, or leaves
+	 * the shared socket it was sent from. Does nothing
+	 * if it is closed already, or was never opened.
+	 */
+	private void closeSocket() {
+		if (session != null) {
+			session.close();
+		} else if (server != null) {
+			server.close();
+		}
+	}
+	
 	/**
 	 * Makes the initial request to the server and 
 	 * calls the GET or PUT process method.
@@ -236,15 +624,38 @@ public class Engine {
 		fireMsgEvent(INFO_CONNECTING_TO_SERVER);
 		
 		try {
-			server = getPort(port_range);
-			clientPort = server.getLocalPort();
+			// Bind to an ephemeral port chosen by the system. The
+			// socket stays open for the whole transfer so the
+			// server's reply cannot arrive before we listen for it.
+			// A memory mapped or cached PUT needs the socket of a
+			// channel for its gathering writes. Otherwise a shared
+			// socket of the pool is used, which needs the request to
+			// tell the server's first reply from that to another.
+			session = null;
+			
+			if ((memoryMapped || fileCache != null) && direction == Direction.PUT && mode == Mode.OCTET) {
+				channel = DatagramChannel.open();
+				channel.bind(null);
+				server = channel.socket();
+			} else if (socketPool != null
+					&& (session = socketPool.open(serverIP, direction == Direction.GET, buildOptions())) != null) {
+				server = null;
+			} else {
+				server = new DatagramSocket();
+			}
 			
-			setServerPort(SERVER_DEFAULT_PORT);
+			clientPort = session != null ? session.getLocalPort() : server.getLocalPort();
+			
+			setServerPort(port);
 			
 			try {
 				buildDatagramPacket(buildRrq(fileName, mode));
-				sendData();
-				server.close();
+				
+				// Said once for the request, not for each of the
+				// blocks or ACKs sent after it
+				if (sendData()) {
+					fireMsgEvent(INFO_CONNECTED_SUCCESS);
+				}
 				
 				if (getDirection().name().equals("GET")) {
 					processGetRequest();
@@ -253,22 +664,23 @@ public class Engine {
 				}
 			} catch (IOException ex) {
 				// Close the server connection created above
-				server.close();
+				closeSocket();
 				
 				// Set error and return
-				fireMsgEvent(ERROR_STREAMING_DATA);
+				fireErrorEvent(ERROR_STREAMING_DATA);
 				ex.printStackTrace();
 				return;
 			}
 		} catch (IOException ex) {
-			fireMsgEvent(ERROR_GETTING_SERVER_CONNECTION);
+			fireErrorEvent(ERROR_GETTING_SERVER_CONNECTION);
 			ex.printStackTrace();
 		}
 	}
 
 	/**
-	 * Copies the file to transmit to a temp file
-	 * and then sends the data in the file to the server.
+	 * Sends the file to the server, reading each block
+	 * straight from the file. Text is converted to
+	 * NETASCII while it is sent.
 	 */
 	private void processPutRequest() {
 		// Flag used to indicate when finished processing file
@@ -281,419 +693,901 @@ public class Engine {
 		// Data block received from server
 		int block;
 		
-		// Data block expected from server
-		int blockCounter = 0;
-		byte[] sendData;
-		
-		// Write file data to temporary file
 		try {
-			fin = openFile(getFileName());
-		} catch (FileNotFoundException ex) {
-			fireMsgEvent(ERROR_FILE_NOT_FOUND);
+			source = openFile(getFileName());
+		} catch (IOException ex) {
+			fireErrorEvent(ERROR_FILE_NOT_FOUND);
+			closeSocket();
 			ex.printStackTrace();
 			return;
 		}
 		
-		fireMsgEvent(INFO_READING_DATA_INTO_TEMP_FILE);
-		
-		// If transfer mode is binary then just do a straight copy
-		// of data. If we are using NETASCII then we need to convert
-		// from native format to netascii format.
+		// If we are using NETASCII the file is converted from
+		// native format to netascii format as blocks are read
+		// from it. Binary data is read from the file as it is,
+		// or sent from a memory mapping of it.
 		if (mode.equals(Mode.NETASCII)) {
-			if (convertTextFile(fin, fout, direction)) {
-				try {
-					fin.close();
-					fout.close();
-				} catch (IOException ex) {
-					fireMsgEvent(ERROR_CLOSING_FILE);
-					ex.printStackTrace();
-				}
-			} else {
-				// Failed to convert text file, so back out
-				try {
-					fin.close();
-					fout.close();
-				} catch (IOException ex) {
-					ex.printStackTrace();
-				}
-
-				return;
-			}
-		} else {
-			// Binary transfer so simply copy data to temp file
+			fireMsgEvent(INFO_CONVERTING_TO_NETASCII);
+			fin = new NetasciiInputStream(Channels.newInputStream(source));
+		} else if (channel != null) {
 			try {
-				int b = fin.read();
-				while (b != -1) {
-					fout.write(b);
-					b = fin.read();
+				mappedSize = source.size();
+				mappedPosition = 0;
+				
+				// A file too large to cache is mapped instead
+				if (fileCache != null) {
+					mapped = fileCache.get(new File(getFileName()).toPath());
+					mappedStart = 0;
+					
+					if (mapped != null) {
+						mappedSize = mapped.limit();
+						mappedView = mapped.duplicate();
+					}
 				}
 			} catch (IOException ex) {
-				fireMsgEvent(ERROR_WRITE_TO_TEMP_FILE);
+				fireErrorEvent(ERROR_STREAMING_DATA);
 				ex.printStackTrace();
-				
-				try {
-					fout.close();
-					fin.close();
-				} catch (IOException exc) {
-					fireMsgEvent(ERROR_CLOSING_FILE);
-					exc.printStackTrace();
-				}
-				
+				closeSource();
+				closeSocket();
 				return;
 			}
 		}
 		
-		fireMsgEvent(INFO_SUCCESS_DATA_IN_TEMP_FILE);
 		fireMsgEvent(INFO_SENDING_FILE_TO_SERVER);
 		
-		try {
-			server = new DatagramSocket(clientPort);
-			server.setSoTimeout(SOCKET_TIMEOUT);
-		} catch (SocketException ex) {
-			fireMsgEvent(ERROR_GETTING_SERVER_CONNECTION);
-			ex.printStackTrace();
-			return;
-		}
-		
-		if (!readData()) {
-			// readData() method has already logged message
-			server.close();
+		if (!awaitReply()) {
+			// awaitReply() method has already logged message
+			closeSocket();
+			closeSource();
 			return;
 		}
 		
 		setServerIP(packetIn.getAddress());
 		setServerPort(packetIn.getPort());
 		
-		// Read ACK
-		dpRecd = new DataPacket(packetIn.getData());
+		// Read ACK or OACK
+		dpRecd = new DataPacket(packetIn.getData(), packetIn.getLength());
 		block = dpRecd.getBlock();
 		
 		if (dpRecd.isERR()) {
 			// Error requesting op from server
-			fireMsgEvent(ERROR_SERVER_REPORTED_ERROR);
-			server.close();
+			fireErrorEvent(serverError(dpRecd));
+			closeSocket();
+			closeSource();
 			return;
 		}
 		
-		try {
-			fin = new FileInputStream(tempFile);
-		} catch (FileNotFoundException ex) {
-			fireMsgEvent(ERROR_FILE_NOT_FOUND);
-			server.close();
-			ex.printStackTrace();
+		// An OACK takes the place of the ACK for block 0
+		if (dpRecd.isOACK()) {
+			if (!acceptOptions(dpRecd) || !skipKept(dpRecd)) {
+				closeSocket();
+				closeSource();
+				return;
+			}
+			
+			block = 0;
+		} else if (blockSize != DataPacket.MAX_DATA_SIZE) {
+			fireMsgEvent(INFO_OPTIONS_IGNORED);
+			blockSize = DataPacket.MAX_DATA_SIZE;
+		}
+		
+		// At full pace a window is sent in half a round trip
+		// time, by then the ACK of the window before is on its
+		// way back and the sender rarely waits for it
+		if (congestionControl) {
+			congestion = new CongestionControl(2 * windowSize);
 		}
 		
-		// Keep processing data until we receive less than
-		// DataPacket.MAX_DATA_SIZE bytes of data
+		// The channel can only write to the server's port
+		// once it is connected to it
+		if (channel != null) {
+			try {
+				channel.connect(new InetSocketAddress(serverIP, serverPort));
+			} catch (IOException ex) {
+				fireErrorEvent(ERROR_GETTING_SERVER_CONNECTION);
+				ex.printStackTrace();
+				closeSource();
+				closeSocket();
+				return;
+			}
+		}
+		
+		metrics.enterPhase(Phase.TRANSFER);
+		
+		// Keep processing data until the server has acknowledged
+		// the last block, which holds less than blockSize bytes.
+		// Up to windowSize blocks are sent before waiting for an
+		// ACK (RFC 7440). Sent blocks are kept in the window buffer
+		// until acknowledged so they can be sent again.
+		// The time each block was sent is kept to measure the round
+		// trip time, it is cleared when the block is sent again.
+		ByteBuffer[][] window = new ByteBuffer[windowSize][];
+		long[] sentAt = new long[windowSize];
+		int windowStart = block + 1;	// First block not yet acknowledged
+		int nextBlock = windowStart;	// Next block to read from the file
+		int lastBlock = -1;				// Set once the last block has been read
+		int resentAfter = -1;			// Last duplicate ACK answered with a resend
+		
 		running = true;
 		retry = 0;			// Clear the entry counter
 		
 		while (running) {
-			// If we do not receive the expect block then re-send
-			// the last packet of data, otherwise send the next
-			// packet of data.
-			if (block == blockCounter) {
-				blockCounter++;
+			// Fill the window with new blocks of data
+			while (lastBlock < 0 && nextBlock < windowStart + windowSize) {
+				int slot = nextBlock % windowSize;
+				
+				if (window[slot] == null) {
+					window[slot] = newPacket();
+				}
+				
+				int dataLength;
 				
-				// Load next block of data
 				try {
-					retry = 0;
-					sendData = buildData(blockCounter);
-					buildDatagramPacket(sendData);
-					
-					// Check to see if we are sending data
-					// of length DataPacket.MAX_DATA_SIZE.
-					// Note we add 4 bytes because the packet has
-					// Op code and block added to it.
-					// If less than DataPacket.MAX_DATA_SIZE then
-					// this is the last packet of data.
-					if (sendData.length < DataPacket.MAX_DATA_SIZE + 4) {
-						running = false;
-					}
+					dataLength = fillPacket(window[slot], nextBlock);
 				} catch (IOException ex) {
-					running = false;
-					fireMsgEvent(ERROR_STREAMING_DATA);
+					fireErrorEvent(ERROR_STREAMING_DATA);
 					ex.printStackTrace();
 					
-					try {
-						fin.close();
-					} catch (IOException exc) {
-						fireMsgEvent(ERROR_CLOSING_FILE);
-						exc.printStackTrace();
-					}
-					
-					server.close();
+					closeSource();
+					closeSocket();
 					return;
 				}
-			} else {
-				retry++;
 				
-				if (retry >= 3) {
-					running = false;
+				// If less than blockSize then
+				// this is the last packet of data.
+				if (dataLength < blockSize) {
+					lastBlock = nextBlock;
+				}
+				
+				if (digest != null) {
+					digestData(window[slot], dataLength);
 				}
+				
+				addBytes(dataLength);
+				sendPacket(window[slot]);
+				sentAt[slot] = System.nanoTime();
+				nextBlock++;
 			}
 			
-			// Send block of data 
-			sendData();
-			readData();
+			if (!readData()) {
+				if (cancelled) {
+					fireErrorEvent(INFO_TRANSFER_CANCELLED);
+					break;
+				}
+				
+				// Nothing heard from the server so
+				// send every unacknowledged block again
+				if (++retry >= maxRetries) {
+					fireErrorEvent(ERROR_RETRIES_EXCEEDED);
+					break;
+				}
+				
+				backoff();
+				
+				if (congestion != null) {
+					congestion.timedOut();
+				}
+				
+				resendWindow(window, sentAt, windowStart, nextBlock);
+				continue;
+			}
 			
-			dpRecd = new DataPacket(packetIn.getData());
-			block = dpRecd.getBlock();
+			int opCode = PacketCodec.getOpCode(packetIn.getData(), packetIn.getLength());
 			
-			if (dpRecd.isERR()) {
-				fireMsgEvent(ERROR_SERVER_REPORTED_ERROR);
-				running = false;
+			if (opCode == PacketCodec.OP_ERR) {
+				dpRecd = new DataPacket(packetIn.getData(), packetIn.getLength());
+				fireErrorEvent(serverError(dpRecd));
+				break;
+			}
+			
+			if (opCode != PacketCodec.OP_ACK) {
+				continue;
+			}
+			
+			// Acknowledged blocks before the window are of no
+			// interest, the wire number is taken to be at or after
+			// the last block acknowledged
+			int wire = PacketCodec.getBlock(packetIn.getData(), packetIn.getLength());
+			
+			if (wire < 0) {
+				continue;
+			}
+			
+			block = blockNumbers.fromWire(wire, windowStart - 1);
+			
+			if (block >= windowStart && block < nextBlock) {
+				// Only a block sent once gives an unambiguous
+				// round trip time (Karn's rule)
+				long sent = sentAt[block % windowSize];
+				
+				if (sent != 0) {
+					sampleRtt(System.nanoTime() - sent);
+				}
+				
+				if (congestion != null) {
+					congestion.acknowledged(block - windowStart + 1, rtt.getSmoothedRtt());
+				}
+				
+				// Slide the window past the acknowledged block
+				windowStart = block + 1;
+				retry = 0;
+				fireProgressEvent(block);
+				
+				if (block == lastBlock) {
+					complete = true;
+					running = false;
+				}
+			} else if (block == windowStart - 1 && block != resentAfter && windowSize > 1) {
+				// The server acknowledged the last block it received
+				// in order, the blocks after it have to be sent again.
+				// Only the first such ACK is answered, the server sends
+				// one for every block of the window it received out of
+				// order. In lock-step mode duplicate ACKs are ignored
+				// and the timeout resends the block instead, answering
+				// them would double every packet from then on.
+				if (congestion != null) {
+					congestion.lost();
+				}
+				
+				resendWindow(window, sentAt, windowStart, nextBlock);
+				resentAfter = block;
 			}
 		}
 		
-		fireMsgEvent(INFO_SUCCESS_TRANSFER_COMPLETE);
-		server.close();
+		metrics.enterPhase(Phase.FINISH);
+		
+		// The server has the file by now, a local file that
+		// does not match only fails the transfer
+		if (complete && !verifyDigest()) {
+			complete = false;
+		}
 		
+		if (complete) {
+			fireMsgEvent(INFO_SUCCESS_TRANSFER_COMPLETE);
+		}
+		closeSocket();
+		closeSource();
+	}
+	
+	/**
+	 * Closes the file the data sent to the server is read from.
+	 */
+	private void closeSource() {
 		try {
-			fin.close();
+			source.close();
 		} catch (IOException ex) {
-			fireMsgEvent(ERROR_CLOSING_FILE);
+			fireErrorEvent(ERROR_CLOSING_FILE);
 			ex.printStackTrace();
 		}
 	}
 
 
 	/**
-	 * Reads in data from server writes to temp file
-	 * then renames temp file to target file name
+	 * Sends the unacknowledged blocks held in the
+	 * window buffer to the server again.
+	 * @param window - the sent blocks, indexed by block modulo window size
+	 * @param sentAt - the time each block was sent, cleared for the blocks sent again
+	 * @param from - the first unacknowledged block
+	 * @param to - the block after the last block sent
 	 */
-	private void processGetRequest() {
-		boolean running = true;
+	private void resendWindow(ByteBuffer[][] window, long[] sentAt, int from, int to) {
+		for (int i = from; i < to; i++) {
+			sendPacket(window[i % window.length]);
+			sentAt[i % window.length] = 0;
+			countRetransmit();
+		}
+	}
+	
+	/**
+	 * Adds the data of a new block to the digest. A memory
+	 * mapped payload is rewound when it is sent.
+	 * @param packet - the buffers of the slot
+	 * @param dataLength - the number of data bytes in the message
+	 */
+	private void digestData(ByteBuffer[] packet, int dataLength) {
+		if (channel != null) {
+			digest.update(packet[1]);
+		} else {
+			digest.update(packet[0].array(), PacketCodec.HEADER_SIZE, dataLength);
+		}
+	}
+	
+	/**
+	 * Takes the digest of a complete transfer and checks
+	 * it against the digest expected, if there is one.
+	 * @return false if the data does not match
+	 */
+	private boolean verifyDigest() {
+		if (digest != null) {
+			digestValue = digest.getValue();
+			fireMsgEvent(INFO_DIGEST + digestValue);
+		}
 		
-		try {
-			server = new DatagramSocket(clientPort);
-			server.setSoTimeout(SOCKET_TIMEOUT);
-		} catch (SocketException ex) {
-			fireMsgEvent(ERROR_GETTING_SERVER_CONNECTION);
-			ex.printStackTrace();
-			return;
+		if (expectedDigest == null) {
+			return true;
 		}
 		
-		fireMsgEvent(INFO_READING_FILE_FROM_SERVER);
-		if (!readData()) {
-			// Error msg set in readData so just return
-			server.close();
-			return;
+		if (digestValue == null) {
+			fireErrorEvent(ERROR_DIGEST_TEXT);
+			return false;
 		}
 		
-		setServerIP(packetIn.getAddress());
-		setServerPort(packetIn.getPort());
+		if (!Digest.matches(digestValue, expectedDigest)) {
+			fireErrorEvent(ERROR_DIGEST_MISMATCH + expectedDigest);
+			return false;
+		}
 		
-		DataPacket dpRecd;
+		return true;
+	}
+	
+	/**
+	 * Creates the buffers for one slot of the window. A data
+	 * message read from the file is a single buffer, a memory
+	 * mapped one is a header buffer followed by a slice of the
+	 * mapping.
+	 * @return the buffers making up a data message
+	 */
+	private ByteBuffer[] newPacket() {
+		if (channel != null) {
+			return new ByteBuffer[] { ByteBuffer.allocate(PacketCodec.HEADER_SIZE), null };
+		}
 		
-		while (running) {
-			if (packetIn.getLength() < DataPacket.MAX_DATA_SIZE + 4) {
-				ByteArrayOutputStream tempOutputStream = new ByteArrayOutputStream();
-				
-				if (packetIn.getLength() > 0) {
-					try {
-						tempOutputStream.write(Arrays.copyOf(packetIn.getData(), packetIn.getLength()));
-					} catch (IOException ex) {
-						fireMsgEvent(ERROR_STREAMING_DATA);
-						server.close();
-						ex.printStackTrace();
-						return;
-					}
-				}
-				
-				dpRecd = new DataPacket(tempOutputStream.toByteArray());
-			} else {
-				dpRecd = new DataPacket(packetIn.getData());
+		return new ByteBuffer[] { ByteBuffer.allocate(blockSize + 4) };
+	}
+	
+	/**
+	 * Builds the next data message in the buffers of a window slot.
+	 * @param packet - the buffers of the slot
+	 * @param counter
+	 * @return the number of data bytes in the message
+	 * @throws IOException
+	 */
+	private int fillPacket(ByteBuffer[] packet, int counter) throws IOException {
+		if (channel != null) {
+			mapData(packet, counter);
+			return packet[1].remaining();
+		}
+		
+		buildData(packet[0], counter);
+		return packet[0].limit() - PacketCodec.HEADER_SIZE;
+	}
+	
+	/**
+	 * Waits until the rate limits, and the pacing of the
+	 * congestion window, allow a datagram to be sent.
+	 * @param bytes - the size of the datagram
+	 */
+	private void pace(int bytes) {
+		long wait = rateLimiter != null ? rateLimiter.reserve(bytes) : 0;
+		
+		for (TokenBucket limiter : rateLimiters) {
+			wait = Math.max(wait, limiter.reserve(bytes));
+		}
+		
+		if (congestion != null) {
+			long now = System.nanoTime();
+			
+			wait = Math.max(wait, nextSendAt - now);
+			nextSendAt = Math.max(now, nextSendAt) + congestion.getPacingInterval(rtt.getSmoothedRtt());
+		}
+		
+		TokenBucket.park(wait);
+	}
+	
+	/**
+	 * Sends a data message held in the buffers of a window slot.
+	 * @param packet - the buffers of the slot
+	 * @return true or false depending on result
+	 */
+	private boolean sendPacket(ByteBuffer[] packet) {
+		pace(packet[0].limit() + (packet.length > 1 ? packet[1].limit() : 0));
+		
+		if (channel == null) {
+			buildDatagramPacket(packet[0].array(), packet[0].limit());
+			return sendData();
+		}
+		
+		if (cancelled) {
+			return false;
+		}
+		
+		// Header and payload are gathered into one datagram
+		packet[0].rewind();
+		packet[1].rewind();
+		
+		try {
+			channel.write(packet);
+			metrics.packetSent();
+		} catch (IOException ex) {
+			fireErrorEvent(ERROR_SENDING_PACKET);
+			ex.printStackTrace();
+			return false;
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Reads in data from server writes to temp file
+	 * then renames temp file to target file name.
+	 * Text is converted from NETASCII as it is written.
+	 */
+	private void processGetRequest() {
+		boolean running = true;
+		
+		if (mode.equals(Mode.NETASCII)) {
+			fireMsgEvent(INFO_CONVERTING_FILE_FROM_NETASCII);
+			fout = new NetasciiOutputStream(Channels.newOutputStream(target));
+		}
+		
+		fireMsgEvent(INFO_READING_FILE_FROM_SERVER);
+		if (!awaitReply()) {
+			// Error msg set in awaitReply so just return
+			closeSocket();
+			return;
+		}
+		
+		setServerIP(packetIn.getAddress());
+		setServerPort(packetIn.getPort());
+		
+		DataPacket dpRecd = new DataPacket(packetIn.getData(), packetIn.getLength());
+		
+		// Acknowledge the options with block 0 and
+		// wait for the first block of data
+		if (dpRecd.isOACK()) {
+			if (!acceptOptions(dpRecd) || !acceptOffset(dpRecd) || !reserveSpace()) {
+				closeSocket();
+				return;
+			}
+			
+			buildDatagramPacket(buildAck(0));
+			
+			if (!sendData() || !awaitReply()) {
+				closeSocket();
+				return;
+			}
+		} else {
+			if (blockSize != DataPacket.MAX_DATA_SIZE) {
+				fireMsgEvent(INFO_OPTIONS_IGNORED);
+				blockSize = DataPacket.MAX_DATA_SIZE;
+			}
+			
+			// An error keeps the partial file for the next attempt
+			if (!dpRecd.isERR() && !acceptOffset(null)) {
+				closeSocket();
+				return;
 			}
+		}
+		
+		metrics.enterPhase(Phase.TRANSFER);
+		
+		// Blocks are written in order. Only the last block of
+		// each window of windowSize blocks is acknowledged (RFC 7440),
+		// a block out of order is answered with an ACK for the last
+		// block received in order so the server resends from there.
+		int expectedBlock = 1;
+		int outOfOrderBlock = -1;
+		int windowCount = 0;
+		int retry = 0;
+		
+		// Time the last ACK was sent, to measure the round trip
+		// time to the block it asks for. Cleared when the ACK is
+		// sent again or the block may have been sent again.
+		long ackSentAt = 0;
+		
+		while (running) {
+			// Read the header in place, the payload is
+			// written straight from the receive buffer
+			byte[] packet = packetIn.getData();
+			int length = packetIn.getLength();
+			int opCode = PacketCodec.getOpCode(packet, length);
+			int wire = PacketCodec.getBlock(packet, length);
+			int block = wire < 0 ? BlockNumbers.NO_BLOCK : blockNumbers.fromWire(wire, expectedBlock);
 			
-			if (dpRecd.isERR()) {
+			if (opCode == PacketCodec.OP_ERR) {
 				// Set error and return
 				running = false;
+				dpRecd = new DataPacket(packet, length);
 				
 				// Output the reason for the error
-				fireMsgEvent(ERROR_SERVER_REPORTED_ERROR + " : " + dpRecd.getErrCode() + " - " + dpRecd.getErrorMsg());
+				fireErrorEvent(serverError(dpRecd));
 				return;
-			} else {
-				if (dpRecd.getData().length < DataPacket.MAX_DATA_SIZE) {
+			}
+			
+			boolean sendAck = false;
+			
+			if (opCode == PacketCodec.OP_DATA && block == expectedBlock) {
+				// Anything beyond the block size is not data
+				int dataLength = Math.min(length - PacketCodec.HEADER_SIZE, blockSize);
+				
+				if (dataLength < blockSize) {
 					// End of file reached
 					running = false;
+					complete = true;
+				}
+				
+				// The bytes asked for again have to match the end
+				// of the partial file, they are not written again
+				int kept = Math.min(overlap, dataLength);
+				
+				if (overlap > 0 && !matchesKept(packet, kept)) {
+					running = false;
+					complete = false;
+					fireErrorEvent(ERROR_FILE_CHANGED);
+					buildDatagramPacket(DataParser.TRANSFER_STOPPED);
+					sendData();
+					
+					// Nothing of it is worth resuming from
+					checkpoint.delete();
+					checkpoint = null;
+					break;
 				}
 				
 				try {
-					fout.write(Arrays.copyOf(dpRecd.getData(), dpRecd.getData().length));
+					writeData(packet, kept, dataLength - kept);
 				} catch (IOException ex) {
 					running = false;
 					
 					// Set error and return
-					fireMsgEvent(ERROR_STREAMING_DATA);
-					server.close();
+					fireErrorEvent(ERROR_STREAMING_DATA);
+					closeSocket();
 					ex.printStackTrace();
 					return;
 				}
+				
+				if (ackSentAt != 0) {
+					sampleRtt(System.nanoTime() - ackSentAt);
+					ackSentAt = 0;
+				}
+				
+				addBytes(dataLength - kept);
+				
+				// The server sends no faster than the
+				// blocks received are acknowledged
+				pace(length);
+				
+				if (checkpoint != null && resumeOffset + bytesTransferred - checkpointedAt >= CHECKPOINT_INTERVAL) {
+					saveCheckpoint();
+				}
+				
+				expectedBlock++;
+				outOfOrderBlock = -1;
+				retry = 0;
+				sendAck = complete || ++windowCount == windowSize;
+			} else {
+				// Only the first block out of order is answered, the
+				// rest of its window follows it. The same block arrives
+				// again when the server sends that window again.
+				if (outOfOrderBlock < 0) {
+					outOfOrderBlock = block;
+				}
+				
+				sendAck = block == outOfOrderBlock;
+				ackSentAt = 0;
 			}
 			
-			buildDatagramPacket(buildAck(dpRecd.getBlock()));
-			
-			if (!sendData()) {
-				running = false;
+			if (sendAck) {
+				windowCount = 0;
+				buildDatagramPacket(buildAck(expectedBlock - 1));
+				
+				if (!sendData()) {
+					running = false;
+				}
+				
+				ackSentAt = outOfOrderBlock < 0 ? System.nanoTime() : 0;
+				fireProgressEvent(expectedBlock - 1);
 			}
 			
-			if (running) {
-				if (!readData()) {
+			// Wait for the next block, acknowledging the last
+			// block received in order again if nothing arrives
+			while (running && !readData()) {
+				if (cancelled) {
+					fireErrorEvent(INFO_TRANSFER_CANCELLED);
+					running = false;
+				} else if (++retry >= maxRetries) {
+					fireErrorEvent(ERROR_RETRIES_EXCEEDED);
 					running = false;
+				} else {
+					backoff();
+					windowCount = 0;
+					ackSentAt = 0;
+					buildDatagramPacket(buildAck(expectedBlock - 1));
+					sendData();
+					countRetransmit();
 				}
 			}
 		}
 		
+		metrics.enterPhase(Phase.FINISH);
+		
 		// Close the file
 		try {
-			fout.close();
+			if (fout != null) {
+				fout.close();
+			} else if (complete) {
+				// Drop what was reserved beyond the data received
+				target.truncate(target.position());
+			}
+			
+			target.close();
 		} catch (IOException ex) {
-			fireMsgEvent(ERROR_CLOSING_FILE);
+			fireErrorEvent(ERROR_CLOSING_FILE);
 			ex.printStackTrace();
 		}
 		
-		server.close();
-		fireMsgEvent(INFO_SUCCESS_READING_FILE);
+		closeSocket();
 		
-		File tempFile2 = null;
-		if (mode.equals(Mode.NETASCII)) {
-
-			fireMsgEvent(INFO_CONVERTING_FILE_FROM_NETASCII);
-			
-			// Convert temp file from NETASCII to local system ascii.
-			// Write data to temp file
-			try {
-				fin = new FileInputStream(tempFile);
-			} catch (FileNotFoundException ex) {
-				fireMsgEvent(ERROR_FILE_NOT_FOUND);
-				ex.printStackTrace();
-				return;
-			}
+		if (!complete) {
+			// Leave the target file untouched, the
+			// temp file is deleted by writeTempFile
+			return;
+		}
+		
+		if (!verifyDigest()) {
+			// Nothing of it is worth resuming from, the
+			// partial file goes with the checkpoint
+			complete = false;
 			
-			try {
-				tempFile2 = getTempFile(new File(fileName));
-				fout = new FileOutputStream(tempFile2);
-				convertTextFile(fin, fout, getDirection());
-				
-				fout.close();
-				fin.close();
-			} catch (IOException ex) {
-				// Set error and return
-				fireMsgEvent(ERROR_WRITING_FILE);
-				ex.printStackTrace();
-				return;
+			if (checkpoint != null) {
+				checkpoint.delete();
+				checkpoint = null;
 			}
 			
-			fireMsgEvent(INFO_SUCCESS_FILE_CONVERTED);
-		} else {
-			tempFile2 = tempFile;
+			return;
 		}
 		
-		// Rename temp file
+		fireMsgEvent(INFO_SUCCESS_READING_FILE);
+		
+		// Rename temp file, replacing the target in one step
 		fireMsgEvent(INFO_RENAMING_FILE);
-		tempFile2.renameTo(new File(fileName));
+		
+		try {
+			Files.move(tempFile.toPath(), new File(fileName).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			complete = false;
+			fireErrorEvent(ERROR_WRITING_FILE);
+			ex.printStackTrace();
+			return;
+		}
+		
 		fireMsgEvent(INFO_SUCCESS_TRANSFER_COMPLETE);
 	}
 	
 	/**
-	 * Build an ACK message
-	 * @param counter
-	 * @return byte array containing ACK message
+	 * Makes sure a file of the size the server announced fits
+	 * on the disk before any of it is received, so that a full
+	 * disk fails the request rather than the end of a long
+	 * transfer. The server is sent an error if it does not fit.
+	 * 
+	 * A binary temp file is extended to its final size at once,
+	 * where the file system allocates on extension it is laid
+	 * out in one piece. Where it keeps the file sparse nothing
+	 * is lost, the blocks are written in order all the same.
+	 * @return true if the transfer may go on
 	 */
-	private byte[] buildAck(int counter) {
-		byte[] header = new byte[4];
+	private boolean reserveSpace() {
+		if (transferSize <= 0) {
+			return true;
+		}
 		
-		// ACK is "04"
-		header[0] = 0x00;
-		header[1] = 0x04;
+		fireMsgEvent(INFO_TRANSFER_SIZE + transferSize);
 		
-		// Should really throw an error if counter
-		// exceeds 4 bytes, 65535
-		if (counter < 256) {
-			header[2] = 0x00;
-			header[3] = Integer.valueOf(counter).byteValue();
-		} else {
-			header[2] = Integer.valueOf((counter & 0xFF00) >> 8).byteValue();
-			header[3] = Integer.valueOf(counter).byteValue();
+		try {
+			if (transferSize - resumeOffset > Files.getFileStore(tempFile.toPath()).getUsableSpace()) {
+				fireErrorEvent(ERROR_DISK_FULL);
+				buildDatagramPacket(DataParser.DISK_FULL);
+				sendData();
+				return false;
+			}
+			
+			// Text shrinks as it is converted
+			if (fout == null) {
+				target.write(ByteBuffer.allocate(1), transferSize - 1);
+			}
+		} catch (IOException ex) {
+			// The transfer fails once the disk is full instead
+			ex.printStackTrace();
 		}
 		
-		return header;
+		return true;
+	}
+	
+	/**
+	 * Build an ACK message in the reusable ACK buffer
+	 * @param counter
+	 * @return byte array containing ACK message
+	 */
+	private byte[] buildAck(int counter) {
+		PacketCodec.putAck(ackPacket, blockNumbers.toWire(counter));
+		return ackPacket;
 	}
 
 	/**
-	 * Creates and returns a FileInputStream
-	 * from a filename.
+	 * Opens a file for reading and returns
+	 * its FileChannel.
 	 * @param filename
 	 * @return
-	 * @throws FileNotFoundException
+	 * @throws IOException
 	 */
-	private FileInputStream openFile(String filename) throws FileNotFoundException {
-		return new FileInputStream(filename);
+	private FileChannel openFile(String filename) throws IOException {
+		return FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ);
 	}
 	
 	/**
-	 * Converts between netascii and local system ascii.
-	 * Uses direction to determine which way the conversion should be.
-	 * The source file is the starting position and the target file the result.
-	 * Required because Mac, Windows and Unix systems use different End Of Line terminators.
-	 * @param source
-	 * @param target
-	 * @param direction
-	 * @return true or false
+	 * Writes the data of a received block to the
+	 * temp file, converting text as it goes.
+	 * @param packet - the received DATA packet
+	 * @param skip - the number of data bytes to leave out
+	 * @param dataLength - the number of data bytes after those
+	 * @throws IOException
 	 */
-	private boolean convertTextFile(FileInputStream source, FileOutputStream target, Direction direction) {
-		fireMsgEvent(INFO_CONVERTING_TO_NETASCII);
+	private void writeData(byte[] packet, int skip, int dataLength) throws IOException {
+		int offset = PacketCodec.HEADER_SIZE + skip;
+		
+		if (fout != null) {
+			fout.write(packet, offset, dataLength);
+			return;
+		}
+		
+		if (checkpoint != null) {
+			checksum.update(packet, offset, dataLength);
+		}
 		
-		DataInputStream dataIn = new DataInputStream(source);
-		BufferedReader bufferIn = new BufferedReader(new InputStreamReader(dataIn));
+		if (digest != null) {
+			digest.update(packet, offset, dataLength);
+		}
 		
-		// Get a stream to write to the normalized file
-		DataOutputStream dataOut = new DataOutputStream(target);
-		BufferedWriter bufferOut = new BufferedWriter(new OutputStreamWriter(dataOut));
+		ByteBuffer data = ByteBuffer.wrap(packet, offset, dataLength);
 		
-		String eol = null;
-		if (direction.equals(Direction.GET)) {
-			eol = DataParser.SYSTEM_STRING_EOL;
-		} else if (direction.equals(Direction.PUT)) {
-			eol = DataParser.TFTP_STRING_EOL;
+		while (data.hasRemaining()) {
+			target.write(data);
 		}
+	}
+	
+	/**
+	 * Compares the start of a received block with the end of
+	 * the partial file of a resumed GET, which was asked for
+	 * again. A file that ends before it has changed as well.
+	 * @param packet - the received DATA packet
+	 * @param length - the number of data bytes to compare
+	 * @return true if they match the partial file
+	 */
+	private boolean matchesKept(byte[] packet, int length) {
+		ByteBuffer kept = ByteBuffer.allocate(length);
 		
-		// For each line in the source file
-		String line;
 		try {
-			while ((line = bufferIn.readLine()) != null) {
-				// Write the original line plus the newline marker
-				bufferOut.write(line);
-				bufferOut.write(eol);	// Write EOL marker
-			}
+			long position = resumeOffset - overlap;
 			
-			// Close buffered reader & writer
-			bufferIn.close();
-			bufferOut.close();
+			while (kept.hasRemaining()) {
+				if (target.read(kept, position + kept.position()) < 0) {
+					return false;
+				}
+			}
 		} catch (IOException ex) {
-			fireMsgEvent(ERROR_WRITE_TO_TEMP_FILE);
 			ex.printStackTrace();
 			return false;
 		}
 		
-		fireMsgEvent(INFO_CONVERTED_TO_NETASCII);
+		overlap -= length;
+		
+		return kept.flip().equals(ByteBuffer.wrap(packet, PacketCodec.HEADER_SIZE, length))
+				&& !(complete && overlap > 0);
+	}
+	
+	/**
+	 * Waits for the reply to the packet in packetOut, sending
+	 * it again each time the retransmit timeout expires.
+	 * @return true if a reply was received
+	 */
+	private boolean awaitReply() {
+		long sent = System.nanoTime();
+		int retry = 0;
+		
+		while (!readData()) {
+			if (cancelled) {
+				fireErrorEvent(INFO_TRANSFER_CANCELLED);
+				return false;
+			}
+			
+			if (++retry >= maxRetries) {
+				fireErrorEvent(ERROR_RETRIES_EXCEEDED);
+				return false;
+			}
+			
+			backoff();
+			
+			if (!sendData()) {
+				return false;
+			}
+			
+			countRetransmit();
+		}
+		
+		// A reply to a packet sent more than once
+		// cannot be timed (Karn's rule)
+		if (retry == 0) {
+			sampleRtt(System.nanoTime() - sent);
+		}
+		
 		return true;
 	}
 	
+	/**
+	 * Adds data bytes sent or received to the totals.
+	 * @param count
+	 */
+	private void addBytes(int count) {
+		bytesTransferred += count;
+		metrics.addBytes(count);
+	}
+	
+	/**
+	 * Counts a packet sent again.
+	 */
+	private void countRetransmit() {
+		retransmits++;
+		metrics.retransmit();
+	}
+	
+	/**
+	 * Doubles the retransmit timeout after it expired.
+	 */
+	private void backoff() {
+		rtt.backoff();
+		metrics.timeout();
+	}
+	
+	/**
+	 * Feeds a round trip time to the retransmit timeout.
+	 * @param nanos
+	 */
+	private void sampleRtt(long nanos) {
+		rtt.sample(nanos);
+		metrics.rtt(nanos);
+	}
+	
+	/**
+	 * @return the size of the largest packet the server may send
+	 */
+	private int receiveSize() {
+		return Math.max(blockSize, DataPacket.MAX_DATA_SIZE) + PacketCodec.HEADER_SIZE;
+	}
+	
 	/**
 	 * Reads a packet of data from the server.
 	 * @return boolean
 	 */
 	private boolean readData() {
-		byte[] buf = new byte[DataPacket.MAX_DATA_SIZE + 4];
-		packetIn = new DatagramPacket(buf, buf.length);
+		if (cancelled) {
+			return false;
+		}
+		
+		// A receive shortens the packet to the datagram received,
+		// it is reset to take a whole block into the buffer again
+		packetIn.setData(receiveBuffer, 0, receiveSize());
 		
 		try {
-			server.receive(packetIn);
+			if (session != null) {
+				session.receive(packetIn, rtt.getTimeout());
+			} else {
+				server.setSoTimeout(rtt.getTimeout());
+				server.receive(packetIn);
+			}
+			
+			metrics.packetReceived();
+		} catch (SocketTimeoutException ex) {
+			// Nothing arrived within the retransmit
+			// timeout, the caller decides what to resend
+			return false;
 		} catch (IOException ex) {
+			// The socket is closed when the transfer is cancelled
+			if (cancelled) {
+				return false;
+			}
+			
 			// Set error
-			fireMsgEvent(ERROR_READING_PACKET);
+			fireErrorEvent(ERROR_READING_PACKET);
 			ex.printStackTrace();
 			return false;
 		}
@@ -702,64 +1596,85 @@ public class Engine {
 	}
 	
 	/**
-	 * Builds a byte array containing data from the source file.
+	 * Builds a data message in place, reading the
+	 * next block from the source file straight into
+	 * the packet after the header.
+	 * @param packet - buffer of blockSize + 4 bytes,
+	 * flipped ready to send on return
 	 * @param counter
-	 * @return byte array containing data message
 	 * @throws IOException
 	 */
-	private byte[] buildData(int counter) throws IOException {
-		byte[] data = new byte[DataPacket.MAX_DATA_SIZE];
-		byte[] header = new byte[4];
-		int bytesRead;
-		
-		// DATA is "03"
-		header[0] = 0x00;
-		header[1] = 0x03;
+	private void buildData(ByteBuffer packet, int counter) throws IOException {
+		PacketCodec.putDataHeader(packet, blockNumbers.toWire(counter));
 		
-		// Should really throw an eror if counter exceeds 4 bytes, 65,535
-		if (counter < 256) {
-			header[2] = 0x00;
-			header[3] = Integer.valueOf(counter).byteValue();
+		// A read may return less than asked for, keep reading
+		// until the block is full or the end of file is reached.
+		// When the file size is a multiple of blockSize the
+		// last block holds no data.
+		if (fin != null) {
+			int count;
+			
+			while (packet.hasRemaining()
+					&& (count = fin.read(packet.array(), packet.position(), packet.remaining())) > 0) {
+				packet.position(packet.position() + count);
+			}
 		} else {
-			header[2] = Integer.valueOf((counter & 0xFF00) >> 8).byteValue();
-			header[3] = Integer.valueOf(counter).byteValue();
+			while (packet.hasRemaining() && source.read(packet) > 0) {
+				// Keep reading
+			}
 		}
 		
-		// Request to read from the file the number of bytes in 'data'
-		// Find out how many bytes were actually read, 
-		// may be less than size of data.
-		bytesRead = fin.read(data);
-		
-		// Use the output stream to concatenate the two byte arrays
-		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-		outputStream.write(header);
-		
-		// Only write the number of bytes read.
-		// The rest of data is filled with NULL.
-		outputStream.write(data, 0, bytesRead);
+		packet.flip();
+	}
+
+	/**
+	 * Builds a data message from the memory mapped or cached
+	 * source file. The payload is a slice of the mapping, so the
+	 * data is not copied until the write hands it to the socket.
+	 * The file is mapped in regions of whole blocks, a new
+	 * region is mapped when a block lies beyond the current one.
+	 * @param packet - header buffer and payload slice
+	 * @param counter
+	 * @throws IOException
+	 */
+	private void mapData(ByteBuffer[] packet, int counter) throws IOException {
+		int length = (int) Math.min(blockSize, mappedSize - mappedPosition);
 		
-		// Convert output stream into byte array.
-		byte[] result = outputStream.toByteArray();
+		if (mapped == null || mappedPosition + length > mappedStart + mapped.capacity()) {
+			long regionSize = (long) (Integer.MAX_VALUE / blockSize) * blockSize;
+			
+			mappedStart = mappedPosition;
+			mapped = source.map(FileChannel.MapMode.READ_ONLY, mappedStart,
+					Math.min(regionSize, mappedSize - mappedStart));
+			mappedView = mapped.duplicate();
+		}
 		
-		outputStream.close();
+		int offset = (int) (mappedPosition - mappedStart);
+		mappedView.limit(offset + length).position(offset);
 		
-		return result;		
+		PacketCodec.putDataHeader(packet[0], blockNumbers.toWire(counter)).flip();
+		packet[1] = mappedView.slice();
+		mappedPosition += length;
 	}
 
 	/**
-	 * Creates a temporary file to write to.
+	 * Creates a temporary file to receive into.
 	 */
 	private void writeTempFile() {
 		// Create file
 		fireMsgEvent(INFO_CREATING_TEMP_FILE);
 		
 		try {
-			tempFile = getTempFile(new File(fileName));
-			fout = new FileOutputStream(tempFile);
+			if (resumable && mode == Mode.OCTET) {
+				openPartialFile();
+			} else {
+				tempFile = getTempFile(new File(fileName));
+				target = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+			}
 		} catch (IOException ex) {
 			// Set error and return
 			ex.printStackTrace();
-			fireMsgEvent(ERROR_WRITING_FILE);
+			fireErrorEvent(ERROR_WRITING_FILE);
 			return;
 		}
 		
@@ -767,42 +1682,251 @@ public class Engine {
 		
 		// Close file
 		try {
-			fout.close();
+			target.close();
 		} catch (IOException ex) {
 			// Set error
-			fireMsgEvent(ERROR_CLOSING_FILE);
+			fireErrorEvent(ERROR_CLOSING_FILE);
 			ex.printStackTrace();
 		}
 		
-		fireMsgEvent(INFO_DELETING_TEMP_FILE);
-		tempFile.delete();
+		if (checkpoint != null) {
+			if (!complete && resumeOffset + bytesTransferred > 0) {
+				// Keep the partial file for the next attempt
+				saveCheckpoint();
+				return;
+			}
+			
+			checkpoint.delete();
+		}
+		
+		// Left behind if the transfer did not complete
+		if (tempFile.exists()) {
+			fireMsgEvent(INFO_DELETING_TEMP_FILE);
+			tempFile.delete();
+		}
 	}
 
 	/**
-	 * Creates a temporary filename.
-	 * Temporary file names are used to convert
-	 * NETASCII files into TFTP standard before
-	 * transmitting and to receive files from
-	 * server before renaming to final name.
-	 * @param source - java.io.File
-	 * @return java.io.File
+	 * Opens the partial file of a resumable GET, and finds how
+	 * much of it can be kept from the checkpoint of the last
+	 * attempt. The partial file is checked against the CRC-32
+	 * in the checkpoint before it is trusted.
 	 * @throws IOException
 	 */
-	protected File getTempFile(File source) throws IOException {
-		File temp = File.createTempFile("xxx-", "tmp");
+	private void openPartialFile() throws IOException {
+		checkpoint = new Checkpoint(new File(fileName));
+		tempFile = checkpoint.getPartialFile();
+		target = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
 		
-		return temp;
-	}
+		resumeOffset = checkpoint.resume(fileName, target, checksum, digest);
+		checkpointedAt = resumeOffset;
+		target.position(resumeOffset);
+		overlap = (int) Math.min(resumeOffset, requestedBlockSize);
+		
+		if (resumeOffset > 0) {
+			fireMsgEvent(INFO_RESUMING + resumeOffset);
+		}
+	}
+	
+	/**
+	 * Checks that the server resumes a GET from the offset asked
+	 * for, and that the file has the size it had when the partial
+	 * file was received. A server that does not know the option
+	 * sends the file from the start, which is then received from
+	 * the start. A file that changed size cannot be resumed, the
+	 * server is sent an error and the partial file is dropped.
+	 * One of the same size is only caught by the bytes asked for
+	 * again before the offset, see matchesKept, or by the digest
+	 * expected once complete.
+	 * @param oack - the OACK, or null if the server sent data at once
+	 * @return false if the transfer has to be stopped
+	 */
+	private boolean acceptOffset(DataPacket oack) {
+		if (resumeOffset == 0) {
+			return true;
+		}
+		
+		if (oack == null || getLongOption(oack, DataPacket.OPTION_OFFSET) != resumeOffset - overlap) {
+			fireMsgEvent(INFO_RESUME_REFUSED);
+			resumeOffset = 0;
+			checkpointedAt = 0;
+			overlap = 0;
+			checksum.reset();
+			
+			if (digest != null) {
+				digest.reset();
+			}
+			
+			try {
+				target.position(0);
+			} catch (IOException ex) {
+				fireErrorEvent(ERROR_WRITING_FILE);
+				ex.printStackTrace();
+				return false;
+			}
+			
+			return true;
+		}
+		
+		if (transferSize >= 0 && checkpoint.getSize() >= 0 && transferSize != checkpoint.getSize()) {
+			fireErrorEvent(ERROR_FILE_CHANGED);
+			buildDatagramPacket(DataParser.OPTION_NEGOTIATION_FAILED);
+			sendData();
+			resumeOffset = 0;
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Skips the part of the file the server kept from an earlier
+	 * attempt of a resumable PUT, as given by the offset in its OACK.
+	 * The part kept has to have the CRC of the start of the file,
+	 * otherwise the server is sent an error, which drops it, and
+	 * the file is sent whole.
+	 * @param oack
+	 * @return false if the offset is beyond the end of the file,
+	 * or the part kept is not the start of the file
+	 */
+	private boolean skipKept(DataPacket oack) {
+		long offset = getLongOption(oack, DataPacket.OPTION_OFFSET);
+		
+		if (!resumable || offset <= 0) {
+			return true;
+		}
+		
+		if (fin != null || offset > transferSize) {
+			fireErrorEvent(ERROR_OPTIONS_REFUSED);
+			buildDatagramPacket(DataParser.OPTION_NEGOTIATION_FAILED);
+			sendData();
+			return false;
+		}
+		
+		try {
+			if (!readKept(offset, oack.getOption(DataPacket.OPTION_OFFSET_CRC))) {
+				fireMsgEvent(INFO_KEPT_MISMATCH);
+				buildDatagramPacket(DataParser.OPTION_NEGOTIATION_FAILED);
+				sendData();
+				keptRefused = true;
+				return false;
+			}
+			
+			fireMsgEvent(INFO_RESUMING + offset);
+			resumeOffset = offset;
+			
+			if (channel != null) {
+				mappedPosition = offset;
+			} else {
+				source.position(offset);
+			}
+		} catch (IOException ex) {
+			fireErrorEvent(ERROR_STREAMING_DATA);
+			ex.printStackTrace();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Checks the part of the file the server kept against the CRC
+	 * the server has of it, and adds it to the digest. It is read
+	 * once more, as it is not sent.
+	 * @param length - the number of bytes kept
+	 * @param keptCrc - the CRC-32C of the part kept in hex, or null
+	 * if the server did not send it
+	 * @return true if the part kept is the start of the file
+	 * @throws IOException
+	 */
+	private boolean readKept(long length, String keptCrc) throws IOException {
+		if (keptCrc == null) {
+			return false;
+		}
+		
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		CRC32C crc = new CRC32C();
+		long position = 0;
+		
+		while (position < length) {
+			buf.clear().limit((int) Math.min(buf.capacity(), length - position));
+			
+			int count = source.read(buf, position);
+			
+			if (count < 0) {
+				throw new IOException("File shorter than the part kept by the server");
+			}
+			
+			buf.flip();
+			
+			if (digest != null) {
+				digest.update(buf.duplicate());
+			}
+			
+			crc.update(buf);
+			position += count;
+		}
+		
+		return Crc32c.toHex(crc.getValue()).equalsIgnoreCase(keptCrc.trim());
+	}
+	
+	/**
+	 * Identifies the file a resumable PUT sends by its path,
+	 * size and modification time, so that the server only
+	 * resumes what it kept of the same file.
+	 * @return the identity, a CRC-32C in hex
+	 */
+	private String getSourceId() {
+		File source = new File(fileName).getAbsoluteFile();
+		CRC32C crc = new CRC32C();
+		crc.update((source.getPath() + '\0' + source.length() + '\0' + source.lastModified())
+				.getBytes(StandardCharsets.UTF_8));
+		
+		return Crc32c.toHex(crc.getValue());
+	}
+	
+	/**
+	 * Records the bytes of a resumable GET received in order.
+	 * A checkpoint that cannot be written only means the next
+	 * attempt starts over.
+	 */
+	private void saveCheckpoint() {
+		checkpointedAt = resumeOffset + bytesTransferred;
+		
+		try {
+			checkpoint.save(fileName, checkpointedAt, checksum.getValue(), transferSize);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Creates a temporary filename.
+	 * Temporary file names are used to receive
+	 * files from server before renaming to final
+	 * name. The file is created in the same directory
+	 * as the target so the rename is atomic.
+	 * @param source - java.io.File
+	 * @return java.io.File
+	 * @throws IOException
+	 */
+	protected File getTempFile(File source) throws IOException {
+		File temp = File.createTempFile("xxx-", "tmp", source.getAbsoluteFile().getParentFile());
+		
+		return temp;
+	}
 
 	/**
 	 * Class fires messages to provide information on progress.
 	 * Any object wishing to be notified of progress should
-	 * register as a listener using this method.
+	 * register as a listener using this method. Messages are
+	 * delivered on the dispatcher's thread.
 	 * 
 	 * @param listener
 	 */
-	public synchronized void addMsgListener(MessageListener listener) {
-		msgListeners.add(listener);
+	public void addMsgListener(MessageListener listener) {
+		events.addMsgListener(listener);
 	}
 	
 	/**
@@ -812,24 +1936,453 @@ public class Engine {
 	 * 
 	 * @param listener
 	 */
-	public synchronized void removeMsgListener(MessageListener listener) {
-		msgListeners.remove(listener);
+	public void removeMsgListener(MessageListener listener) {
+		events.removeMsgListener(listener);
 	}
 	
 	/**
 	 * This method is called within the class to notify
-	 * listeners of progress and errors.
+	 * listeners of progress and errors. The message is
+	 * queued for the dispatcher and never waits for the
+	 * listeners, it is dropped if the queue is full.
 	 * 
 	 * @param msg - the message to send to listeners.
 	 */
-	private synchronized void fireMsgEvent(String msg) {
-		MessageEvent msgEvnt = new MessageEvent(this,  msg);
+	private void fireMsgEvent(String msg) {
+		if (events.hasMsgListeners()) {
+			events.publish(new MessageEvent(this, msg));
+		}
+	}
+	
+	/**
+	 * @param packet - an ERR packet
+	 * @return the message for the error the server reported
+	 */
+	private static String serverError(DataPacket packet) {
+		// The message is read with its terminating NUL
+		String message = String.valueOf(packet.getErrorMsg()).replace("\0", "").trim();
+		
+		return ERROR_SERVER_REPORTED_ERROR + " : " + packet.getErrCode() + " - " + message;
+	}
+	
+	/**
+	 * Notifies listeners of an error, and keeps it as the
+	 * reason the transfer failed for its result.
+	 * @param msg - the message to send to listeners.
+	 */
+	private void fireErrorEvent(String msg) {
+		error = msg.startsWith(MESSAGE_PREFIX) ? msg.substring(MESSAGE_PREFIX.length()) : msg;
+		fireMsgEvent(msg);
+	}
+	
+	/**
+	 * Any object wishing to follow the progress of a
+	 * transfer block by block should register as a
+	 * listener using this method. Depending on the
+	 * progress policy a listener may only see the
+	 * latest of the events fired while it was busy.
+	 * 
+	 * @param listener
+	 */
+	public void addProgressListener(ProgressListener listener) {
+		events.addProgressListener(listener);
+	}
+	
+	/**
+	 * Removes a listener added by addProgressListener.
+	 * 
+	 * @param listener
+	 */
+	public void removeProgressListener(ProgressListener listener) {
+		events.removeProgressListener(listener);
+	}
+	
+	/**
+	 * Records the last block acknowledged and notifies
+	 * listeners of progress. No event is created while
+	 * nobody is listening.
+	 * 
+	 * @param block - the last block acknowledged
+	 */
+	private void fireProgressEvent(int block) {
+		metrics.setBlock(block);
+		
+		if (events.hasProgressListeners()) {
+			events.publish(new ProgressEvent(this, fileName, block, bytesTransferred,
+					metrics.getElapsedNanos(), transferSize < 0 ? -1 : transferSize - resumeOffset));
+		}
+	}
+
+	/**
+	 * Returns the dispatcher delivering events to the
+	 * listeners, e.g. to wait for the last messages
+	 * before exiting.
+	 * @return events
+	 */
+	public EventDispatcher getEventDispatcher() {
+		return events;
+	}
+
+	/**
+	 * Sets whether progress events fired faster than the
+	 * listeners take them are queued, and dropped when the
+	 * queue is full, or coalesced into the latest one.
+	 * @param progressPolicy - the progressPolicy to set
+	 */
+	public void setProgressPolicy(ProgressPolicy progressPolicy) {
+		events.setProgressPolicy(progressPolicy);
+	}
+
+	/**
+	 * Returns the registry the metrics of each
+	 * transfer are added to.
+	 * @return metricsRegistry
+	 */
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	/**
+	 * Sets the registry the metrics of each transfer
+	 * are added to. Engines sharing a registry add up
+	 * into the same totals per server.
+	 * @param metricsRegistry - the metricsRegistry to set
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		if (metricsRegistry == null) {
+			throw new IllegalArgumentException("Invalid metrics registry: " + metricsRegistry);
+		}
+		
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * Returns the metrics of the current or last transfer,
+	 * which may be read from any thread while it runs.
+	 * @return metrics, null before the first transfer
+	 */
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the block size in effect, which is the
+	 * block size negotiated with the server once the
+	 * transfer has started.
+	 * @return blockSize
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Sets the block size to request from the server
+	 * using the blksize option (RFC 2348). The server
+	 * may acknowledge a smaller size. Requesting the
+	 * default of 512 bytes sends no option at all.
+	 * @param blockSize - the blockSize to request
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize < DataPacket.MIN_BLOCK_SIZE || blockSize > DataPacket.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		}
 		
-		Iterator<MessageListener> it = msgListeners.iterator();
+		this.requestedBlockSize = blockSize;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Returns the port requests are sent to
+	 * @return port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Sets the port requests are sent to, for
+	 * servers not listening on the default port 69.
+	 * The transfer itself continues on the port
+	 * the server replies from.
+	 * @param port - the port to set
+	 */
+	public void setPort(int port) {
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
 		
-		while (it.hasNext()) {
-			((MessageListener) it.next()).sendMessage(msgEvnt);
+		this.port = port;
+	}
+
+	/**
+	 * @return the block number requested to follow 65535
+	 */
+	public int getRollover() {
+		return requestedRollover;
+	}
+
+	/**
+	 * Sets the block number to follow 65535 in transfers of
+	 * more than 65535 blocks, using the rollover option. The
+	 * default of 0 sends no option, 1 is only used when the
+	 * server acknowledges it.
+	 * @param rollover - 0 or 1
+	 */
+	public void setRollover(int rollover) {
+		if (rollover < 0 || rollover > 1) {
+			throw new IllegalArgumentException("Invalid rollover: " + rollover);
 		}
+		
+		this.requestedRollover = rollover;
+	}
+
+	/**
+	 * @return true if the tsize option is sent
+	 */
+	public boolean isTransferSizeOption() {
+		return transferSizeOption;
+	}
+
+	/**
+	 * Sets whether the size of a GET is asked for, and the
+	 * size of a binary PUT announced, with the tsize option
+	 * (RFC 2349). Turn it off for servers that refuse
+	 * requests with options they do not know.
+	 * @param transferSizeOption
+	 */
+	public void setTransferSizeOption(boolean transferSizeOption) {
+		this.transferSizeOption = transferSizeOption;
+	}
+
+	/**
+	 * Returns the size of the file of the current or last
+	 * transfer, as announced by the server for a GET.
+	 * @return the size, or -1 if it is not known
+	 */
+	public long getTransferSize() {
+		return transferSize;
+	}
+
+	/**
+	 * @return true if binary transfers are resumed where they stopped
+	 */
+	public boolean isResumable() {
+		return resumable;
+	}
+
+	/**
+	 * Sets whether a binary GET that fails keeps what it received,
+	 * to go on from there the next time, and whether a binary PUT
+	 * asks the server how much of the file it kept. Uses the
+	 * non-standard offset option, a server that does not know
+	 * it sends or receives the whole file.
+	 * @param resumable
+	 */
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	/**
+	 * Returns the byte the current or last transfer started at.
+	 * @return the offset, 0 unless the transfer was resumed
+	 */
+	public long getResumeOffset() {
+		return resumeOffset;
+	}
+
+	/**
+	 * @return the local port of the current or last transfer
+	 */
+	int getClientPort() {
+		return clientPort;
+	}
+
+	/**
+	 * @return the number of attempts to send a packet before giving up
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Sets the number of attempts to send a packet
+	 * before the transfer is abandoned. The retransmit
+	 * timeout doubles with every attempt.
+	 * @param maxRetries - the maxRetries to set
+	 */
+	public void setMaxRetries(int maxRetries) {
+		if (maxRetries < 1) {
+			throw new IllegalArgumentException("Invalid number of retries: " + maxRetries);
+		}
+		
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @return true if binary files are sent from a memory mapping
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Sets whether a binary file sent to the server is
+	 * memory mapped, rather than read block by block.
+	 * Each block is then sent as a slice of the mapping,
+	 * which suits large files sent repeatedly that are
+	 * likely to be in the page cache already.
+	 * @param memoryMapped - the memoryMapped to set
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * @return the cache binary files sent to the server are read from, or null
+	 */
+	public FileCache getFileCache() {
+		return fileCache;
+	}
+
+	/**
+	 * Sets a cache to keep binary files sent to the server
+	 * in memory. Engines sharing a cache read a file sent to
+	 * many servers only once, each block is then sent as a
+	 * slice of the cache.
+	 * @param fileCache - the cache, or null to read the file
+	 */
+	public void setFileCache(FileCache fileCache) {
+		this.fileCache = fileCache;
+	}
+
+	/**
+	 * @return the pool of sockets transfers are sent from, or null
+	 */
+	public SocketPool getSocketPool() {
+		return socketPool;
+	}
+
+	/**
+	 * Sets a pool of sockets shared by engines, to send
+	 * transfers from instead of binding a socket for each.
+	 * A memory mapped or cached PUT still binds its own.
+	 * @param socketPool - the pool, or null to bind a socket
+	 */
+	public void setSocketPool(SocketPool socketPool) {
+		this.socketPool = socketPool;
+	}
+
+	/**
+	 * @return the algorithm binary transfers are digested with, or null
+	 */
+	public Digest.Algorithm getDigestAlgorithm() {
+		return digestAlgorithm;
+	}
+
+	/**
+	 * Sets the algorithm to digest the data of binary transfers
+	 * with as it is sent or received. The digest of a complete
+	 * transfer is returned in its result.
+	 * @param digestAlgorithm - the algorithm, or null for none
+	 */
+	public void setDigestAlgorithm(Digest.Algorithm digestAlgorithm) {
+		this.digestAlgorithm = digestAlgorithm;
+	}
+
+	/**
+	 * @return the digest the next transfer is checked against, or null
+	 */
+	public String getExpectedDigest() {
+		return expectedDigest;
+	}
+
+	/**
+	 * Sets the digest the data of the next binary transfer has
+	 * to match, in the algorithm the digest names. A GET that
+	 * does not match fails and leaves the target file untouched,
+	 * a PUT fails once the server has the file.
+	 * @param expectedDigest - algorithm:hex, e.g. sha256:9f86d0..., or null
+	 */
+	public void setExpectedDigest(String expectedDigest) {
+		if (expectedDigest != null) {
+			Digest.algorithmOf(expectedDigest);
+		}
+		
+		this.expectedDigest = expectedDigest;
+	}
+
+	/**
+	 * @return the number of bytes per second a transfer is limited to, 0 for none
+	 */
+	public long getRateLimit() {
+		return rateLimit;
+	}
+
+	/**
+	 * Limits the rate of each transfer. A PUT waits before
+	 * sending a block, a GET before acknowledging one, until
+	 * the block fits within the rate.
+	 * @param rateLimit - the number of bytes per second, 0 for no limit
+	 */
+	public void setRateLimit(long rateLimit) {
+		if (rateLimit < 0) {
+			throw new IllegalArgumentException("Invalid rate limit: " + rateLimit);
+		}
+		
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * Sets limits shared with other engines, e.g. one
+	 * for the transfers to a server and one for all of
+	 * them. A block waits for the slowest of them.
+	 * @param rateLimiters - the buckets, none for no shared limit
+	 */
+	public void setRateLimiters(TokenBucket... rateLimiters) {
+		this.rateLimiters = rateLimiters.clone();
+	}
+
+	/**
+	 * @return true if a PUT adapts its window to loss and delay
+	 */
+	public boolean isCongestionControl() {
+		return congestionControl;
+	}
+
+	/**
+	 * Sets whether a PUT starts slowly and speeds up as
+	 * blocks are acknowledged, slowing down again on loss
+	 * (see CongestionControl), rather than sending each
+	 * window back to back.
+	 * @param congestionControl - the congestionControl to set
+	 */
+	public void setCongestionControl(boolean congestionControl) {
+		this.congestionControl = congestionControl;
+	}
+
+	/**
+	 * Returns the window size in effect, which is the
+	 * window size negotiated with the server once the
+	 * transfer has started.
+	 * @return windowSize
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Sets the number of blocks to send before waiting
+	 * for an acknowledgement, using the windowsize option
+	 * (RFC 7440). A window size of 1 is the lock-step
+	 * transfer of RFC 1350 and sends no option at all.
+	 * @param windowSize - the windowSize to request
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < DataPacket.MIN_WINDOW_SIZE || windowSize > DataPacket.MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException("Invalid window size: " + windowSize);
+		}
+		
+		this.requestedWindowSize = windowSize;
 	}
 
 	/**
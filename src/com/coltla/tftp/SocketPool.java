@@ -0,0 +1,549 @@
+package com.coltla.tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.PacketCodec;
+
+/**
+ *
+ * @author Anders
+ *
+ * A few local UDP sockets shared by many transfers, so that a
+ * transfer starts without binding a socket of its own and thousands
+ * of them do not take a port and a file descriptor each. A thread
+ * per socket receives its datagrams and hands each to the session
+ * of the transfer talking to the sender, looked up by the sender's
+ * address and port (its transfer ID) in a concurrent map.
+ *
+ * The server answers a request from a new port, so the first reply
+ * of a session is only known by the server's address. The sessions
+ * of a socket waiting for a first reply from a server queue in the
+ * order they were opened, and only the first has its request out,
+ * the next sends its request once that is answered. Two requests
+ * out at once could not be told apart by their replies, e.g. the
+ * OACKs of two RRQs, and each transfer could go on with the other's
+ * file. A reply is only taken as the answer to the request out if
+ * it can be one: DATA 1 for a RRQ, ACK 0 for a WRQ, an OACK naming
+ * options requested only, and echoing the size a WRQ announced. A
+ * session is opened on the socket with the fewest sessions waiting
+ * for that server, so n sockets start n transfers with a server at
+ * a time and the rest wait a round trip or so for their turn.
+ *
+ * Datagrams are handed to sessions in packets kept for reuse, taken
+ * back once the transfer has read them. A datagram arriving while
+ * its session holds a full queue is dropped and counted.
+ *
+ * Thread safe, one pool may be shared by many engines.
+ */
+public class SocketPool {
+
+	private static final Logger logger = LogManager.getLogger(SocketPool.class);
+
+	// Datagrams a session holds before the next are dropped, like
+	// those a full socket buffer would drop. Several windows.
+	private static final int SESSION_QUEUE_SIZE = 1024;
+
+	// Packets a socket keeps for reuse once sessions have read them
+	private static final int FREE_PACKETS = 4096;
+
+	// Queued to wake up a session waiting in receive() when it closes
+	private static final DatagramPacket CLOSED = new DatagramPacket(new byte[0], 0);
+
+	// Receive buffer of a shared socket, it takes the
+	// datagrams of all the transfers on it
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private final Member[] members;
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicInteger open = new AtomicInteger();
+
+	/**
+	 * A socket of the pool and the sessions on it.
+	 */
+	private class Member implements Runnable {
+		private final DatagramSocket socket;
+		private final ConcurrentMap<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
+		private final BlockingQueue<DatagramPacket> free = new ArrayBlockingQueue<>(FREE_PACKETS);
+
+		// Sessions waiting for a first reply, by server in the order
+		// they were opened. Only the first has sent its request, the
+		// rest wait for it to be answered. Guarded by itself.
+		private final Map<InetAddress, ArrayDeque<Session>> awaitingReply = new HashMap<>();
+
+		private Member(DatagramSocket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			byte[] buf = new byte[DataPacket.MAX_BLOCK_SIZE + PacketCodec.HEADER_SIZE];
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+			while (!socket.isClosed()) {
+				packet.setData(buf);
+
+				try {
+					socket.receive(packet);
+				} catch (IOException ex) {
+					if (!socket.isClosed()) {
+						logger.error("Error receiving on shared socket " + socket.getLocalPort(), ex);
+					}
+
+					continue;
+				}
+
+				SocketAddress from = packet.getSocketAddress();
+				int length = packet.getLength();
+				Session session = sessions.get(from);
+
+				if (session == null) {
+					int opCode = PacketCodec.getOpCode(buf, length);
+
+					// Not for any session, e.g. the rest of a window sent
+					// to a transfer that is over. A first reply may come
+					// from the port of such a transfer all the same, the
+					// server is free to use it again for the next one.
+					if (!isFirstReply(opCode, PacketCodec.getBlock(buf, length))) {
+						continue;
+					}
+
+					DataPacket oack = opCode == PacketCodec.OP_OACK ? new DataPacket(buf, length) : null;
+					session = firstReplyTo(packet.getAddress(), opCode, oack);
+
+					if (session == null) {
+						continue;
+					}
+
+					// The first reply sets the transfer ID of the session.
+					// An error ends it, and may come from the port the
+					// request was sent to rather than a transfer ID.
+					if (opCode != PacketCodec.OP_ERR) {
+						session.remote = from;
+						sessions.put(from, session);
+					}
+				}
+
+				session.deliver(copy(buf, length, from));
+			}
+		}
+
+		/**
+		 * Takes the session with its request out to a server,
+		 * if the reply can answer that request. The next session
+		 * waiting for the server may then send its request.
+		 * @param server
+		 * @param opCode - the op code of the reply
+		 * @param oack - the reply if it is an OACK, else null
+		 * @return the session, or null if none can take the reply
+		 */
+		private Session firstReplyTo(InetAddress server, int opCode, DataPacket oack) {
+			synchronized (awaitingReply) {
+				ArrayDeque<Session> waiting = awaitingReply.get(server);
+				Session session = waiting != null ? waiting.peekFirst() : null;
+
+				if (session == null || !session.requested || !session.isAnsweredBy(opCode, oack)) {
+					return null;
+				}
+
+				remove(session);
+
+				return session;
+			}
+		}
+
+		/**
+		 * Waits until the requests of the sessions opened before
+		 * on this socket for the same server have been answered.
+		 * @param session
+		 * @throws SocketException if the session is closed meanwhile
+		 */
+		private void awaitTurn(Session session) throws SocketException {
+			synchronized (awaitingReply) {
+				ArrayDeque<Session> waiting;
+
+				while (!session.closed && (waiting = awaitingReply.get(session.server)) != null
+						&& waiting.peekFirst() != session && waiting.contains(session)) {
+					try {
+						awaitingReply.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new SocketException("Interrupted");
+					}
+				}
+
+				session.requested = true;
+			}
+		}
+
+		/**
+		 * @param server
+		 * @return the number of sessions waiting for a first reply from the server
+		 */
+		private int countAwaiting(InetAddress server) {
+			synchronized (awaitingReply) {
+				ArrayDeque<Session> waiting = awaitingReply.get(server);
+
+				return waiting == null ? 0 : waiting.size();
+			}
+		}
+
+		private void await(Session session) {
+			synchronized (awaitingReply) {
+				awaitingReply.computeIfAbsent(session.server, server -> new ArrayDeque<>()).add(session);
+			}
+		}
+
+		private void stopAwaiting(Session session) {
+			synchronized (awaitingReply) {
+				remove(session);
+			}
+		}
+
+		// Called holding the lock on awaitingReply
+		private void remove(Session session) {
+			ArrayDeque<Session> waiting = awaitingReply.get(session.server);
+
+			if (waiting != null && waiting.remove(session)) {
+				if (waiting.isEmpty()) {
+					awaitingReply.remove(session.server);
+				}
+
+				awaitingReply.notifyAll();
+			}
+		}
+
+		/**
+		 * Copies a datagram into a packet kept for reuse, or a
+		 * new one when none is free that it fits in.
+		 * @param data
+		 * @param length
+		 * @param from
+		 * @return the packet
+		 */
+		private DatagramPacket copy(byte[] data, int length, SocketAddress from) {
+			DatagramPacket packet = free.poll();
+
+			if (packet == null || packet.getData().length < length) {
+				packet = new DatagramPacket(new byte[length], length);
+			}
+
+			System.arraycopy(data, 0, packet.getData(), 0, length);
+			packet.setData(packet.getData(), 0, length);
+			packet.setSocketAddress(from);
+
+			return packet;
+		}
+
+		private void recycle(DatagramPacket packet) {
+			if (packet != CLOSED) {
+				free.offer(packet);
+			}
+		}
+	}
+
+	/**
+	 * @param opCode
+	 * @param block
+	 * @return true if the packet may answer a RRQ or WRQ
+	 */
+	private static boolean isFirstReply(int opCode, int block) {
+		return opCode == PacketCodec.OP_OACK || opCode == PacketCodec.OP_ERR
+				|| opCode == PacketCodec.OP_DATA && block == 1 || opCode == PacketCodec.OP_ACK && block == 0;
+	}
+
+	/**
+	 * The share of a transfer in a socket of the pool. It is
+	 * used by the transfer like a socket of its own, from the
+	 * thread of the transfer.
+	 */
+	class Session {
+		private final Member member;
+		private final InetAddress server;
+		private final boolean read;
+		private final Map<String, String> options;
+		private final BlockingQueue<DatagramPacket> received = new ArrayBlockingQueue<>(SESSION_QUEUE_SIZE);
+		private volatile SocketAddress remote;
+		private volatile boolean closed;
+		private long dropped;
+
+		// Set once the session may send its request,
+		// guarded by the lock on member.awaitingReply
+		private boolean requested;
+
+		private Session(Member member, InetAddress server, boolean read, Map<String, String> options) {
+			this.member = member;
+			this.server = server;
+			this.read = read;
+			this.options = options;
+		}
+
+		/**
+		 * @param opCode - the op code of a first reply from the server
+		 * @param oack - the reply if it is an OACK, else null
+		 * @return true if the reply can answer the request of the session
+		 */
+		private boolean isAnsweredBy(int opCode, DataPacket oack) {
+			switch (opCode) {
+			case PacketCodec.OP_DATA:
+				return read;
+			case PacketCodec.OP_ACK:
+				return !read;
+			case PacketCodec.OP_OACK:
+				for (Map.Entry<String, String> option : oack.getOptions().entrySet()) {
+					String value = options.get(option.getKey());
+
+					if (value == null) {
+						return false;
+					}
+
+					// The size of a WRQ is acknowledged as it was sent
+					if (!read && option.getKey().equals(DataPacket.OPTION_TSIZE)
+							&& !value.equals(option.getValue().trim())) {
+						return false;
+					}
+				}
+
+				return true;
+			default:
+				// An error may answer any request
+				return true;
+			}
+		}
+
+		/**
+		 * Queues a datagram for the transfer. The datagram is
+		 * dropped if the transfer has fallen too far behind.
+		 * @param packet
+		 */
+		private void deliver(DatagramPacket packet) {
+			if (!received.offer(packet)) {
+				member.recycle(packet);
+				SocketPool.this.dropped.incrementAndGet();
+
+				if (dropped++ == 0) {
+					logger.debug("Queue full, dropping datagrams from " + remote + " on shared socket "
+							+ member.socket.getLocalPort());
+				}
+			}
+		}
+
+		/**
+		 * Sends a datagram from the shared socket.
+		 * @param packet
+		 * @throws IOException
+		 */
+		void send(DatagramPacket packet) throws IOException {
+			if (!requested) {
+				member.awaitTurn(this);
+			}
+
+			if (closed) {
+				throw new SocketException("Session closed");
+			}
+
+			member.socket.send(packet);
+		}
+
+		/**
+		 * Receives the next datagram for the session, like
+		 * DatagramSocket.receive with a timeout.
+		 * @param packet - takes the datagram, cut short if it does not fit
+		 * @param timeoutMillis
+		 * @throws SocketTimeoutException if nothing arrived in time
+		 * @throws SocketException if the session is closed
+		 */
+		void receive(DatagramPacket packet, int timeoutMillis) throws IOException {
+			DatagramPacket datagram;
+
+			try {
+				datagram = received.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SocketException("Interrupted");
+			}
+
+			if (closed) {
+				throw new SocketException("Session closed");
+			}
+
+			if (datagram == null) {
+				throw new SocketTimeoutException();
+			}
+
+			int length = Math.min(datagram.getLength(), packet.getLength());
+			System.arraycopy(datagram.getData(), 0, packet.getData(), packet.getOffset(), length);
+			packet.setLength(length);
+			packet.setSocketAddress(datagram.getSocketAddress());
+			member.recycle(datagram);
+		}
+
+		/**
+		 * @return the port of the shared socket
+		 */
+		int getLocalPort() {
+			return member.socket.getLocalPort();
+		}
+
+		/**
+		 * Leaves the socket. A transfer waiting in
+		 * receive() is woken up. May be called from any thread.
+		 */
+		void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+
+				closed = true;
+			}
+
+			open.decrementAndGet();
+			member.stopAwaiting(this);
+
+			SocketAddress address = remote;
+
+			if (address != null) {
+				member.sessions.remove(address, this);
+			}
+
+			// Wake up receive()
+			DatagramPacket datagram;
+
+			while ((datagram = received.poll()) != null) {
+				member.recycle(datagram);
+			}
+
+			received.offer(CLOSED);
+		}
+	}
+
+	/**
+	 * Create a pool, binding its sockets to ephemeral ports.
+	 * @param sockets - the number of sockets
+	 * @throws IOException if a socket cannot be bound
+	 */
+	public SocketPool(int sockets) throws IOException {
+		if (sockets < 1) {
+			throw new IllegalArgumentException("Invalid number of sockets: " + sockets);
+		}
+
+		members = new Member[sockets];
+
+		try {
+			for (int i = 0; i < sockets; i++) {
+				DatagramSocket socket = new DatagramSocket();
+
+				try {
+					socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+				} catch (SocketException ex) {
+					// The system default has to do
+				}
+
+				members[i] = new Member(socket);
+
+				Thread thread = new Thread(members[i], "tftp-shared-socket-" + socket.getLocalPort());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (IOException ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Opens a session for a transfer with a server, on the socket
+	 * with the fewest other sessions waiting for that server's
+	 * first reply, none where there is one.
+	 * @param server - the address the server replies from
+	 * @param read - true for a RRQ, false for a WRQ
+	 * @param options - the options of the request
+	 * @return the session, or null if the pool is closed
+	 */
+	Session open(InetAddress server, boolean read, Map<String, String> options) {
+		int first = Math.floorMod(next.getAndIncrement(), members.length);
+		Member chosen = null;
+		int fewest = Integer.MAX_VALUE;
+
+		for (int i = 0; i < members.length && fewest > 0; i++) {
+			Member member = members[(first + i) % members.length];
+
+			if (member == null || member.socket.isClosed()) {
+				continue;
+			}
+
+			int awaiting = member.countAwaiting(server);
+
+			if (awaiting < fewest) {
+				chosen = member;
+				fewest = awaiting;
+			}
+		}
+
+		if (chosen == null) {
+			return null;
+		}
+
+		Session session = new Session(chosen, server, read, new HashMap<>(options));
+		open.incrementAndGet();
+		chosen.await(session);
+
+		return session;
+	}
+
+	/**
+	 * @return the number of sockets
+	 */
+	public int getSize() {
+		return members.length;
+	}
+
+	/**
+	 * @return the number of sessions open, those of transfers
+	 * running and of transfers that did not leave the pool
+	 */
+	int getSessionCount() {
+		return open.get();
+	}
+
+	/**
+	 * @return the number of datagrams dropped as the
+	 * transfer they were for had too many queued
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Closes the sockets. Transfers still using
+	 * them fail once they next send or receive.
+	 */
+	public void close() {
+		for (Member member : members) {
+			if (member != null) {
+				member.socket.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.coltla.tftp;
+
+import java.net.InetAddress;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Outcome of a single transfer made by an Engine.
+ */
+public class TransferResult {
+
+	private final InetAddress serverIP;
+	private final Direction direction;
+	private final Mode mode;
+	private final String fileName;
+	private final boolean complete;
+	private final long bytesTransferred;
+	private final long elapsedNanos;
+	
+	// Retransmission statistics
+	private final int retransmits;
+	private final int timeouts;
+	private final long smoothedRtt;
+	private final long rttVariation;
+	private final int retransmitTimeout;
+	
+	// Digest of the data as algorithm:hex, or null
+	private final String digest;
+	
+	// Why a transfer failed, or null
+	private final String error;
+	
+	public TransferResult(InetAddress serverIP, Direction direction, Mode mode, String fileName,
+			boolean complete, long bytesTransferred, long elapsedNanos) {
+		this(serverIP, direction, mode, fileName, complete, bytesTransferred, elapsedNanos, 0, 0, 0, 0, 0);
+	}
+	
+	public TransferResult(InetAddress serverIP, Direction direction, Mode mode, String fileName,
+			boolean complete, long bytesTransferred, long elapsedNanos, int retransmits, int timeouts,
+			long smoothedRtt, long rttVariation, int retransmitTimeout) {
+		this(serverIP, direction, mode, fileName, complete, bytesTransferred, elapsedNanos, retransmits, timeouts,
+				smoothedRtt, rttVariation, retransmitTimeout, null);
+	}
+	
+	public TransferResult(InetAddress serverIP, Direction direction, Mode mode, String fileName,
+			boolean complete, long bytesTransferred, long elapsedNanos, int retransmits, int timeouts,
+			long smoothedRtt, long rttVariation, int retransmitTimeout, String digest) {
+		this(serverIP, direction, mode, fileName, complete, bytesTransferred, elapsedNanos, retransmits, timeouts,
+				smoothedRtt, rttVariation, retransmitTimeout, digest, null);
+	}
+	
+	public TransferResult(InetAddress serverIP, Direction direction, Mode mode, String fileName,
+			boolean complete, long bytesTransferred, long elapsedNanos, int retransmits, int timeouts,
+			long smoothedRtt, long rttVariation, int retransmitTimeout, String digest, String error) {
+		this.serverIP = serverIP;
+		this.direction = direction;
+		this.mode = mode;
+		this.fileName = fileName;
+		this.complete = complete;
+		this.bytesTransferred = bytesTransferred;
+		this.elapsedNanos = elapsedNanos;
+		this.retransmits = retransmits;
+		this.timeouts = timeouts;
+		this.smoothedRtt = smoothedRtt;
+		this.rttVariation = rttVariation;
+		this.retransmitTimeout = retransmitTimeout;
+		this.digest = digest;
+		this.error = error;
+	}
+
+	/**
+	 * @return the serverIP
+	 */
+	public InetAddress getServerIP() {
+		return serverIP;
+	}
+
+	/**
+	 * @return the direction
+	 */
+	public Direction getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return the mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the fileName
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return true if every block was transferred
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the number of data bytes transferred,
+	 * not counting retransmitted blocks
+	 */
+	public long getBytesTransferred() {
+		return bytesTransferred;
+	}
+
+	/**
+	 * @return the duration of the transfer in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+	
+	/**
+	 * @return the number of packets sent again
+	 */
+	public int getRetransmits() {
+		return retransmits;
+	}
+
+	/**
+	 * @return the number of times the retransmit timeout expired
+	 */
+	public int getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @return the smoothed round trip time in nanoseconds
+	 */
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * @return the round trip time variation in nanoseconds
+	 */
+	public long getRttVariation() {
+		return rttVariation;
+	}
+
+	/**
+	 * @return the retransmit timeout in milliseconds at the end of the transfer
+	 */
+	public int getRetransmitTimeout() {
+		return retransmitTimeout;
+	}
+	
+	/**
+	 * @return the digest of the whole file as algorithm:hex,
+	 * computed as it was transferred, or null if none was asked
+	 * for or the transfer did not get to the end of the file
+	 */
+	public String getDigest() {
+		return digest;
+	}
+	
+	/**
+	 * @return why the transfer failed, e.g. the error the
+	 * server reported, or null if it is complete or the
+	 * reason is not known
+	 */
+	public String getError() {
+		return error;
+	}
+	
+	/**
+	 * @return the throughput in bytes per second
+	 */
+	public double getBytesPerSecond() {
+		if (elapsedNanos <= 0) {
+			return 0;
+		}
+		
+		return bytesTransferred * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return direction + " " + fileName + " " + (complete ? "complete" : "failed")
+				+ ", " + bytesTransferred + " bytes in " + (elapsedNanos / 1000000) + " ms"
+				+ ", " + retransmits + " retransmits, " + timeouts + " timeouts, srtt "
+				+ (smoothedRtt / 1000) + " us, rto " + retransmitTimeout + " ms"
+				+ (error == null ? "" : ": " + error);
+	}
+}
@@ -0,0 +1,490 @@
+package com.coltla.tftp;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.coltla.event.MessageListener;
+import com.coltla.metrics.MetricsRegistry;
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.Digest;
+import com.coltla.utils.FileCache;
+import com.coltla.utils.TokenBucket;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Runs many GET/PUT transfers in parallel. Every transfer
+ * gets its own Engine and its own ephemeral port. The number
+ * of transfers running at once is limited both globally and
+ * per server, transfers over the limit wait in a queue for
+ * the server they address so a busy server does not hold up
+ * transfers to the other servers. The bandwidth they take
+ * may be limited the same way, per transfer, per server and
+ * in total.
+ */
+public class TransferScheduler {
+
+	// How long a finished transfer waits for its
+	// events to be delivered before its result is out
+	private static final long EVENT_DELIVERY_MILLIS = 1000;
+	
+	private final ExecutorService executor;
+	private final int maxTransfersPerServer;
+	
+	// Running count and waiting transfers for each server,
+	// guarded by the scheduler's lock
+	private final Map<InetAddress, ServerQueue> servers = new HashMap<>();
+	
+	// Rate limits shared by the transfers to a server, kept
+	// while its queue comes and goes, and by all transfers.
+	// Guarded by the scheduler's lock.
+	private final Map<InetAddress, TokenBucket> serverLimiters = new HashMap<>();
+	private long serverRateLimit;
+	private TokenBucket totalLimiter;
+	
+	// The settings of new transfers, taken by each when it is
+	// submitted. Guarded by the scheduler's lock, the listeners
+	// by their list.
+	private final List<MessageListener> msgListeners = new ArrayList<>();
+	private int blockSize = DataPacket.MAX_DATA_SIZE;
+	private int windowSize = DataPacket.MIN_WINDOW_SIZE;
+	private boolean memoryMapped;
+	private boolean resumable;
+	private long rateLimit;
+	private boolean congestionControl;
+	private Digest.Algorithm digestAlgorithm;
+	private FileCache fileCache;
+	private SocketPool socketPool;
+	private int maxRetries = Engine.DEFAULT_MAX_RETRIES;
+	private int port = Engine.SERVER_DEFAULT_PORT;
+	
+	// Shared by every engine so the totals per
+	// server cover all transfers scheduled
+	private MetricsRegistry metricsRegistry = new MetricsRegistry();
+	
+	private static class ServerQueue {
+		int running;
+		Deque<Runnable> waiting = new ArrayDeque<>();
+	}
+	
+	/**
+	 * The settings of the scheduler when a transfer was submitted,
+	 * the Engine of the transfer is made from them once it runs.
+	 * A setter called while the transfer waits does not change it.
+	 */
+	private static final class Settings {
+		private final List<MessageListener> msgListeners;
+		private final int blockSize;
+		private final int windowSize;
+		private final boolean memoryMapped;
+		private final boolean resumable;
+		private final long rateLimit;
+		private final TokenBucket[] rateLimiters;
+		private final boolean congestionControl;
+		private final Digest.Algorithm digestAlgorithm;
+		private final FileCache fileCache;
+		private final SocketPool socketPool;
+		private final int maxRetries;
+		private final int port;
+		private final MetricsRegistry metricsRegistry;
+		
+		// Called holding the scheduler's lock
+		private Settings(TransferScheduler scheduler, InetAddress serverIP) {
+			synchronized (scheduler.msgListeners) {
+				msgListeners = new ArrayList<>(scheduler.msgListeners);
+			}
+			
+			blockSize = scheduler.blockSize;
+			windowSize = scheduler.windowSize;
+			memoryMapped = scheduler.memoryMapped;
+			resumable = scheduler.resumable;
+			rateLimit = scheduler.rateLimit;
+			rateLimiters = scheduler.getRateLimiters(serverIP);
+			congestionControl = scheduler.congestionControl;
+			digestAlgorithm = scheduler.digestAlgorithm;
+			fileCache = scheduler.fileCache;
+			socketPool = scheduler.socketPool;
+			maxRetries = scheduler.maxRetries;
+			port = scheduler.port;
+			metricsRegistry = scheduler.metricsRegistry;
+		}
+		
+		/**
+		 * Creates the Engine for a single transfer.
+		 * @return a configured Engine
+		 */
+		private Engine createEngine() {
+			Engine engine = new Engine();
+			engine.setBlockSize(blockSize);
+			engine.setWindowSize(windowSize);
+			engine.setMemoryMapped(memoryMapped);
+			engine.setResumable(resumable);
+			engine.setRateLimit(rateLimit);
+			engine.setRateLimiters(rateLimiters);
+			engine.setCongestionControl(congestionControl);
+			engine.setDigestAlgorithm(digestAlgorithm);
+			engine.setFileCache(fileCache);
+			engine.setSocketPool(socketPool);
+			engine.setMaxRetries(maxRetries);
+			engine.setPort(port);
+			engine.setMetricsRegistry(metricsRegistry);
+			
+			for (MessageListener listener : msgListeners) {
+				engine.addMsgListener(listener);
+			}
+			
+			return engine;
+		}
+	}
+	
+	/**
+	 * Create a scheduler.
+	 * @param maxTransfers - the number of transfers running at once
+	 * @param maxTransfersPerServer - the number of transfers running at once to a single server
+	 */
+	public TransferScheduler(int maxTransfers, int maxTransfersPerServer) {
+		if (maxTransfers < 1 || maxTransfersPerServer < 1) {
+			throw new IllegalArgumentException("Invalid concurrency limit: " + maxTransfers + "/" + maxTransfersPerServer);
+		}
+		
+		this.maxTransfersPerServer = maxTransfersPerServer;
+		this.executor = Executors.newFixedThreadPool(maxTransfers, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tftp-transfer-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Queues a transfer.
+	 * @param serverIP
+	 * @param direction
+	 * @param mode
+	 * @param file
+	 * @return future completed with the result once the transfer has finished
+	 */
+	public CompletableFuture<TransferResult> submit(InetAddress serverIP, Direction direction, Mode mode, String file) {
+		return submit(serverIP, direction, mode, file, null);
+	}
+	
+	/**
+	 * Queues a transfer whose data has to match a digest.
+	 * @param serverIP
+	 * @param direction
+	 * @param mode
+	 * @param file
+	 * @param expectedDigest - algorithm:hex, or null to check nothing
+	 * @return future completed with the result once the transfer has finished
+	 */
+	public CompletableFuture<TransferResult> submit(InetAddress serverIP, Direction direction, Mode mode, String file,
+			String expectedDigest) {
+		if (expectedDigest != null) {
+			Digest.algorithmOf(expectedDigest);
+		}
+		
+		CompletableFuture<TransferResult> future = new CompletableFuture<>();
+		Settings settings;
+		
+		synchronized (this) {
+			settings = new Settings(this, serverIP);
+		}
+		
+		// The Engine is only created once the transfer runs, a
+		// long queue of transfers does not hold an Engine each
+		Runnable task = new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					// Skip transfers cancelled while waiting
+					if (!future.isDone()) {
+						Engine engine = settings.createEngine();
+						engine.setExpectedDigest(expectedDigest);
+						
+						TransferResult result = engine.transfer(serverIP, direction, mode, file);
+						
+						// A listener has seen every message of the
+						// transfer by the time its result is out
+						awaitEvents(engine);
+						future.complete(result);
+					}
+				} catch (RuntimeException | Error ex) {
+					// Complete the future whatever went wrong,
+					// a caller waiting for it would hang otherwise
+					future.completeExceptionally(ex);
+				} finally {
+					release(serverIP);
+				}
+			}
+		};
+		
+		synchronized (this) {
+			ServerQueue queue = servers.get(serverIP);
+			
+			if (queue == null) {
+				queue = new ServerQueue();
+				servers.put(serverIP, queue);
+			}
+			
+			if (queue.running < maxTransfersPerServer) {
+				queue.running++;
+				executor.execute(task);
+			} else {
+				queue.waiting.add(task);
+			}
+		}
+		
+		return future;
+	}
+	
+	/**
+	 * Waits for the events of a transfer to reach its listeners.
+	 * @param engine
+	 */
+	private static void awaitEvents(Engine engine) {
+		try {
+			engine.getEventDispatcher().awaitIdle(EVENT_DELIVERY_MILLIS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Called holding the scheduler's lock.
+	 * @param serverIP
+	 * @return the rate limits shared by the transfers to a server
+	 */
+	private TokenBucket[] getRateLimiters(InetAddress serverIP) {
+		TokenBucket serverLimiter = null;
+		
+		if (serverRateLimit > 0) {
+			serverLimiter = serverLimiters.computeIfAbsent(serverIP, ip -> new TokenBucket(serverRateLimit));
+		}
+		
+		if (serverLimiter != null && totalLimiter != null) {
+			return new TokenBucket[] { serverLimiter, totalLimiter };
+		} else if (serverLimiter != null) {
+			return new TokenBucket[] { serverLimiter };
+		} else if (totalLimiter != null) {
+			return new TokenBucket[] { totalLimiter };
+		}
+		
+		return new TokenBucket[0];
+	}
+	
+	/**
+	 * Called when a transfer to a server has finished,
+	 * starts the next transfer waiting for that server.
+	 * @param serverIP
+	 */
+	private synchronized void release(InetAddress serverIP) {
+		ServerQueue queue = servers.get(serverIP);
+		Runnable next = queue.waiting.poll();
+		
+		if (next != null) {
+			executor.execute(next);
+		} else if (--queue.running == 0) {
+			servers.remove(serverIP);
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Stops accepting transfers and waits for the
+	 * running and queued transfers to finish.
+	 * @param timeout
+	 * @param unit
+	 * @return true if all transfers finished in time
+	 * @throws InterruptedException
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		
+		// Queued transfers are only handed to the executor as
+		// running ones finish, so wait for the queues to drain
+		// before shutting the executor down
+		synchronized (this) {
+			while (!servers.isEmpty()) {
+				long remaining = deadline - System.nanoTime();
+				
+				if (remaining <= 0) {
+					return false;
+				}
+				
+				wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+			}
+		}
+		
+		executor.shutdown();
+		return executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Adds a listener to every transfer submitted after this call.
+	 * @param listener
+	 */
+	public void addMsgListener(MessageListener listener) {
+		synchronized (msgListeners) {
+			msgListeners.add(listener);
+		}
+	}
+
+	/**
+	 * @param blockSize - the block size to request for new transfers
+	 */
+	public synchronized void setBlockSize(int blockSize) {
+		if (blockSize < DataPacket.MIN_BLOCK_SIZE || blockSize > DataPacket.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		}
+		
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @param windowSize - the window size to request for new transfers
+	 */
+	public synchronized void setWindowSize(int windowSize) {
+		if (windowSize < DataPacket.MIN_WINDOW_SIZE || windowSize > DataPacket.MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException("Invalid window size: " + windowSize);
+		}
+		
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * @param port - the port new transfers send their request to
+	 */
+	public synchronized void setPort(int port) {
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+		
+		this.port = port;
+	}
+
+	/**
+	 * @param maxRetries - the number of attempts before a new transfer gives up
+	 */
+	public synchronized void setMaxRetries(int maxRetries) {
+		if (maxRetries < 1) {
+			throw new IllegalArgumentException("Invalid number of retries: " + maxRetries);
+		}
+		
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @param memoryMapped - whether new transfers send binary files from a memory mapping
+	 */
+	public synchronized void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * @param resumable - whether new binary transfers go on from where an earlier attempt stopped
+	 */
+	public synchronized void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	/**
+	 * @param rateLimit - the bytes per second each new transfer is limited to, 0 for no limit
+	 */
+	public synchronized void setRateLimit(long rateLimit) {
+		if (rateLimit < 0) {
+			throw new IllegalArgumentException("Invalid rate limit: " + rateLimit);
+		}
+		
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * @param serverRateLimit - the bytes per second the new transfers to a server
+	 * are limited to together, 0 for no limit
+	 */
+	public synchronized void setServerRateLimit(long serverRateLimit) {
+		if (serverRateLimit < 0) {
+			throw new IllegalArgumentException("Invalid rate limit: " + serverRateLimit);
+		}
+		
+		this.serverRateLimit = serverRateLimit;
+		serverLimiters.clear();
+	}
+
+	/**
+	 * @param totalRateLimit - the bytes per second all new transfers
+	 * are limited to together, 0 for no limit
+	 */
+	public synchronized void setTotalRateLimit(long totalRateLimit) {
+		if (totalRateLimit < 0) {
+			throw new IllegalArgumentException("Invalid rate limit: " + totalRateLimit);
+		}
+		
+		this.totalLimiter = totalRateLimit > 0 ? new TokenBucket(totalRateLimit) : null;
+	}
+
+	/**
+	 * @param congestionControl - whether new PUTs adapt their window to loss and delay
+	 */
+	public synchronized void setCongestionControl(boolean congestionControl) {
+		this.congestionControl = congestionControl;
+	}
+
+	/**
+	 * @param digestAlgorithm - the algorithm new binary transfers are digested with, or null
+	 */
+	public synchronized void setDigestAlgorithm(Digest.Algorithm digestAlgorithm) {
+		this.digestAlgorithm = digestAlgorithm;
+	}
+
+	/**
+	 * @param fileCache - the cache new transfers send binary files from, or null
+	 */
+	public synchronized void setFileCache(FileCache fileCache) {
+		this.fileCache = fileCache;
+	}
+
+	/**
+	 * @param socketPool - the sockets new transfers are sent from, or null
+	 */
+	public synchronized void setSocketPool(SocketPool socketPool) {
+		this.socketPool = socketPool;
+	}
+
+	/**
+	 * @return the registry holding the metrics of every transfer
+	 */
+	public synchronized MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	/**
+	 * @param metricsRegistry - the registry new transfers add their metrics to
+	 */
+	public synchronized void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		if (metricsRegistry == null) {
+			throw new IllegalArgumentException("Invalid metrics registry: " + metricsRegistry);
+		}
+		
+		this.metricsRegistry = metricsRegistry;
+	}
+}
@@ -0,0 +1,152 @@
+package com.coltla.tftp.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.coltla.utils.TimerWheel;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Single threaded loop driving many datagram channels.
+ * Each channel is registered with the loop's selector and
+ * carries a Handler as attachment, which is called when
+ * the channel has datagrams to read. Retransmit timers run
+ * on the loop's timer wheel, and tasks from other threads
+ * are queued with execute() so that handlers and timers
+ * are only ever touched by the loop thread.
+ */
+public class EventLoop implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(EventLoop.class);
+	
+	// Resolution of the retransmit timers
+	private static final long TICK_MILLIS = 10;
+	private static final int WHEEL_SIZE = 1024;
+	
+	private final Selector selector;
+	private final TimerWheel timers = new TimerWheel(TICK_MILLIS, WHEEL_SIZE);
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private volatile boolean running = true;
+	
+	/**
+	 * Called by the loop for a registered channel.
+	 */
+	public interface Handler {
+		
+		/**
+		 * The channel has datagrams to read.
+		 * @param key - the selection key of the channel
+		 */
+		void onReadable(SelectionKey key);
+		
+		/**
+		 * The loop is shutting down, release the channel.
+		 */
+		void onClose();
+	}
+	
+	public EventLoop() throws IOException {
+		selector = Selector.open();
+	}
+	
+	@Override
+	public void run() {
+		while (running) {
+			runTasks();
+			
+			try {
+				long wait = timers.millisToNextTick();
+				
+				if (!tasks.isEmpty()) {
+					selector.selectNow();
+				} else if (wait > 0) {
+					selector.select(wait);
+				} else {
+					selector.select();
+				}
+			} catch (IOException ex) {
+				logger.error("Select failed", ex);
+				break;
+			}
+			
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				
+				if (key.isValid() && key.isReadable()) {
+					((Handler) key.attachment()).onReadable(key);
+				}
+			}
+			
+			timers.advance(System.nanoTime());
+		}
+		
+		for (SelectionKey key : selector.keys()) {
+			((Handler) key.attachment()).onClose();
+		}
+		
+		try {
+			selector.close();
+		} catch (IOException ex) {
+			logger.error("Error closing selector", ex);
+		}
+	}
+	
+	/**
+	 * Runs the tasks queued by other threads.
+	 */
+	private void runTasks() {
+		Runnable task;
+		
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				logger.error("Task failed", ex);
+			}
+		}
+	}
+	
+	/**
+	 * Queues a task to run on the loop thread.
+	 * May be called from any thread.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Stops the loop, channels still registered are closed.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+	
+	/**
+	 * @return the selector to register channels with
+	 */
+	public Selector getSelector() {
+		return selector;
+	}
+	
+	/**
+	 * @return the timer wheel, only to be used on the loop thread
+	 */
+	public TimerWheel getTimers() {
+		return timers;
+	}
+}
@@ -0,0 +1,243 @@
+package com.coltla.tftp.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.coltla.tftp.Engine;
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.tftp.TransferResult;
+import com.coltla.utils.DataPacket;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Alternative to Engine for very large numbers of simultaneous
+ * transfers. Instead of a thread blocking on a socket for every
+ * transfer, a few event loop threads each drive thousands of
+ * transfers from a single selector, with retransmit timers kept
+ * in a timer wheel. Transfers are spread over the loops in turn.
+ */
+public class NioEngine {
+
+	public static final int DEFAULT_TIMEOUT = 10000;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	
+	// Datagrams received in one pass over the channel
+	// of a transfer, at most a window of them
+	public static final int DEFAULT_RECEIVE_BATCH = 16;
+	
+	// Bytes of a striped GET handed to a mirror at a time
+	public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	
+	private volatile int port = Engine.SERVER_DEFAULT_PORT;
+	private volatile int blockSize = DataPacket.MAX_DATA_SIZE;
+	private volatile int windowSize = DataPacket.MIN_WINDOW_SIZE;
+	private volatile int timeout = DEFAULT_TIMEOUT;
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	private volatile int receiveBatch = DEFAULT_RECEIVE_BATCH;
+	private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+	
+	/**
+	 * Create an engine and start its event loop threads.
+	 * @param threads - the number of event loops
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public NioEngine(int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+		}
+		
+		loops = new EventLoop[threads];
+		
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop();
+			
+			Thread thread = new Thread(loops[i], "tftp-nio-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Starts a transfer. May be called from any thread.
+	 * Only OCTET mode is supported.
+	 * @param serverIP
+	 * @param direction
+	 * @param mode
+	 * @param file
+	 * @return future completed with the result once the transfer has finished
+	 */
+	public CompletableFuture<TransferResult> submit(InetAddress serverIP, Direction direction, Mode mode, String file) {
+		return submit(serverIP, direction, mode, file, file);
+	}
+	
+	/**
+	 * Starts a transfer between a local file and a file of
+	 * another name on the server, e.g. many clients fetching
+	 * the same boot image into their own copies.
+	 * May be called from any thread. Only OCTET mode is supported.
+	 * @param serverIP
+	 * @param direction
+	 * @param mode
+	 * @param remoteFile - the file name sent to the server
+	 * @param localFile - the file read or written locally
+	 * @return future completed with the result once the transfer has finished
+	 */
+	public CompletableFuture<TransferResult> submit(InetAddress serverIP, Direction direction, Mode mode,
+			String remoteFile, String localFile) {
+		if (mode != Mode.OCTET) {
+			throw new IllegalArgumentException("Unsupported mode: " + mode);
+		}
+		
+		NioTransfer transfer = new NioTransfer(serverIP, port, direction, mode, remoteFile, localFile,
+				blockSize, windowSize, timeout, maxRetries, receiveBatch);
+		EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+		
+		loop.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				transfer.start(loop);
+			}
+		});
+		
+		return transfer.getFuture();
+	}
+	
+	/**
+	 * Starts a GET of a file from several mirrors serving
+	 * the same file, each sending a range of it at a time,
+	 * see StripedTransfer. The mirrors have to support the
+	 * tsize option and the offset option of TftpServer,
+	 * a mirror that does not is dropped. May be called from
+	 * any thread, the file is received in OCTET mode.
+	 * @param mirrors - the servers, the first one is asked
+	 * for the size of the file
+	 * @param remoteFile - the file name sent to the mirrors
+	 * @param localFile - the file written locally
+	 * @return future completed with the result once the transfer has finished
+	 */
+	public CompletableFuture<TransferResult> submit(List<InetAddress> mirrors, String remoteFile, String localFile) {
+		if (mirrors.isEmpty()) {
+			throw new IllegalArgumentException("No mirrors given");
+		}
+		
+		StripedTransfer transfer = new StripedTransfer(mirrors, port, remoteFile, localFile, segmentSize,
+				blockSize, windowSize, timeout, maxRetries, receiveBatch);
+		EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+		
+		loop.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				transfer.start(loop);
+			}
+		});
+		
+		return transfer.getFuture();
+	}
+	
+	/**
+	 * Stops the event loops. Transfers still running
+	 * are completed as failed.
+	 */
+	public void close() {
+		for (EventLoop loop : loops) {
+			loop.close();
+		}
+	}
+
+	/**
+	 * @param port - the port new transfers send their request to
+	 */
+	public void setPort(int port) {
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+		
+		this.port = port;
+	}
+
+	/**
+	 * @param blockSize - the block size to request for new transfers
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize < DataPacket.MIN_BLOCK_SIZE || blockSize > DataPacket.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		}
+		
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @param windowSize - the window size to request for new transfers
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < DataPacket.MIN_WINDOW_SIZE || windowSize > DataPacket.MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException("Invalid window size: " + windowSize);
+		}
+		
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * @param timeout - the retransmit timeout in milliseconds for new transfers
+	 */
+	public void setTimeout(int timeout) {
+		if (timeout < 1) {
+			throw new IllegalArgumentException("Invalid timeout: " + timeout);
+		}
+		
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param maxRetries - the number of attempts before a new transfer gives up
+	 */
+	public void setMaxRetries(int maxRetries) {
+		if (maxRetries < 1) {
+			throw new IllegalArgumentException("Invalid number of retries: " + maxRetries);
+		}
+		
+		this.maxRetries = maxRetries;
+	}
+	
+	/**
+	 * Sets the number of datagrams a transfer receives in one
+	 * pass before it handles them. The data of a batch is
+	 * written to the file at once and only its last ACK is
+	 * sent. A transfer never batches more than a window,
+	 * 1 handles every datagram as it is received.
+	 * @param receiveBatch - the number of datagrams for new transfers
+	 */
+	public void setReceiveBatch(int receiveBatch) {
+		if (receiveBatch < 1) {
+			throw new IllegalArgumentException("Invalid receive batch: " + receiveBatch);
+		}
+		
+		this.receiveBatch = receiveBatch;
+	}
+	
+	/**
+	 * Sets the number of bytes of a striped GET handed to a
+	 * mirror at a time. Smaller ranges spread the file more
+	 * evenly over mirrors of different speed, each range costs
+	 * a request and the round trip to its first block.
+	 * @param segmentSize - the size of a range for new transfers
+	 */
+	public void setSegmentSize(long segmentSize) {
+		if (segmentSize < DataPacket.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+		}
+		
+		this.segmentSize = segmentSize;
+	}
+}
@@ -0,0 +1,611 @@
+package com.coltla.tftp.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.tftp.TransferResult;
+import com.coltla.utils.BlockNumbers;
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.DataParser;
+import com.coltla.utils.DatagramRing;
+import com.coltla.utils.PacketCodec;
+import com.coltla.utils.TimerWheel;
+
+/**
+ * 
+ * @author Anders
+ *
+ * State machine for a single transfer driven by an EventLoop.
+ * The transfer follows the same protocol as Engine, including
+ * blksize and windowsize negotiation, but reacts to datagrams
+ * and timer expiry instead of blocking on the socket.
+ * All methods run on the loop thread.
+ */
+class NioTransfer implements EventLoop.Handler {
+
+	private static final Logger logger = LogManager.getLogger(NioTransfer.class);
+	
+	private enum State {
+		REQUESTED, TRANSFERRING, DONE
+	}
+	
+	private final InetAddress serverIP;
+	private final int port;
+	private final Direction direction;
+	private final Mode mode;
+	// Name of the file on the server and
+	// of the file read or written locally
+	private final String fileName;
+	private final String localFile;
+	private final int requestedBlockSize;
+	private final int requestedWindowSize;
+	private final int timeoutMillis;
+	private final int maxRetries;
+	private final int receiveBatch;
+	private final CompletableFuture<TransferResult> future = new CompletableFuture<>();
+	
+	private EventLoop loop;
+	private DatagramChannel channel;
+	private SelectionKey key;
+	private FileChannel file;
+	private File tempFile;
+	private State state;
+	
+	// Transfer ID of the server, set by its first reply
+	private SocketAddress serverAddress;
+	
+	private int blockSize;
+	private int windowSize = DataPacket.MIN_WINDOW_SIZE;
+	
+	private ByteBuffer request;
+	private ByteBuffer ack;
+	private final PacketCodec codec = new PacketCodec();
+	
+	// Datagrams are received a batch at a time, up to a window
+	// of them. The data of a batch is written at once and only
+	// the last ACK it calls for is sent.
+	private DatagramRing ring;
+	private int pendingAck = -1;
+	
+	// Blocks are counted without limit, the wire
+	// numbers roll over to 0 after 65535
+	private final BlockNumbers blockNumbers = BlockNumbers.ROLLOVER_TO_ZERO;
+	
+	// GET, see Engine.processGetRequest
+	private int expectedBlock = 1;
+	private int outOfOrderBlock = -1;
+	private int windowCount;
+	
+	// PUT, see Engine.processPutRequest
+	private ByteBuffer[] window;
+	private int windowStart = 1;
+	private int nextBlock = 1;
+	private int lastBlock = -1;
+	private int resentAfter = -1;
+	
+	private TimerWheel.Timeout timeout;
+	private final Runnable onTimeout = new Runnable() {
+		
+		@Override
+		public void run() {
+			timeout();
+		}
+	};
+	private int retry;
+	
+	private long bytesTransferred;
+	private long start;
+	
+	NioTransfer(InetAddress serverIP, int port, Direction direction, Mode mode, String fileName, String localFile,
+			int blockSize, int windowSize, int timeoutMillis, int maxRetries, int receiveBatch) {
+		this.serverIP = serverIP;
+		this.port = port;
+		this.direction = direction;
+		this.mode = mode;
+		this.fileName = fileName;
+		this.localFile = localFile;
+		this.requestedBlockSize = blockSize;
+		this.requestedWindowSize = windowSize;
+		this.timeoutMillis = timeoutMillis;
+		this.maxRetries = maxRetries;
+		this.receiveBatch = receiveBatch;
+	}
+	
+	/**
+	 * Opens the file and channel and sends the request.
+	 * @param loop - the loop driving the transfer
+	 */
+	void start(EventLoop loop) {
+		this.loop = loop;
+		this.start = System.nanoTime();
+		
+		try {
+			if (direction == Direction.GET) {
+				// Receive into a temp file next to the target so
+				// the final rename is atomic
+				File target = new File(localFile).getAbsoluteFile();
+				tempFile = File.createTempFile("xxx-", "tmp", target.getParentFile());
+				file = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+			} else {
+				file = FileChannel.open(new File(localFile).toPath(), StandardOpenOption.READ);
+			}
+			
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.bind(null);
+			key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		} catch (IOException ex) {
+			logger.error("Unable to start transfer of " + fileName, ex);
+			finish(false);
+			return;
+		}
+		
+		// Until the server acknowledges the options we have
+		// to be able to receive a block of the requested size,
+		// and an OACK of up to 512 bytes when blocks are smaller
+		blockSize = requestedBlockSize;
+		ring = new DatagramRing(1, Math.max(blockSize, DataPacket.MAX_DATA_SIZE) + PacketCodec.HEADER_SIZE);
+		ack = ByteBuffer.allocate(4);
+		request = buildRequest();
+		state = State.REQUESTED;
+		
+		send(request, new InetSocketAddress(serverIP, port));
+		schedule();
+	}
+	
+	@Override
+	public void onReadable(SelectionKey key) {
+		try {
+			while (state != State.DONE && ring.receive(channel) > 0) {
+				ByteBuffer datagram;
+				
+				while (state != State.DONE && (datagram = ring.poll()) != null) {
+					handlePacket(ring.getSender(), datagram);
+				}
+				
+				flush();
+			}
+		} catch (IOException ex) {
+			logger.error("Error reading from server", ex);
+			finish(false);
+		}
+	}
+	
+	@Override
+	public void onClose() {
+		finish(false);
+	}
+	
+	/**
+	 * Handles a datagram taken from the ring.
+	 * @param from - the sender of the datagram
+	 * @param received - the datagram
+	 * @throws IOException
+	 */
+	private void handlePacket(SocketAddress from, ByteBuffer received) throws IOException {
+		if (state == State.REQUESTED) {
+			serverAddress = from;
+		} else if (!from.equals(serverAddress)) {
+			// Not from the server we are talking to
+			return;
+		}
+		
+		// DATA and ACK are read in place, DataPacket is
+		// only used for the rare ERR and OACK packets
+		codec.wrap(received);
+		int opCode = codec.getOpCode();
+		
+		if (opCode == PacketCodec.OP_ERR) {
+			DataPacket packet = new DataPacket(codec.toArray());
+			logger.error("Server reported error for " + fileName + ": "
+					+ packet.getErrCode() + " - " + packet.getErrorMsg());
+			finish(false);
+			return;
+		}
+		
+		if (state == State.REQUESTED) {
+			state = State.TRANSFERRING;
+			
+			if (opCode == PacketCodec.OP_OACK) {
+				if (!acceptOptions(new DataPacket(codec.toArray()))) {
+					return;
+				}
+				
+				// A GET receives up to a window of blocks at a time,
+				// a PUT only ACKs
+				int slotSize = direction == Direction.GET ? blockSize : DataPacket.MAX_DATA_SIZE;
+				ring = new DatagramRing(Math.min(receiveBatch, windowSize), slotSize + PacketCodec.HEADER_SIZE);
+				sizeBuffers();
+				
+				if (direction == Direction.GET) {
+					// Acknowledge the options with block 0
+					retry = 0;
+					sendAck(0);
+					schedule();
+					return;
+				}
+			} else {
+				// Server ignored the options
+				blockSize = DataPacket.MAX_DATA_SIZE;
+			}
+		}
+		
+		int wire = codec.getBlock();
+		
+		if (direction == Direction.GET && opCode == PacketCodec.OP_DATA && wire >= 0) {
+			receiveData(blockNumbers.fromWire(wire, expectedBlock));
+		} else if (direction == Direction.PUT && opCode == PacketCodec.OP_ACK && wire >= 0) {
+			// Blocks acknowledged before the window are of no interest
+			receiveAck(blockNumbers.fromWire(wire, windowStart - 1));
+		} else if (direction == Direction.PUT && opCode == PacketCodec.OP_OACK) {
+			// The OACK takes the place of the ACK for block 0
+			receiveAck(0);
+		}
+	}
+	
+	/**
+	 * Writes a block of data received in order, and
+	 * acknowledges it if it ends the window or the file.
+	 * @param block
+	 * @throws IOException
+	 */
+	private void receiveData(int block) throws IOException {
+		if (block != expectedBlock) {
+			// Only the first block out of order is answered, the
+			// rest of its window follows it
+			if (outOfOrderBlock < 0) {
+				outOfOrderBlock = block;
+			}
+			
+			if (block == outOfOrderBlock) {
+				windowCount = 0;
+				pendingAck = expectedBlock - 1;
+			}
+			
+			return;
+		}
+		
+		ByteBuffer payload = codec.payload();
+		int length = payload.remaining();
+		
+		ring.retain(payload);
+		bytesTransferred += length;
+		expectedBlock++;
+		outOfOrderBlock = -1;
+		retry = 0;
+		
+		boolean last = length < blockSize;
+		
+		if (last || ++windowCount == windowSize) {
+			windowCount = 0;
+			pendingAck = block;
+		}
+		
+		if (last) {
+			flush();
+			finish(true);
+		} else {
+			schedule();
+		}
+	}
+	
+	/**
+	 * Writes the data of the batch handled and sends the
+	 * last ACK it called for. An ACK acknowledges every
+	 * block before it, so the earlier ones are not needed.
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (state == State.DONE) {
+			return;
+		}
+		
+		ring.write(file);
+		
+		if (pendingAck >= 0) {
+			sendAck(pendingAck);
+			pendingAck = -1;
+		}
+	}
+	
+	/**
+	 * Slides the window past an acknowledged block
+	 * and sends the blocks that now fit in it.
+	 * @param block
+	 * @throws IOException
+	 */
+	private void receiveAck(int block) throws IOException {
+		if (block >= windowStart && block < nextBlock) {
+			windowStart = block + 1;
+			retry = 0;
+			
+			if (block == lastBlock) {
+				finish(true);
+				return;
+			}
+		} else if (block == windowStart - 1 && nextBlock == windowStart) {
+			// ACK 0 or OACK, nothing has been sent yet
+			retry = 0;
+		} else if (block == windowStart - 1 && block != resentAfter && windowSize > 1) {
+			// The server is missing blocks from the window
+			resendWindow();
+			resentAfter = block;
+			schedule();
+			return;
+		} else {
+			return;
+		}
+		
+		fillWindow();
+		schedule();
+	}
+	
+	/**
+	 * Reads and sends blocks until the window is full.
+	 * @throws IOException
+	 */
+	private void fillWindow() throws IOException {
+		if (window == null) {
+			window = new ByteBuffer[windowSize];
+			
+			for (int i = 0; i < windowSize; i++) {
+				window[i] = ByteBuffer.allocate(blockSize + PacketCodec.HEADER_SIZE);
+			}
+		}
+		
+		while (lastBlock < 0 && nextBlock < windowStart + windowSize) {
+			ByteBuffer buf = window[nextBlock % windowSize];
+			PacketCodec.putDataHeader(buf, blockNumbers.toWire(nextBlock));
+			
+			while (buf.hasRemaining() && file.read(buf) >= 0) {
+				// Keep reading until the block is full or end of file
+			}
+			
+			int length = buf.position() - PacketCodec.HEADER_SIZE;
+			
+			if (length < blockSize) {
+				lastBlock = nextBlock;
+			}
+			
+			bytesTransferred += length;
+			buf.flip();
+			send(buf, serverAddress);
+			nextBlock++;
+		}
+	}
+	
+	/**
+	 * Sends the unacknowledged blocks again.
+	 */
+	private void resendWindow() {
+		for (int i = windowStart; i < nextBlock; i++) {
+			ByteBuffer buf = window[i % windowSize];
+			buf.position(0);
+			send(buf, serverAddress);
+		}
+	}
+	
+	/**
+	 * Called by the timer wheel when nothing has been
+	 * heard from the server in time.
+	 */
+	private void timeout() {
+		timeout = null;
+		
+		if (state == State.DONE) {
+			return;
+		}
+		
+		if (++retry >= maxRetries) {
+			logger.error("No response from server for " + fileName);
+			finish(false);
+			return;
+		}
+		
+		if (state == State.REQUESTED) {
+			request.position(0);
+			send(request, new InetSocketAddress(serverIP, port));
+		} else if (direction == Direction.GET) {
+			windowCount = 0;
+			sendAck(expectedBlock - 1);
+		} else if (nextBlock > windowStart) {
+			resendWindow();
+		}
+		
+		schedule();
+	}
+	
+	/**
+	 * (Re)starts the retransmit timer.
+	 */
+	private void schedule() {
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		
+		timeout = loop.getTimers().schedule(onTimeout, timeoutMillis);
+	}
+	
+	/**
+	 * Applies the options acknowledged by the server,
+	 * see Engine.acceptOptions.
+	 * @param oack
+	 * @return true if the options were accepted
+	 */
+	private boolean acceptOptions(DataPacket oack) {
+		int size = getIntOption(oack, DataPacket.OPTION_BLKSIZE, DataPacket.MAX_DATA_SIZE);
+		int windowSize = getIntOption(oack, DataPacket.OPTION_WINDOWSIZE, DataPacket.MIN_WINDOW_SIZE);
+		
+		if (size < DataPacket.MIN_BLOCK_SIZE || size > requestedBlockSize
+				|| windowSize < DataPacket.MIN_WINDOW_SIZE || windowSize > requestedWindowSize) {
+			logger.error("Server acknowledged unacceptable options for " + fileName + ": " + oack.getOptions());
+			send(ByteBuffer.wrap(DataParser.OPTION_NEGOTIATION_FAILED), serverAddress);
+			finish(false);
+			return false;
+		}
+		
+		this.blockSize = size;
+		this.windowSize = windowSize;
+		return true;
+	}
+	
+	/**
+	 * Makes room in the socket buffer for a whole window of
+	 * blocks, see ServerSession.sizeBuffers. A window that
+	 * does not fit is dropped again each time it is resent.
+	 */
+	private void sizeBuffers() {
+		int size = 2 * windowSize * (blockSize + PacketCodec.HEADER_SIZE);
+		SocketOption<Integer> option = direction == Direction.GET
+				? StandardSocketOptions.SO_RCVBUF : StandardSocketOptions.SO_SNDBUF;
+		
+		try {
+			if (channel.getOption(option) < size) {
+				channel.setOption(option, size);
+			}
+		} catch (IOException ex) {
+			// The system default has to do
+			logger.debug("Unable to size the socket buffer for " + fileName + ": " + ex.getMessage());
+		}
+	}
+	
+	private static int getIntOption(DataPacket packet, String name, int defaultValue) {
+		String value = packet.getOption(name);
+		
+		if (value == null) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Builds the RRQ or WRQ, with options when they
+	 * differ from the RFC 1350 defaults.
+	 * @return buffer holding the request
+	 */
+	private ByteBuffer buildRequest() {
+		Map<String, String> options = new LinkedHashMap<>();
+		
+		if (requestedBlockSize != DataPacket.MAX_DATA_SIZE) {
+			options.put(DataPacket.OPTION_BLKSIZE, Integer.toString(requestedBlockSize));
+		}
+		
+		if (requestedWindowSize != DataPacket.MIN_WINDOW_SIZE) {
+			options.put(DataPacket.OPTION_WINDOWSIZE, Integer.toString(requestedWindowSize));
+		}
+		
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte[] name = fileName.getBytes();
+		byte[] transferMode = mode.toString().getBytes();
+		byte[] encodedOptions = DataPacket.encodeOptions(options);
+		
+		outputStream.write(0x00);
+		outputStream.write(direction == Direction.GET ? PacketCodec.OP_RRQ : PacketCodec.OP_WRQ);
+		outputStream.write(name, 0, name.length);
+		outputStream.write(0x00);
+		outputStream.write(transferMode, 0, transferMode.length);
+		outputStream.write(0x00);
+		outputStream.write(encodedOptions, 0, encodedOptions.length);
+		
+		return ByteBuffer.wrap(outputStream.toByteArray());
+	}
+	
+	private void sendAck(int block) {
+		send(PacketCodec.putAck(ack, blockNumbers.toWire(block)), serverAddress);
+	}
+	
+	/**
+	 * Sends a datagram. A datagram the channel has no
+	 * room for is dropped and recovered like a lost one.
+	 * @param buf
+	 * @param target
+	 */
+	private void send(ByteBuffer buf, SocketAddress target) {
+		try {
+			channel.send(buf, target);
+		} catch (IOException ex) {
+			logger.error("Error sending to server", ex);
+		}
+	}
+	
+	/**
+	 * Releases the channel and file and completes the future.
+	 * A completed GET is renamed to its target name,
+	 * an incomplete one is deleted.
+	 * @param complete
+	 */
+	private void finish(boolean complete) {
+		if (state == State.DONE) {
+			return;
+		}
+		
+		state = State.DONE;
+		
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+		
+		try {
+			if (key != null) {
+				key.cancel();
+			}
+			
+			if (channel != null) {
+				channel.close();
+			}
+			
+			if (file != null) {
+				file.close();
+			}
+			
+			if (tempFile != null) {
+				if (complete) {
+					Files.move(tempFile.toPath(), new File(localFile).toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} else {
+					tempFile.delete();
+				}
+			}
+		} catch (IOException ex) {
+			logger.error("Error closing transfer of " + fileName, ex);
+			complete = false;
+		}
+		
+		future.complete(new TransferResult(serverIP, direction, mode, fileName, complete,
+				bytesTransferred, System.nanoTime() - start));
+	}
+	
+	/**
+	 * @return future completed when the transfer has finished
+	 */
+	CompletableFuture<TransferResult> getFuture() {
+		return future;
+	}
+}
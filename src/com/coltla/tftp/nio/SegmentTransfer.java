@@ -0,0 +1,527 @@
+package com.coltla.tftp.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.utils.BlockNumbers;
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.DataParser;
+import com.coltla.utils.DatagramRing;
+import com.coltla.utils.PacketCodec;
+import com.coltla.utils.TimerWheel;
+
+/**
+ *
+ * @author Anders
+ *
+ * GET of one range of a file from one mirror, for a StripedTransfer.
+ * The range starts where the offset option asks the server to start,
+ * and its data is written at its place in the shared file. Once the
+ * end of the range is reached the server is told to stop with an
+ * error, the end may be moved closer while the range is received.
+ * Otherwise it is received like a GET of NioTransfer.
+ * All methods run on the loop thread.
+ */
+class SegmentTransfer implements EventLoop.Handler {
+
+	private static final Logger logger = LogManager.getLogger(SegmentTransfer.class);
+	
+	private enum State {
+		REQUESTED, TRANSFERRING, DONE
+	}
+	
+	private final StripedTransfer striped;
+	private final InetAddress mirror;
+	private final int port;
+	private final String fileName;
+	private final FileChannel file;
+	private final int requestedBlockSize;
+	private final int requestedWindowSize;
+	private final int timeoutMillis;
+	private final int maxRetries;
+	private final int receiveBatch;
+	
+	// The range of the file, from start up to end. The bytes
+	// up to position have been received, up to written written.
+	private final long start;
+	private long end;
+	private long position;
+	private long written;
+	
+	private EventLoop loop;
+	private DatagramChannel channel;
+	private SelectionKey key;
+	private State state;
+	private SocketAddress serverAddress;
+	
+	private int blockSize;
+	private int windowSize = DataPacket.MIN_WINDOW_SIZE;
+	
+	private ByteBuffer request;
+	private final ByteBuffer ack = ByteBuffer.allocate(PacketCodec.HEADER_SIZE);
+	private final PacketCodec codec = new PacketCodec();
+	private DatagramRing ring;
+	private int pendingAck = -1;
+	
+	private final BlockNumbers blockNumbers = BlockNumbers.ROLLOVER_TO_ZERO;
+	private int expectedBlock = 1;
+	private int outOfOrderBlock = -1;
+	private int windowCount;
+	
+	private TimerWheel.Timeout timeout;
+	private final Runnable onTimeout = new Runnable() {
+		
+		@Override
+		public void run() {
+			timeout();
+		}
+	};
+	private int retry;
+	
+	SegmentTransfer(StripedTransfer striped, InetAddress mirror, int port, String fileName, FileChannel file,
+			long start, long end, int blockSize, int windowSize, int timeoutMillis, int maxRetries,
+			int receiveBatch) {
+		this.striped = striped;
+		this.mirror = mirror;
+		this.port = port;
+		this.fileName = fileName;
+		this.file = file;
+		this.start = start;
+		this.end = end;
+		this.position = start;
+		this.written = start;
+		this.requestedBlockSize = blockSize;
+		this.requestedWindowSize = windowSize;
+		this.timeoutMillis = timeoutMillis;
+		this.maxRetries = maxRetries;
+		this.receiveBatch = receiveBatch;
+	}
+	
+	/**
+	 * Opens the channel and sends the request.
+	 * @param loop - the loop driving the transfer
+	 */
+	void start(EventLoop loop) {
+		this.loop = loop;
+		
+		try {
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.bind(null);
+			key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		} catch (IOException ex) {
+			logger.error("Unable to start segment of " + fileName + " from " + mirror, ex);
+			finish(false);
+			return;
+		}
+		
+		blockSize = requestedBlockSize;
+		ring = new DatagramRing(1, Math.max(blockSize, DataPacket.MAX_DATA_SIZE) + PacketCodec.HEADER_SIZE);
+		request = buildRequest();
+		state = State.REQUESTED;
+		
+		send(request, new InetSocketAddress(mirror, port));
+		schedule();
+	}
+	
+	@Override
+	public void onReadable(SelectionKey key) {
+		try {
+			while (state != State.DONE && ring.receive(channel) > 0) {
+				ByteBuffer datagram;
+				
+				while (state != State.DONE && (datagram = ring.poll()) != null) {
+					handlePacket(ring.getSender(), datagram);
+				}
+				
+				flush();
+			}
+		} catch (IOException ex) {
+			logger.error("Error receiving " + fileName + " from " + mirror, ex);
+			finish(false);
+		}
+	}
+	
+	@Override
+	public void onClose() {
+		finish(false);
+	}
+	
+	/**
+	 * Handles a datagram taken from the ring.
+	 * @param from - the sender of the datagram
+	 * @param received - the datagram
+	 * @throws IOException
+	 */
+	private void handlePacket(SocketAddress from, ByteBuffer received) throws IOException {
+		if (state == State.REQUESTED) {
+			serverAddress = from;
+		} else if (!from.equals(serverAddress)) {
+			return;
+		}
+		
+		codec.wrap(received);
+		int opCode = codec.getOpCode();
+		
+		if (opCode == PacketCodec.OP_ERR) {
+			DataPacket packet = new DataPacket(codec.toArray());
+			logger.error("Mirror " + mirror + " reported error for " + fileName + ": "
+					+ packet.getErrCode() + " - " + packet.getErrorMsg());
+			finish(false);
+			return;
+		}
+		
+		if (state == State.REQUESTED) {
+			state = State.TRANSFERRING;
+			
+			if (opCode == PacketCodec.OP_OACK) {
+				if (!acceptOptions(new DataPacket(codec.toArray()))) {
+					return;
+				}
+				
+				ring = new DatagramRing(Math.min(receiveBatch, windowSize), blockSize + PacketCodec.HEADER_SIZE);
+				sizeBuffers();
+				retry = 0;
+				sendAck(0);
+				schedule();
+				return;
+			}
+			
+			// Without options the mirror cannot start at an offset,
+			// nor tell the size of the file
+			blockSize = DataPacket.MAX_DATA_SIZE;
+			
+			if (start > 0 || !striped.sized(this, -1)) {
+				logger.error("Mirror " + mirror + " ignored the options for " + fileName);
+				stop(false);
+				return;
+			}
+		}
+		
+		int wire = codec.getBlock();
+		
+		if (opCode == PacketCodec.OP_DATA && wire >= 0) {
+			receiveData(blockNumbers.fromWire(wire, expectedBlock));
+		}
+	}
+	
+	/**
+	 * Keeps a block of data received in order, up to the end of
+	 * the range, and acknowledges it if it ends the window. The
+	 * mirror is stopped at the end of the range or the file.
+	 * @param block
+	 * @throws IOException
+	 */
+	private void receiveData(int block) throws IOException {
+		if (block != expectedBlock) {
+			if (outOfOrderBlock < 0) {
+				outOfOrderBlock = block;
+			}
+			
+			if (block == outOfOrderBlock) {
+				windowCount = 0;
+				pendingAck = expectedBlock - 1;
+			}
+			
+			return;
+		}
+		
+		ByteBuffer payload = codec.payload();
+		int length = payload.remaining();
+		boolean last = length < blockSize;
+		
+		if (length > end - position) {
+			// The rest of the block belongs to another range
+			payload.limit(payload.position() + (int) (end - position));
+		}
+		
+		ring.retain(payload);
+		position += payload.remaining();
+		expectedBlock++;
+		outOfOrderBlock = -1;
+		retry = 0;
+		
+		if (last) {
+			pendingAck = block;
+			flush();
+			finish(true);
+		} else if (position >= end) {
+			flush();
+			stop(true);
+		} else {
+			if (++windowCount == windowSize) {
+				windowCount = 0;
+				pendingAck = block;
+			}
+			
+			schedule();
+		}
+	}
+	
+	/**
+	 * Writes the data of the batch handled at its place in
+	 * the file and sends the last ACK it called for.
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (state == State.DONE) {
+			return;
+		}
+		
+		written += ring.write(file, written);
+		
+		if (pendingAck >= 0) {
+			sendAck(pendingAck);
+			pendingAck = -1;
+		}
+	}
+	
+	/**
+	 * Tells the mirror to stop sending and finishes.
+	 * @param complete
+	 */
+	private void stop(boolean complete) {
+		send(ByteBuffer.wrap(DataParser.TRANSFER_STOPPED), serverAddress);
+		finish(complete);
+	}
+	
+	/**
+	 * Called by the timer wheel when nothing has been
+	 * heard from the mirror in time.
+	 */
+	private void timeout() {
+		timeout = null;
+		
+		if (state == State.DONE) {
+			return;
+		}
+		
+		if (++retry >= maxRetries) {
+			logger.error("No response from mirror " + mirror + " for " + fileName);
+			finish(false);
+			return;
+		}
+		
+		if (state == State.REQUESTED) {
+			request.position(0);
+			send(request, new InetSocketAddress(mirror, port));
+		} else {
+			windowCount = 0;
+			sendAck(expectedBlock - 1);
+		}
+		
+		schedule();
+	}
+	
+	private void schedule() {
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		
+		timeout = loop.getTimers().schedule(onTimeout, timeoutMillis);
+	}
+	
+	/**
+	 * Applies the options acknowledged by the mirror. It has to
+	 * start at the offset asked for, and give the same size of
+	 * the file as the other mirrors.
+	 * @param oack
+	 * @return true if the options were accepted
+	 */
+	private boolean acceptOptions(DataPacket oack) {
+		int size = getIntOption(oack, DataPacket.OPTION_BLKSIZE, DataPacket.MAX_DATA_SIZE);
+		int windowSize = getIntOption(oack, DataPacket.OPTION_WINDOWSIZE, DataPacket.MIN_WINDOW_SIZE);
+		long offset = getLongOption(oack, DataPacket.OPTION_OFFSET, 0);
+		
+		if (size < DataPacket.MIN_BLOCK_SIZE || size > requestedBlockSize
+				|| windowSize < DataPacket.MIN_WINDOW_SIZE || windowSize > requestedWindowSize
+				|| offset != start) {
+			logger.error("Mirror " + mirror + " acknowledged unacceptable options for " + fileName + ": "
+					+ oack.getOptions());
+			send(ByteBuffer.wrap(DataParser.OPTION_NEGOTIATION_FAILED), serverAddress);
+			finish(false);
+			return false;
+		}
+		
+		if (!striped.sized(this, getLongOption(oack, DataPacket.OPTION_TSIZE, -1))) {
+			logger.error("Mirror " + mirror + " has another version of " + fileName);
+			send(ByteBuffer.wrap(DataParser.OPTION_NEGOTIATION_FAILED), serverAddress);
+			finish(false);
+			return false;
+		}
+		
+		this.blockSize = size;
+		this.windowSize = windowSize;
+		return true;
+	}
+	
+	/**
+	 * Makes room in the socket buffer for a whole
+	 * window of blocks, see NioTransfer.sizeBuffers.
+	 */
+	private void sizeBuffers() {
+		int size = 2 * windowSize * (blockSize + PacketCodec.HEADER_SIZE);
+		
+		try {
+			if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < size) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+			}
+		} catch (IOException ex) {
+			logger.debug("Unable to size the socket buffer for " + fileName + ": " + ex.getMessage());
+		}
+	}
+	
+	private static int getIntOption(DataPacket packet, String name, int defaultValue) {
+		long value = getLongOption(packet, name, defaultValue);
+		
+		return value > Integer.MAX_VALUE ? -1 : (int) value;
+	}
+	
+	private static long getLongOption(DataPacket packet, String name, long defaultValue) {
+		String value = packet.getOption(name);
+		
+		if (value == null) {
+			return defaultValue;
+		}
+		
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Builds the RRQ for the range. The size of the file is
+	 * always asked for, to check the mirrors serve the same file.
+	 * @return buffer holding the request
+	 */
+	private ByteBuffer buildRequest() {
+		Map<String, String> options = new LinkedHashMap<>();
+		
+		if (requestedBlockSize != DataPacket.MAX_DATA_SIZE) {
+			options.put(DataPacket.OPTION_BLKSIZE, Integer.toString(requestedBlockSize));
+		}
+		
+		if (requestedWindowSize != DataPacket.MIN_WINDOW_SIZE) {
+			options.put(DataPacket.OPTION_WINDOWSIZE, Integer.toString(requestedWindowSize));
+		}
+		
+		options.put(DataPacket.OPTION_TSIZE, "0");
+		
+		if (start > 0) {
+			options.put(DataPacket.OPTION_OFFSET, Long.toString(start));
+		}
+		
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte[] name = fileName.getBytes();
+		byte[] transferMode = Mode.OCTET.toString().getBytes();
+		byte[] encodedOptions = DataPacket.encodeOptions(options);
+		
+		outputStream.write(0x00);
+		outputStream.write(PacketCodec.OP_RRQ);
+		outputStream.write(name, 0, name.length);
+		outputStream.write(0x00);
+		outputStream.write(transferMode, 0, transferMode.length);
+		outputStream.write(0x00);
+		outputStream.write(encodedOptions, 0, encodedOptions.length);
+		
+		return ByteBuffer.wrap(outputStream.toByteArray());
+	}
+	
+	private void sendAck(int block) {
+		send(PacketCodec.putAck(ack, blockNumbers.toWire(block)), serverAddress);
+	}
+	
+	private void send(ByteBuffer buf, SocketAddress target) {
+		try {
+			channel.send(buf, target);
+		} catch (IOException ex) {
+			logger.error("Error sending to mirror " + mirror, ex);
+		}
+	}
+	
+	/**
+	 * Releases the channel and reports to the striped transfer.
+	 * The shared file is left open.
+	 * @param complete
+	 */
+	private void finish(boolean complete) {
+		if (state == State.DONE) {
+			return;
+		}
+		
+		state = State.DONE;
+		
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+		
+		try {
+			if (key != null) {
+				key.cancel();
+			}
+			
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException ex) {
+			logger.error("Error closing segment of " + fileName + " from " + mirror, ex);
+		}
+		
+		striped.segmentFinished(this, complete);
+	}
+	
+	/**
+	 * @return the mirror the range is received from
+	 */
+	InetAddress getMirror() {
+		return mirror;
+	}
+	
+	/**
+	 * @return the position of the next byte to receive
+	 */
+	long getPosition() {
+		return position;
+	}
+	
+	/**
+	 * @return the position of the next byte to write, the
+	 * range is received again from here should it fail
+	 */
+	long getWritten() {
+		return written;
+	}
+	
+	/**
+	 * @return the end of the range
+	 */
+	long getEnd() {
+		return end;
+	}
+	
+	/**
+	 * Moves the end of the range, e.g. to hand the
+	 * rest to a faster mirror or once the size is known.
+	 * @param end - not before the position
+	 */
+	void setEnd(long end) {
+		this.end = Math.max(end, position);
+	}
+}
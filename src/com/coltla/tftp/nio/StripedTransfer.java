@@ -0,0 +1,275 @@
+package com.coltla.tftp.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.tftp.TransferResult;
+
+/**
+ *
+ * @author Anders
+ *
+ * GET of one file from several mirrors at once. The file is cut
+ * into ranges of segmentSize bytes, handed out in order to whichever
+ * mirror is free, so a fast mirror fetches more of them than a slow
+ * one. Each range is a SegmentTransfer of its own, written at its
+ * place in a temp file renamed once every range is in.
+ *
+ * The size of the file is learnt from the first mirror (tsize)
+ * before the other mirrors start. A mirror that fails is dropped
+ * and what it had not written is handed out again. Once nothing is
+ * left to hand out, a free mirror takes over the second half of the
+ * largest range still being received, so the last ranges are not
+ * left to the slowest mirror. A mirror that cannot tell the size
+ * of the file sends all of it alone.
+ *
+ * The ranges start with the offset option, see Engine.setResumable.
+ * All methods but the constructor run on the loop thread.
+ */
+class StripedTransfer {
+
+	private static final Logger logger = LogManager.getLogger(StripedTransfer.class);
+	
+	// A range is not split when less than twice this is left of it
+	static final long MIN_STEAL_SIZE = 256 * 1024;
+	
+	private final List<InetAddress> mirrors;
+	private final int port;
+	private final String fileName;
+	private final String localFile;
+	private final long segmentSize;
+	private final int blockSize;
+	private final int windowSize;
+	private final int timeoutMillis;
+	private final int maxRetries;
+	private final int receiveBatch;
+	private final CompletableFuture<TransferResult> future = new CompletableFuture<>();
+	
+	private EventLoop loop;
+	private FileChannel file;
+	private File tempFile;
+	private boolean done;
+	private long start;
+	
+	// Size of the file, -1 until a mirror tells it
+	private long size = -1;
+	
+	// Ranges not handed out yet, from and to, the mirrors
+	// waiting for one and the ranges being received
+	private final Deque<long[]> ranges = new ArrayDeque<>();
+	private final Deque<InetAddress> idle = new ArrayDeque<>();
+	private final List<SegmentTransfer> active = new ArrayList<>();
+	
+	StripedTransfer(List<InetAddress> mirrors, int port, String fileName, String localFile, long segmentSize,
+			int blockSize, int windowSize, int timeoutMillis, int maxRetries, int receiveBatch) {
+		this.mirrors = new ArrayList<>(mirrors);
+		this.port = port;
+		this.fileName = fileName;
+		this.localFile = localFile;
+		this.segmentSize = segmentSize;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		this.timeoutMillis = timeoutMillis;
+		this.maxRetries = maxRetries;
+		this.receiveBatch = receiveBatch;
+	}
+	
+	/**
+	 * Opens the temp file and asks the first mirror for the file.
+	 * @param loop - the loop driving the segments
+	 */
+	void start(EventLoop loop) {
+		this.loop = loop;
+		this.start = System.nanoTime();
+		
+		try {
+			// Receive into a temp file next to the target so
+			// the final rename is atomic
+			File target = new File(localFile).getAbsoluteFile();
+			tempFile = File.createTempFile("xxx-", "tmp", target.getParentFile());
+			file = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+		} catch (IOException ex) {
+			logger.error("Unable to start striped transfer of " + fileName, ex);
+			finish(false);
+			return;
+		}
+		
+		// The whole file until its size is known
+		ranges.add(new long[] { 0, Long.MAX_VALUE });
+		idle.addAll(mirrors);
+		dispatch();
+	}
+	
+	/**
+	 * Called by a segment once its mirror has told the size of
+	 * the file. The first size known splits the file into ranges.
+	 * @param segment
+	 * @param tsize - the size, or -1 if the mirror did not tell it
+	 * @return false if the mirror has a file of another size
+	 */
+	boolean sized(SegmentTransfer segment, long tsize) {
+		if (tsize < 0 || tsize == size) {
+			return true;
+		}
+		
+		if (size >= 0) {
+			return false;
+		}
+		
+		size = tsize;
+		logger.debug("Striping " + fileName + " of " + size + " bytes over " + mirrors.size() + " mirrors");
+		
+		long end = Math.min(size, segment.getPosition() + segmentSize);
+		segment.setEnd(end);
+		
+		for (long from = end; from < size; from += segmentSize) {
+			ranges.add(new long[] { from, Math.min(size, from + segmentSize) });
+		}
+		
+		dispatch();
+		return true;
+	}
+	
+	/**
+	 * Called by a segment once it has ended. The mirror of a
+	 * range received takes the next one, the rest of a range
+	 * that failed is handed out again.
+	 * @param segment
+	 * @param complete
+	 */
+	void segmentFinished(SegmentTransfer segment, boolean complete) {
+		active.remove(segment);
+		
+		if (done) {
+			return;
+		}
+		
+		if (complete) {
+			idle.add(segment.getMirror());
+		} else {
+			logger.warn("Dropping mirror " + segment.getMirror() + " for " + fileName);
+			
+			if (segment.getWritten() < segment.getEnd()) {
+				ranges.addFirst(new long[] { segment.getWritten(), segment.getEnd() });
+			}
+		}
+		
+		dispatch();
+	}
+	
+	/**
+	 * Hands out ranges to the free mirrors, and finishes
+	 * once every range has been received or no mirror is left.
+	 */
+	private void dispatch() {
+		while (!done && !idle.isEmpty()) {
+			long[] range = ranges.pollFirst();
+			
+			// Only one mirror until the size is known
+			if (range == null && size >= 0) {
+				range = steal();
+			} else if (range != null && size < 0 && !active.isEmpty()) {
+				ranges.addFirst(range);
+				range = null;
+			}
+			
+			if (range == null) {
+				break;
+			}
+			
+			SegmentTransfer segment = new SegmentTransfer(this, idle.pollFirst(), port, fileName, file,
+					range[0], range[1], blockSize, windowSize, timeoutMillis, maxRetries, receiveBatch);
+			active.add(segment);
+			segment.start(loop);
+		}
+		
+		if (!done && active.isEmpty()) {
+			finish(ranges.isEmpty());
+		}
+	}
+	
+	/**
+	 * Takes the second half of the range with the most left
+	 * to receive away from its mirror.
+	 * @return the range taken, or null if none is worth splitting
+	 */
+	private long[] steal() {
+		SegmentTransfer largest = null;
+		
+		for (SegmentTransfer segment : active) {
+			if (largest == null
+					|| segment.getEnd() - segment.getPosition() > largest.getEnd() - largest.getPosition()) {
+				largest = segment;
+			}
+		}
+		
+		if (largest == null || largest.getEnd() - largest.getPosition() < 2 * MIN_STEAL_SIZE) {
+			return null;
+		}
+		
+		long end = largest.getEnd();
+		long split = largest.getPosition() + (end - largest.getPosition()) / 2;
+		largest.setEnd(split);
+		
+		return new long[] { split, end };
+	}
+	
+	/**
+	 * Closes the temp file and completes the future.
+	 * A complete file is renamed to its target name,
+	 * an incomplete one is deleted.
+	 * @param complete
+	 */
+	private void finish(boolean complete) {
+		done = true;
+		
+		if (!complete) {
+			logger.error("No mirror left to receive " + fileName + " from");
+		}
+		
+		try {
+			if (file != null) {
+				file.close();
+			}
+			
+			if (tempFile != null) {
+				if (complete) {
+					Files.move(tempFile.toPath(), new File(localFile).toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} else {
+					tempFile.delete();
+				}
+			}
+		} catch (IOException ex) {
+			logger.error("Error closing striped transfer of " + fileName, ex);
+			complete = false;
+		}
+		
+		long bytes = complete ? new File(localFile).length() : 0;
+		
+		future.complete(new TransferResult(mirrors.get(0), Direction.GET, Mode.OCTET, fileName, complete,
+				bytes, System.nanoTime() - start));
+	}
+	
+	/**
+	 * @return future completed when the transfer has finished
+	 */
+	CompletableFuture<TransferResult> getFuture() {
+		return future;
+	}
+}
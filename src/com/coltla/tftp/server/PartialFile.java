@@ -0,0 +1,131 @@
+package com.coltla.tftp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ *
+ * @author Anders
+ *
+ * What a resumable WRQ that failed left behind: its partial file,
+ * named by the file and its size, and a checkpoint next to it. The
+ * checkpoint records the file the data came from, as the client
+ * identified it, how many bytes were received in order and their
+ * CRC-32C. A resumed WRQ keeps the partial file only if it comes
+ * from the same file, and the client checks the CRC against its
+ * own before it skips any of it.
+ *
+ * Only the checkpoint is read, never the partial file, so a
+ * session can resume one on the event loop.
+ */
+class PartialFile {
+
+	private static final String PARTIAL_SUFFIX = ".part";
+	private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	private static final String KEY_SOURCE = "source";
+	private static final String KEY_OFFSET = "offset";
+	private static final String KEY_CRC = "crc32c";
+
+	private final Path path;
+	private final Path checkpoint;
+
+	private long crc;
+
+	/**
+	 * @param target - the file the WRQ writes
+	 * @param size - the size the client announced
+	 */
+	PartialFile(Path target, long size) {
+		this.path = target.resolveSibling(target.getFileName() + "." + size + PARTIAL_SUFFIX);
+		this.checkpoint = path.resolveSibling(path.getFileName() + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * Reads the checkpoint of the partial file.
+	 * @param source - the file the client sends, as it identifies
+	 * it, or null if it does not
+	 * @param size - the size of the partial file
+	 * @return the number of bytes to keep, 0 if there is no
+	 * checkpoint, it is of another file, or the partial file
+	 * is shorter than it
+	 */
+	long resume(String source, long size) {
+		Properties properties = new Properties();
+		long offset;
+
+		try (InputStream in = Files.newInputStream(checkpoint)) {
+			properties.load(in);
+
+			offset = Long.parseLong(properties.getProperty(KEY_OFFSET));
+			crc = Long.parseLong(properties.getProperty(KEY_CRC), 16);
+		} catch (IOException | RuntimeException ex) {
+			// No checkpoint, or not one we wrote
+			return 0;
+		}
+
+		if (!String.valueOf(source).equals(properties.getProperty(KEY_SOURCE)) || offset <= 0 || offset > size) {
+			return 0;
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Records the bytes received in order. The data must be on
+	 * the disk before the checkpoint is, see FileChannel.force.
+	 * @param source - the file the client sends, or null
+	 * @param offset - the number of bytes received in order
+	 * @param crc - their CRC-32C
+	 * @throws IOException
+	 */
+	void save(String source, long offset, long crc) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(KEY_SOURCE, String.valueOf(source));
+		properties.setProperty(KEY_OFFSET, Long.toString(offset));
+		properties.setProperty(KEY_CRC, Long.toHexString(crc));
+
+		Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			properties.store(out, "TFTP partial file");
+		}
+
+		Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Removes the checkpoint, e.g. once the file is complete
+	 * or the partial file is dropped.
+	 */
+	void delete() {
+		try {
+			Files.deleteIfExists(checkpoint);
+		} catch (NoSuchFileException ex) {
+			// Gone already
+		} catch (IOException ex) {
+			// A checkpoint left behind names the wrong
+			// number of bytes and is never trusted
+		}
+	}
+
+	/**
+	 * @return the partial file
+	 */
+	Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the CRC-32C of the bytes to keep, once resumed
+	 */
+	long getCrc() {
+		return crc;
+	}
+}
@@ -0,0 +1,967 @@
+package com.coltla.tftp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.coltla.metrics.TransferMetrics;
+import com.coltla.metrics.TransferMetrics.Phase;
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.tftp.nio.EventLoop;
+import com.coltla.utils.BlockNumbers;
+import com.coltla.utils.Crc32c;
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.DataParser;
+import com.coltla.utils.DatagramRing;
+import com.coltla.utils.FileCache;
+import com.coltla.utils.NetasciiInputStream;
+import com.coltla.utils.NetasciiOutputStream;
+import com.coltla.utils.PacketCodec;
+import com.coltla.utils.TimerWheel;
+
+/**
+ *
+ * @author Anders
+ *
+ * State machine serving a single RRQ or WRQ, driven by an
+ * EventLoop. A RRQ is answered like the client sends a PUT
+ * and a WRQ like the client receives a GET, a window of
+ * blocks at a time (see NioTransfer). All methods run on
+ * the loop thread.
+ */
+class ServerSession implements EventLoop.Handler {
+
+	private static final Logger logger = LogManager.getLogger(ServerSession.class);
+
+	private enum State {
+		// OACK sent, waiting for ACK 0 or DATA 1
+		NEGOTIATING,
+		TRANSFERRING,
+		// Last block received and acknowledged, the ACK
+		// is sent again should the client not have seen it
+		DALLYING,
+		DONE
+	}
+
+	private final TftpServer server;
+	private final DataPacket request;
+	private final SocketAddress client;
+	private final TftpServer.RequestKey requestKey;
+	private final boolean read;
+
+	private EventLoop loop;
+	private DatagramChannel channel;
+	private SelectionKey key;
+	private State state;
+	private boolean answered;
+
+	// RRQ reads the file, text through in to convert it, or
+	// sends slices of the cached file. WRQ writes to a temp file
+	// renamed to path once complete, text through out to convert it.
+	private Path path;
+	private FileChannel file;
+	private ByteBuffer cached;
+	private InputStream in;
+	private OutputStream out;
+	private WritableByteChannel outChannel;
+	private Path tempFile;
+
+	// Bytes of the file a resumed RRQ skips, or a resumed WRQ
+	// kept in its partial file. A binary WRQ asking to resume
+	// is received into a partial file named by its size, kept
+	// for the next attempt if the transfer fails, along with the
+	// CRC of the data received in order.
+	private long offset;
+	private PartialFile partial;
+	private CRC32C partialCrc;
+
+	private int blockSize = DataPacket.MAX_DATA_SIZE;
+	private int windowSize = DataPacket.MIN_WINDOW_SIZE;
+	private BlockNumbers blockNumbers = BlockNumbers.ROLLOVER_TO_ZERO;
+
+	private ByteBuffer oack;
+	private final ByteBuffer ack = ByteBuffer.allocate(PacketCodec.HEADER_SIZE);
+	private final PacketCodec codec = new PacketCodec();
+	private TransferMetrics metrics;
+
+	// Datagrams are received a batch at a time,
+	// see NioTransfer.onReadable
+	private DatagramRing ring;
+	private int pendingAck = -1;
+
+	// WRQ, see NioTransfer.receiveData
+	private int expectedBlock = 1;
+	private int outOfOrderBlock = -1;
+	private int windowCount;
+
+	// RRQ, see NioTransfer.fillWindow. A block is a single
+	// buffer, or a header and a slice of the cached file.
+	private ByteBuffer[][] window;
+	private int windowStart = 1;
+	private int nextBlock = 1;
+	private int lastBlock = -1;
+	private int resentAfter = -1;
+
+	private TimerWheel.Timeout timeout;
+	private final Runnable onTimeout = new Runnable() {
+
+		@Override
+		public void run() {
+			timeout();
+		}
+	};
+	private int retry;
+
+	ServerSession(TftpServer server, DataPacket request, SocketAddress client, TftpServer.RequestKey requestKey) {
+		this.server = server;
+		this.request = request;
+		this.client = client;
+		this.requestKey = requestKey;
+		this.read = request.isRRQ();
+	}
+
+	/**
+	 * Opens the channel and the file, and answers the
+	 * request with an OACK, ACK 0 or the first blocks.
+	 * @param loop - the loop driving the session
+	 */
+	void start(EventLoop loop) {
+		this.loop = loop;
+		metrics = server.getMetricsRegistry().startTransfer(((InetSocketAddress) client).getAddress(),
+				read ? Direction.GET : Direction.PUT, request.getFilename());
+
+		try {
+			// The channel only exchanges datagrams with the client
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(server.getAddress(), 0));
+			channel.connect(client);
+			key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		} catch (IOException ex) {
+			logger.error("Unable to open a channel for " + client, ex);
+			finish(false);
+			return;
+		}
+
+		logger.debug((read ? "RRQ " : "WRQ ") + request.getFilename() + " from " + client);
+
+		if (!openFile() || !reserveSpace()) {
+			finish(false);
+			return;
+		}
+
+		Map<String, String> options = negotiateOptions();
+		// A RRQ only receives ACKs and ERRs
+		ring = new DatagramRing(Math.min(server.getReceiveBatch(), windowSize),
+				(read ? DataPacket.MAX_DATA_SIZE : blockSize) + PacketCodec.HEADER_SIZE);
+		sizeBuffers();
+
+		if (!options.isEmpty()) {
+			oack = buildOack(options);
+			state = State.NEGOTIATING;
+			send(oack);
+		} else if (read) {
+			state = State.TRANSFERRING;
+			metrics.enterPhase(Phase.TRANSFER);
+
+			if (!fillWindow()) {
+				return;
+			}
+		} else {
+			state = State.TRANSFERRING;
+			metrics.enterPhase(Phase.TRANSFER);
+			sendAck(0);
+		}
+
+		schedule();
+	}
+
+	/**
+	 * Opens the file the request names, or sends the
+	 * client the error that prevents it.
+	 * @return true if the file was opened
+	 */
+	private boolean openFile() {
+		path = server.resolve(request.getFilename());
+
+		if (path == null) {
+			send(ByteBuffer.wrap(DataParser.ACCESS_VIOLATION));
+			return false;
+		}
+
+		boolean netascii = Mode.NETASCII.name().equalsIgnoreCase(request.getMode());
+
+		try {
+			if (read) {
+				if (Files.isDirectory(path)) {
+					send(ByteBuffer.wrap(DataParser.FILE_NOT_FOUND));
+					return false;
+				}
+
+				// Text is converted as it is read, so it is not cached.
+				// This runs on the event loop, a file not cached yet is
+				// sent from disk while the cache reads it.
+				FileCache cache = server.getFileCache();
+
+				if (cache != null && !netascii) {
+					cached = cache.getNow(path);
+				}
+
+				if (cached == null) {
+					file = FileChannel.open(path, StandardOpenOption.READ);
+				}
+
+				if (netascii) {
+					in = new NetasciiInputStream(Channels.newInputStream(file));
+				}
+			} else {
+				if (Files.exists(path) && !server.isOverwrite()) {
+					send(ByteBuffer.wrap(DataParser.FILE_EXISTS));
+					return false;
+				}
+
+				// Receive next to the target so the rename is atomic
+				if (netascii || !openPartialFile()) {
+					tempFile = Files.createTempFile(path.getParent(), "xxx-", "tmp");
+					file = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+				}
+
+				// Received blocks are direct buffers, text is
+				// converted through a channel over the stream
+				if (netascii) {
+					out = new NetasciiOutputStream(Channels.newOutputStream(file));
+					outChannel = Channels.newChannel(out);
+				}
+			}
+		} catch (NoSuchFileException ex) {
+			send(ByteBuffer.wrap(DataParser.FILE_NOT_FOUND));
+			return false;
+		} catch (AccessDeniedException ex) {
+			send(ByteBuffer.wrap(DataParser.ACCESS_VIOLATION));
+			return false;
+		} catch (IOException ex) {
+			logger.error("Unable to open " + path, ex);
+			send(ByteBuffer.wrap(DataParser.NOT_DEFINED));
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Opens the partial file of a WRQ asking to resume, and
+	 * goes on after the data it holds. Only what was written in
+	 * order is kept, see finish. A partial file in use by another
+	 * session is not resumed. One received from another file than
+	 * the client sends now, or larger than the file announced, is
+	 * started over.
+	 * @return false if the WRQ cannot be resumed
+	 * @throws IOException
+	 */
+	private boolean openPartialFile() throws IOException {
+		long tsize = getLongOption(DataPacket.OPTION_TSIZE);
+
+		if (tsize < 0 || getLongOption(DataPacket.OPTION_OFFSET) < 0) {
+			return false;
+		}
+
+		PartialFile partialFile = new PartialFile(path, tsize);
+		FileChannel opened = FileChannel.open(partialFile.getPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+
+		// Another session of this server holding the lock
+		// throws instead of returning null
+		try {
+			if (opened.tryLock() == null) {
+				opened.close();
+				return false;
+			}
+		} catch (OverlappingFileLockException ex) {
+			opened.close();
+			return false;
+		}
+
+		offset = opened.size() <= tsize ? partialFile.resume(request.getOption(DataPacket.OPTION_SOURCE), opened.size()) : 0;
+		opened.truncate(offset).position(offset);
+
+		tempFile = partialFile.getPath();
+		file = opened;
+		partial = partialFile;
+		partialCrc = new CRC32C();
+
+		return true;
+	}
+
+	/**
+	 * Refuses a WRQ announcing a file larger than the free
+	 * space before any of it is received. The temp file of a
+	 * binary WRQ is extended to the announced size at once,
+	 * see Engine.reserveSpace.
+	 * @return false if the client was sent an error
+	 */
+	private boolean reserveSpace() {
+		long tsize = read ? -1 : getLongOption(DataPacket.OPTION_TSIZE);
+
+		if (tsize <= 0) {
+			return true;
+		}
+
+		try {
+			if (tsize - offset > Files.getFileStore(tempFile).getUsableSpace()) {
+				send(ByteBuffer.wrap(DataParser.DISK_FULL));
+				return false;
+			}
+
+			// A partial file is not extended, its size is
+			// what was received the next time
+			if (out == null && partial == null) {
+				file.write(ByteBuffer.allocate(1), tsize - 1);
+			}
+		} catch (IOException ex) {
+			// The transfer fails once the disk is full instead
+			logger.debug("Unable to reserve space for " + path + ": " + ex.getMessage());
+		}
+
+		return true;
+	}
+
+	/**
+	 * Applies the options of the request within the limits
+	 * of the server. Options with invalid values are ignored,
+	 * as are options the server does not know.
+	 * @return the options to acknowledge
+	 */
+	private Map<String, String> negotiateOptions() {
+		Map<String, String> options = new LinkedHashMap<>();
+
+		int size = getIntOption(DataPacket.OPTION_BLKSIZE);
+
+		if (size >= DataPacket.MIN_BLOCK_SIZE) {
+			blockSize = Math.min(size, server.getMaxBlockSize());
+			options.put(DataPacket.OPTION_BLKSIZE, Integer.toString(blockSize));
+		}
+
+		int window = getIntOption(DataPacket.OPTION_WINDOWSIZE);
+
+		if (window >= DataPacket.MIN_WINDOW_SIZE) {
+			windowSize = Math.min(window, server.getMaxWindowSize());
+			options.put(DataPacket.OPTION_WINDOWSIZE, Integer.toString(windowSize));
+		}
+
+		int rollover = getIntOption(DataPacket.OPTION_ROLLOVER);
+
+		if (rollover == 0 || rollover == 1) {
+			blockNumbers = BlockNumbers.forRollover(rollover);
+			options.put(DataPacket.OPTION_ROLLOVER, Integer.toString(rollover));
+		}
+
+		// The size of a text file is only known once it has
+		// been converted, so it is only given for binary files.
+		// The size a client writes is acknowledged as it is.
+		long tsize = getLongOption(DataPacket.OPTION_TSIZE);
+
+		if (tsize >= 0) {
+			if (!read) {
+				options.put(DataPacket.OPTION_TSIZE, Long.toString(tsize));
+			} else if (cached != null) {
+				options.put(DataPacket.OPTION_TSIZE, Integer.toString(cached.limit()));
+			} else if (in == null) {
+				try {
+					options.put(DataPacket.OPTION_TSIZE, Long.toString(file.size()));
+				} catch (IOException ex) {
+					logger.error("Unable to read the size of " + path, ex);
+				}
+			}
+		}
+
+		// A binary RRQ skips the start of the file the client
+		// already has, a WRQ tells the client what was kept
+		long start = getLongOption(DataPacket.OPTION_OFFSET);
+
+		if (partial != null) {
+			options.put(DataPacket.OPTION_OFFSET, Long.toString(offset));
+
+			if (offset > 0) {
+				options.put(DataPacket.OPTION_OFFSET_CRC, Crc32c.toHex(partial.getCrc()));
+			}
+		} else if (read && start >= 0 && in == null) {
+			try {
+				if (start <= (cached != null ? cached.limit() : file.size())) {
+					offset = start;
+					options.put(DataPacket.OPTION_OFFSET, Long.toString(offset));
+
+					if (file != null) {
+						file.position(offset);
+					}
+				}
+			} catch (IOException ex) {
+				logger.error("Unable to read the size of " + path, ex);
+			}
+		}
+
+		return options;
+	}
+
+	/**
+	 * Makes room in the socket buffers for a whole window of
+	 * blocks. A window that does not fit is partly dropped and
+	 * only recovered once the retransmit timer expires.
+	 */
+	private void sizeBuffers() {
+		int size = 2 * windowSize * (blockSize + PacketCodec.HEADER_SIZE);
+
+		try {
+			if (read && channel.getOption(StandardSocketOptions.SO_SNDBUF) < size) {
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+			} else if (!read && channel.getOption(StandardSocketOptions.SO_RCVBUF) < size) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+			}
+		} catch (IOException ex) {
+			// The system default has to do
+			logger.debug("Unable to size the socket buffers for " + client + ": " + ex.getMessage());
+		}
+	}
+
+	private int getIntOption(String name) {
+		long value = getLongOption(name);
+
+		return value > Integer.MAX_VALUE ? -1 : (int) value;
+	}
+
+	/**
+	 * @param name - the option name
+	 * @return the value, or -1 if the option is not
+	 * present or not a number
+	 */
+	private long getLongOption(String name) {
+		String value = request.getOption(name);
+
+		if (value == null) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	private static ByteBuffer buildOack(Map<String, String> options) {
+		byte[] encoded = DataPacket.encodeOptions(options);
+		ByteBuffer packet = ByteBuffer.allocate(2 + encoded.length);
+
+		packet.putShort((short) PacketCodec.OP_OACK);
+		packet.put(encoded);
+		packet.flip();
+
+		return packet;
+	}
+
+	@Override
+	public void onReadable(SelectionKey key) {
+		try {
+			while (state != State.DONE && ring.receive(channel) > 0) {
+				ByteBuffer datagram;
+
+				while (state != State.DONE && (datagram = ring.poll()) != null) {
+					handlePacket(datagram);
+				}
+
+				flush();
+			}
+		} catch (IOException ex) {
+			// E.g. port unreachable, the client has gone
+			logger.debug("Error reading from " + client + ": " + ex.getMessage());
+			finish(false);
+		}
+	}
+
+	@Override
+	public void onClose() {
+		finish(false);
+	}
+
+	/**
+	 * Handles a datagram taken from the ring.
+	 * @param received - the datagram
+	 * @throws IOException
+	 */
+	private void handlePacket(ByteBuffer received) throws IOException {
+		codec.wrap(received);
+		int opCode = codec.getOpCode();
+		int wire = codec.getBlock();
+		metrics.packetReceived();
+
+		if (!answered) {
+			// The client has the first reply, a request
+			// like this one from it is a new transfer
+			answered = true;
+			server.sessionAnswered(requestKey, this);
+		}
+
+		if (opCode == PacketCodec.OP_ERR) {
+			// The client gave up, e.g. it refused the options. One
+			// refusing the offset of a resumed WRQ does not have the
+			// data kept, the partial file is dropped.
+			if (state == State.NEGOTIATING && partial != null && offset > 0) {
+				partial.delete();
+				partial = null;
+			}
+
+			finish(false);
+		} else if (read && opCode == PacketCodec.OP_ACK && wire >= 0) {
+			receiveAck(blockNumbers.fromWire(wire, windowStart - 1));
+		} else if (!read && opCode == PacketCodec.OP_DATA && wire >= 0) {
+			// DATA 1 acknowledges the OACK
+			if (state == State.NEGOTIATING) {
+				state = State.TRANSFERRING;
+				metrics.enterPhase(Phase.TRANSFER);
+			}
+
+			receiveData(blockNumbers.fromWire(wire, expectedBlock));
+		}
+	}
+
+	/**
+	 * Writes a block of data received in order, and
+	 * acknowledges it if it ends the window or the file.
+	 * @param block
+	 * @throws IOException
+	 */
+	private void receiveData(int block) throws IOException {
+		if (state == State.DALLYING) {
+			// The client did not see the last ACK
+			if (block == expectedBlock - 1) {
+				sendAck(block);
+			}
+
+			return;
+		}
+
+		if (block != expectedBlock) {
+			// Only the first block out of order is answered, the
+			// rest of its window follows it
+			if (outOfOrderBlock < 0) {
+				outOfOrderBlock = block;
+			}
+
+			if (block == outOfOrderBlock) {
+				windowCount = 0;
+				pendingAck = expectedBlock - 1;
+			}
+
+			return;
+		}
+
+		ByteBuffer payload = codec.payload();
+		int length = payload.remaining();
+		metrics.addBytes(length);
+		metrics.setBlock(block);
+
+		if (partialCrc != null) {
+			partialCrc.update(payload.duplicate());
+		}
+
+		if (outChannel != null) {
+			while (payload.hasRemaining()) {
+				outChannel.write(payload);
+			}
+		} else {
+			ring.retain(payload);
+		}
+
+		expectedBlock++;
+		outOfOrderBlock = -1;
+		retry = 0;
+
+		boolean last = length < blockSize;
+
+		// The file is in place by the time the client
+		// sees the last ACK, which is not sent if it fails
+		if (last && !commit()) {
+			finish(false);
+			return;
+		}
+
+		if (last || ++windowCount == windowSize) {
+			windowCount = 0;
+			pendingAck = block;
+		}
+
+		if (last) {
+			state = State.DALLYING;
+		}
+
+		schedule();
+	}
+
+	/**
+	 * Writes the data of the batch handled and sends the
+	 * last ACK it called for, see NioTransfer.flush.
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (state == State.DONE) {
+			return;
+		}
+
+		ring.write(file);
+
+		if (pendingAck >= 0) {
+			sendAck(pendingAck);
+			pendingAck = -1;
+		}
+	}
+
+	/**
+	 * Renames the completely received temp file
+	 * to the name the client asked for.
+	 * @return true if the file was renamed
+	 */
+	private boolean commit() {
+		try {
+			ring.write(file);
+
+			if (out != null) {
+				out.close();
+			} else {
+				// Drop what was reserved beyond the data received
+				file.truncate(file.position());
+			}
+
+			file.close();
+			Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tempFile = null;
+
+			if (partial != null) {
+				partial.delete();
+			}
+
+			FileCache cache = server.getFileCache();
+
+			if (cache != null) {
+				cache.invalidate(path);
+			}
+		} catch (IOException ex) {
+			logger.error("Error writing " + path, ex);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Slides the window past an acknowledged block
+	 * and sends the blocks that now fit in it.
+	 * @param block
+	 */
+	private void receiveAck(int block) {
+		if (state == State.NEGOTIATING) {
+			// ACK 0 acknowledges the OACK
+			if (block != 0) {
+				return;
+			}
+
+			state = State.TRANSFERRING;
+			metrics.enterPhase(Phase.TRANSFER);
+			retry = 0;
+		} else if (block >= windowStart && block < nextBlock) {
+			windowStart = block + 1;
+			retry = 0;
+			metrics.setBlock(block);
+
+			if (block == lastBlock) {
+				finish(true);
+				return;
+			}
+		} else if (block == windowStart - 1 && block != resentAfter && windowSize > 1) {
+			// The client is missing blocks from the window
+			resendWindow();
+			resentAfter = block;
+			schedule();
+			return;
+		} else {
+			return;
+		}
+
+		if (fillWindow()) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Reads and sends blocks until the window is full.
+	 * @return false if the file could not be read
+	 */
+	private boolean fillWindow() {
+		if (window == null) {
+			window = new ByteBuffer[windowSize][];
+
+			for (int i = 0; i < windowSize; i++) {
+				if (cached != null) {
+					window[i] = new ByteBuffer[] { ByteBuffer.allocate(PacketCodec.HEADER_SIZE), null };
+				} else {
+					window[i] = new ByteBuffer[] { ByteBuffer.allocate(blockSize + PacketCodec.HEADER_SIZE) };
+				}
+			}
+		}
+
+		try {
+			while (lastBlock < 0 && nextBlock < windowStart + windowSize) {
+				ByteBuffer[] packet = window[nextBlock % windowSize];
+				ByteBuffer buf = packet[0];
+				PacketCodec.putDataHeader(buf, blockNumbers.toWire(nextBlock));
+
+				// When the file size is a multiple of blockSize
+				// the last block holds no data
+				int length;
+
+				if (cached != null) {
+					int position = (int) Math.min(offset + (long) (nextBlock - 1) * blockSize, cached.limit());
+					length = Math.min(blockSize, cached.limit() - position);
+
+					cached.limit(position + length).position(position);
+					packet[1] = cached.slice();
+					cached.clear();
+				} else if (in != null) {
+					int count;
+
+					while (buf.hasRemaining()
+							&& (count = in.read(buf.array(), buf.position(), buf.remaining())) > 0) {
+						buf.position(buf.position() + count);
+					}
+
+					length = buf.position() - PacketCodec.HEADER_SIZE;
+				} else {
+					while (buf.hasRemaining() && file.read(buf) > 0) {
+						// Keep reading until the block is full or end of file
+					}
+
+					length = buf.position() - PacketCodec.HEADER_SIZE;
+				}
+
+				if (length < blockSize) {
+					lastBlock = nextBlock;
+				}
+
+				metrics.addBytes(length);
+
+				buf.flip();
+				send(packet);
+				nextBlock++;
+			}
+		} catch (IOException ex) {
+			logger.error("Error reading " + path, ex);
+			send(ByteBuffer.wrap(DataParser.NOT_DEFINED));
+			finish(false);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sends the unacknowledged blocks again.
+	 */
+	private void resendWindow() {
+		for (int i = windowStart; i < nextBlock; i++) {
+			ByteBuffer[] packet = window[i % windowSize];
+
+			for (ByteBuffer buf : packet) {
+				buf.rewind();
+			}
+
+			send(packet);
+			metrics.retransmit();
+		}
+	}
+
+	/**
+	 * Called by the timer wheel when nothing has been
+	 * heard from the client in time.
+	 */
+	private void timeout() {
+		timeout = null;
+
+		if (state == State.DONE) {
+			return;
+		}
+
+		if (state == State.DALLYING) {
+			finish(true);
+			return;
+		}
+
+		metrics.timeout();
+
+		if (++retry >= server.getMaxRetries()) {
+			logger.debug("No response from " + client + " for " + request.getFilename());
+			finish(false);
+			return;
+		}
+
+		if (state == State.NEGOTIATING) {
+			oack.position(0);
+			send(oack);
+			metrics.retransmit();
+		} else if (!read) {
+			windowCount = 0;
+			sendAck(expectedBlock - 1);
+			metrics.retransmit();
+		} else if (nextBlock > windowStart) {
+			resendWindow();
+		}
+
+		schedule();
+	}
+
+	/**
+	 * (Re)starts the retransmit timer.
+	 */
+	private void schedule() {
+		if (timeout != null) {
+			timeout.cancel();
+		}
+
+		timeout = loop.getTimers().schedule(onTimeout, server.getTimeout());
+	}
+
+	private void sendAck(int block) {
+		send(PacketCodec.putAck(ack, blockNumbers.toWire(block)));
+	}
+
+	/**
+	 * Sends a datagram to the client. A datagram the channel
+	 * has no room for is dropped and recovered like a lost one.
+	 * @param buf
+	 */
+	private void send(ByteBuffer buf) {
+		try {
+			channel.write(buf);
+			metrics.packetSent();
+		} catch (IOException ex) {
+			logger.debug("Error sending to " + client + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Sends a DATA packet, gathering the header and
+	 * the slice of the cached file into one datagram.
+	 * @param packet
+	 */
+	private void send(ByteBuffer[] packet) {
+		try {
+			channel.write(packet);
+			metrics.packetSent();
+		} catch (IOException ex) {
+			logger.debug("Error sending to " + client + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Writes what was received in order to the partial file,
+	 * and records it in the checkpoint.
+	 * @return false if there is nothing worth keeping
+	 */
+	private boolean keepPartialFile() {
+		try {
+			if (ring != null) {
+				ring.write(file);
+			}
+
+			long received = file.position();
+
+			if (received == 0) {
+				return false;
+			}
+
+			// The data has to be on the disk before the checkpoint
+			file.truncate(received);
+			file.force(false);
+			partial.save(request.getOption(DataPacket.OPTION_SOURCE), received,
+					Crc32c.combine(partial.getCrc(), partialCrc.getValue(), received - offset));
+		} catch (IOException ex) {
+			logger.error("Unable to keep the partial file of " + path, ex);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Releases the channel and file. The temp file of
+	 * an incomplete WRQ is deleted, unless it is a partial
+	 * file holding some of the data.
+	 * @param complete
+	 */
+	private void finish(boolean complete) {
+		if (state == State.DONE) {
+			return;
+		}
+
+		state = State.DONE;
+		server.sessionFinished(requestKey, this);
+		metrics.enterPhase(Phase.FINISH);
+
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+
+		try {
+			if (key != null) {
+				key.cancel();
+			}
+
+			if (channel != null) {
+				channel.close();
+			}
+
+			// Keep what a partial file holds for the next attempt
+			if (partial != null && tempFile != null) {
+				if (keepPartialFile()) {
+					tempFile = null;
+				} else {
+					partial.delete();
+				}
+			}
+
+			if (file != null) {
+				file.close();
+			}
+
+			if (tempFile != null) {
+				Files.deleteIfExists(tempFile);
+			}
+		} catch (IOException ex) {
+			logger.error("Error closing session with " + client, ex);
+		}
+
+		metrics.finish(complete);
+		logger.debug((complete ? "Served " : "Abandoned ") + request.getFilename() + " for " + client);
+	}
+}
@@ -0,0 +1,546 @@
+package com.coltla.tftp.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.coltla.metrics.MetricsRegistry;
+import com.coltla.tftp.Engine;
+import com.coltla.tftp.nio.EventLoop;
+import com.coltla.tftp.nio.NioEngine;
+import com.coltla.utils.DataPacket;
+import com.coltla.utils.DataParser;
+import com.coltla.utils.FileCache;
+import com.coltla.utils.PacketCodec;
+
+/**
+ *
+ * @author Anders
+ *
+ * Embedded TFTP server serving the files of a root directory.
+ * Requests are received on a single port and each transfer then
+ * runs on a channel of its own, the server's transfer identifier.
+ * Like NioEngine the transfers are state machines driven by a few
+ * event loop threads, so hundreds of clients booting at once do
+ * not need a thread each. The blksize, windowsize, tsize and
+ * rollover options are negotiated.
+ *
+ * Settings must be made before the server is started.
+ */
+public class TftpServer implements Closeable {
+
+	private static final Logger logger = LogManager.getLogger(TftpServer.class);
+
+	public static final int DEFAULT_TIMEOUT = 1000;
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	public static final int DEFAULT_MAX_SESSIONS = 1024;
+
+	// Every session keeps a window of blocks in memory,
+	// so the window size a client may ask for is limited
+	public static final int DEFAULT_MAX_WINDOW_SIZE = 64;
+
+	// Datagrams a session receives in one pass, at most a window
+	public static final int DEFAULT_RECEIVE_BATCH = NioEngine.DEFAULT_RECEIVE_BATCH;
+
+	private final Path root;
+	private InetAddress address;
+	private int port = Engine.SERVER_DEFAULT_PORT;
+	private int threads = 1;
+	private int maxBlockSize = DataPacket.MAX_BLOCK_SIZE;
+	private int maxWindowSize = DEFAULT_MAX_WINDOW_SIZE;
+	private int timeout = DEFAULT_TIMEOUT;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private int maxSessions = DEFAULT_MAX_SESSIONS;
+	private int receiveBatch = DEFAULT_RECEIVE_BATCH;
+	private boolean overwrite;
+	private FileCache fileCache;
+	private MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+	private EventLoop[] loops;
+	private DatagramChannel channel;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	// Sessions the client has not answered yet, by the request they
+	// serve. A request sent again before the reply arrived is not
+	// served twice, the same request once it was answered is a new
+	// transfer from a client sharing its socket.
+	private final Map<RequestKey, ServerSession> unanswered = new ConcurrentHashMap<>();
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	/**
+	 * Create a server for the files in a directory.
+	 * @param root - the directory files are served from and written to
+	 */
+	public TftpServer(File root) {
+		if (!root.isDirectory()) {
+			throw new IllegalArgumentException("Invalid root directory: " + root);
+		}
+
+		this.root = root.toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Binds the request port and starts the event loop threads.
+	 * @throws IOException if the port cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (loops != null) {
+			throw new IllegalStateException("Server already started");
+		}
+
+		channel = DatagramChannel.open();
+
+		try {
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(address, port));
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+
+		loops = new EventLoop[threads];
+
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop();
+		}
+
+		// Requests are received by the first loop
+		channel.register(loops[0].getSelector(), SelectionKey.OP_READ, new Listener());
+
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(loops[i], "tftp-server-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		logger.debug("Serving " + root + " on " + channel.getLocalAddress());
+	}
+
+	/**
+	 * Stops the server, transfers still running are abandoned.
+	 */
+	@Override
+	public synchronized void close() {
+		if (loops == null) {
+			return;
+		}
+
+		for (EventLoop loop : loops) {
+			loop.close();
+		}
+	}
+
+	/**
+	 * Receives the requests on the server port and starts
+	 * a session for each. Runs on the first event loop.
+	 */
+	private class Listener implements EventLoop.Handler {
+
+		private final ByteBuffer received = ByteBuffer.allocate(DataPacket.MAX_DATA_SIZE + PacketCodec.HEADER_SIZE);
+
+		@Override
+		public void onReadable(SelectionKey key) {
+			try {
+				while (true) {
+					received.clear();
+					SocketAddress client = channel.receive(received);
+
+					if (client == null) {
+						break;
+					}
+
+					received.flip();
+					accept(client);
+				}
+			} catch (IOException ex) {
+				logger.error("Error receiving request", ex);
+			}
+		}
+
+		@Override
+		public void onClose() {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				logger.error("Error closing server port", ex);
+			}
+		}
+
+		/**
+		 * Starts a session for a RRQ or WRQ. Anything else
+		 * sent to the server port is ignored.
+		 * @param client
+		 * @throws IOException
+		 */
+		private void accept(SocketAddress client) throws IOException {
+			int opCode = PacketCodec.getOpCode(received.array(), received.limit());
+
+			if (opCode != PacketCodec.OP_RRQ && opCode != PacketCodec.OP_WRQ) {
+				return;
+			}
+
+			RequestKey requestKey = new RequestKey(client, received);
+
+			if (unanswered.containsKey(requestKey)) {
+				// The client sent the request again, the
+				// session will answer it when it times out
+				return;
+			}
+
+			if (sessions.get() >= maxSessions) {
+				channel.send(ByteBuffer.wrap(DataParser.NOT_DEFINED), client);
+				return;
+			}
+
+			DataPacket request;
+
+			try {
+				request = new DataPacket(received.array(), received.limit());
+			} catch (IllegalArgumentException ex) {
+				return;
+			}
+
+			EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+			ServerSession session = new ServerSession(TftpServer.this, request, client, requestKey);
+			unanswered.put(requestKey, session);
+			sessions.incrementAndGet();
+
+			loop.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					session.start(loop);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called by a session once the client answered its first
+	 * reply, and will not send the request again.
+	 * @param requestKey - the request the session serves
+	 * @param session
+	 */
+	void sessionAnswered(RequestKey requestKey, ServerSession session) {
+		unanswered.remove(requestKey, session);
+	}
+
+	/**
+	 * Called by a session once it has finished.
+	 * @param requestKey - the request the session served
+	 * @param session
+	 */
+	void sessionFinished(RequestKey requestKey, ServerSession session) {
+		unanswered.remove(requestKey, session);
+		sessions.decrementAndGet();
+	}
+
+	/**
+	 * A request as a client sent it, from its transfer identifier.
+	 * A client sharing its socket between transfers, see SocketPool,
+	 * sends every request from the same port, so the same request
+	 * from it is only sent again while its reply is unanswered.
+	 */
+	static final class RequestKey {
+
+		private final SocketAddress client;
+		private final byte[] request;
+
+		/**
+		 * @param client
+		 * @param request - the request, from its position to its limit
+		 */
+		private RequestKey(SocketAddress client, ByteBuffer request) {
+			this.client = client;
+			this.request = new byte[request.remaining()];
+			request.duplicate().get(this.request);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RequestKey)) {
+				return false;
+			}
+
+			RequestKey other = (RequestKey) obj;
+
+			return client.equals(other.client) && Arrays.equals(request, other.request);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * client.hashCode() + Arrays.hashCode(request);
+		}
+	}
+
+	/**
+	 * Finds the file a request names, relative to the
+	 * root directory whether the name is absolute or not.
+	 * @param fileName
+	 * @return the path, or null if it lies outside the root
+	 */
+	Path resolve(String fileName) {
+		String name = fileName.replace('\\', '/');
+
+		while (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+
+		Path path = root.resolve(name).normalize();
+
+		return path.startsWith(root) && !path.equals(root) ? path : null;
+	}
+
+	/**
+	 * @return the number of transfers running
+	 */
+	public int getActiveSessions() {
+		return sessions.get();
+	}
+
+	/**
+	 * @return the directory files are served from
+	 */
+	public File getRoot() {
+		return root.toFile();
+	}
+
+	/**
+	 * @return the address requests are received on,
+	 * the wildcard address unless set
+	 */
+	public InetAddress getAddress() {
+		if (channel != null) {
+			return channel.socket().getLocalAddress();
+		}
+
+		return address;
+	}
+
+	/**
+	 * Sets the local address to receive requests on.
+	 * Transfers run on the same address.
+	 * @param address - the address, or null for any
+	 */
+	public void setAddress(InetAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * @return the port requests are received on, the
+	 * port bound once the server has started
+	 */
+	public int getPort() {
+		if (channel != null) {
+			return channel.socket().getLocalPort();
+		}
+
+		return port;
+	}
+
+	/**
+	 * Sets the port to receive requests on.
+	 * @param port - the port, or 0 for an ephemeral port
+	 */
+	public void setPort(int port) {
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("Invalid port: " + port);
+		}
+
+		this.port = port;
+	}
+
+	/**
+	 * @param threads - the number of event loops running the transfers
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+		}
+
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the largest block size acknowledged to a client
+	 */
+	int getMaxBlockSize() {
+		return maxBlockSize;
+	}
+
+	/**
+	 * Sets the largest block size acknowledged to a client,
+	 * e.g. to keep the datagrams within the network's MTU.
+	 * A client asking for more gets this block size.
+	 * @param maxBlockSize
+	 */
+	public void setMaxBlockSize(int maxBlockSize) {
+		if (maxBlockSize < DataPacket.MAX_DATA_SIZE || maxBlockSize > DataPacket.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Invalid block size: " + maxBlockSize);
+		}
+
+		this.maxBlockSize = maxBlockSize;
+	}
+
+	/**
+	 * @return the largest window size acknowledged to a client
+	 */
+	int getMaxWindowSize() {
+		return maxWindowSize;
+	}
+
+	/**
+	 * Sets the largest window size acknowledged to a client.
+	 * A client asking for more gets this window size.
+	 * @param maxWindowSize
+	 */
+	public void setMaxWindowSize(int maxWindowSize) {
+		if (maxWindowSize < DataPacket.MIN_WINDOW_SIZE || maxWindowSize > DataPacket.MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException("Invalid window size: " + maxWindowSize);
+		}
+
+		this.maxWindowSize = maxWindowSize;
+	}
+
+	/**
+	 * @return the retransmit timeout in milliseconds
+	 */
+	int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout - the retransmit timeout in milliseconds
+	 */
+	public void setTimeout(int timeout) {
+		if (timeout < 1) {
+			throw new IllegalArgumentException("Invalid timeout: " + timeout);
+		}
+
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return the number of attempts to send a packet before giving up
+	 */
+	int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries - the number of attempts to send a packet before giving up
+	 */
+	public void setMaxRetries(int maxRetries) {
+		if (maxRetries < 1) {
+			throw new IllegalArgumentException("Invalid number of retries: " + maxRetries);
+		}
+
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Sets the number of transfers running at once. A request
+	 * beyond it is answered with an error, the client may try
+	 * again later.
+	 * @param maxSessions
+	 */
+	public void setMaxSessions(int maxSessions) {
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("Invalid number of sessions: " + maxSessions);
+		}
+
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * @return the number of datagrams a session receives in one pass
+	 */
+	int getReceiveBatch() {
+		return receiveBatch;
+	}
+
+	/**
+	 * Sets the number of datagrams a session receives in one pass
+	 * before it handles them, see NioEngine.setReceiveBatch. A
+	 * session keeps a direct buffer of a block for each of them,
+	 * up to its window size.
+	 * @param receiveBatch
+	 */
+	public void setReceiveBatch(int receiveBatch) {
+		if (receiveBatch < 1) {
+			throw new IllegalArgumentException("Invalid receive batch: " + receiveBatch);
+		}
+
+		this.receiveBatch = receiveBatch;
+	}
+
+	/**
+	 * @return true if a WRQ may replace an existing file
+	 */
+	boolean isOverwrite() {
+		return overwrite;
+	}
+
+	/**
+	 * Sets whether a WRQ may replace an existing file,
+	 * otherwise it is refused with "File already exists".
+	 * @param overwrite
+	 */
+	public void setOverwrite(boolean overwrite) {
+		this.overwrite = overwrite;
+	}
+
+	/**
+	 * @return the cache binary files are read from, or null
+	 */
+	public FileCache getFileCache() {
+		return fileCache;
+	}
+
+	/**
+	 * Sets a cache to keep the files read most often in
+	 * memory, e.g. boot images sent to every client. Blocks
+	 * of cached files are sent as slices of the cache.
+	 * @param fileCache - the cache, or null to read every block from disk
+	 */
+	public void setFileCache(FileCache fileCache) {
+		this.fileCache = fileCache;
+	}
+
+	/**
+	 * Returns the registry the metrics of each transfer are
+	 * added to, totalled by client rather than by server.
+	 * @return metricsRegistry
+	 */
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	/**
+	 * Sets the registry the metrics of each transfer are added to.
+	 * A transfer serving a RRQ is recorded as a GET of the client,
+	 * one serving a WRQ as a PUT.
+	 * @param metricsRegistry - the metricsRegistry to set
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		if (metricsRegistry == null) {
+			throw new IllegalArgumentException("Invalid metrics registry: " + metricsRegistry);
+		}
+
+		this.metricsRegistry = metricsRegistry;
+	}
+}
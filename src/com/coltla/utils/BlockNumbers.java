@@ -0,0 +1,99 @@
+package com.coltla.utils;
+
+/**
+ *
+ * @author Anders
+ *
+ * Maps the block numbers a transfer counts with onto the 16 bit
+ * block numbers sent on the wire. A transfer counts blocks from 1
+ * without limit, which keeps window and duplicate checks simple,
+ * while the wire number rolls over after 65535. Most servers roll
+ * over to 0, some to 1; the rollover option asks for one or the
+ * other.
+ *
+ * Instances are immutable and may be shared.
+ */
+public class BlockNumbers {
+
+	public static final int MAX_WIRE_BLOCK = 0xFFFF;
+
+	// Returned for a wire number no block maps onto,
+	// beyond any window so it never matches a block
+	public static final int NO_BLOCK = Integer.MAX_VALUE;
+
+	public static final BlockNumbers ROLLOVER_TO_ZERO = new BlockNumbers(0);
+	public static final BlockNumbers ROLLOVER_TO_ONE = new BlockNumbers(1);
+
+	private final int rollover;
+
+	private BlockNumbers(int rollover) {
+		this.rollover = rollover;
+	}
+
+	/**
+	 * @param rollover - the block number following 65535, 0 or 1
+	 * @return the block numbers rolling over to the given number
+	 */
+	public static BlockNumbers forRollover(int rollover) {
+		switch (rollover) {
+		case 0:
+			return ROLLOVER_TO_ZERO;
+		case 1:
+			return ROLLOVER_TO_ONE;
+		default:
+			throw new IllegalArgumentException("Invalid rollover: " + rollover);
+		}
+	}
+
+	/**
+	 * @return the block number following 65535
+	 */
+	public int getRollover() {
+		return rollover;
+	}
+
+	/**
+	 * @param block - a block number counted from 0 for the request
+	 * @return the block number sent on the wire
+	 */
+	public int toWire(int block) {
+		if (block <= MAX_WIRE_BLOCK) {
+			return block;
+		}
+
+		if (rollover == 0) {
+			return block & MAX_WIRE_BLOCK;
+		}
+
+		// Blocks 1 to 65535 repeat
+		return (block - 1) % MAX_WIRE_BLOCK + 1;
+	}
+
+	/**
+	 * Finds the block a wire number stands for, which is the
+	 * first block from base on with that wire number. Blocks
+	 * before base are taken to be of no interest, e.g. blocks
+	 * acknowledged already.
+	 * @param wire - a block number received on the wire
+	 * @param base - the lowest block expected
+	 * @return the block number, NO_BLOCK if none has that wire number
+	 */
+	public int fromWire(int wire, int base) {
+		if (rollover == 0) {
+			return base + ((wire - base) & MAX_WIRE_BLOCK);
+		}
+
+		// Block 0 only stands for the request itself
+		if (wire == 0) {
+			return base == 0 ? 0 : NO_BLOCK;
+		}
+
+		if (base == 0) {
+			return wire;
+		}
+
+		int delta = (wire - toWire(base)) % MAX_WIRE_BLOCK;
+
+		return base + (delta < 0 ? delta + MAX_WIRE_BLOCK : delta);
+	}
+}
@@ -0,0 +1,108 @@
+package com.coltla.utils;
+
+/**
+ *
+ * @author Anders
+ *
+ * Adapts the number of blocks a sender sends per round trip time
+ * to the loss and delay it observes, additive increase and
+ * multiplicative decrease in the style of TCP (RFC 5681). The
+ * window opens by a block for every block acknowledged up to a
+ * threshold (slow start), then by a block per window. Blocks sent
+ * again after a duplicate ACK halve it, a timeout closes it to a
+ * single block.
+ *
+ * A TFTP receiver acknowledges once per negotiated window (RFC
+ * 7440), so a sender cannot keep fewer blocks in flight without
+ * waiting for the receiver's timeout. The window sets the pace
+ * instead: the blocks are spread out so that a window of them
+ * takes a round trip time, rather than sent back to back.
+ *
+ * The window stops opening while the round trip time is more than
+ * twice the least seen, a queue filling up on the way to the server
+ * before any of it is lost.
+ *
+ * Not thread safe, a controller belongs to a single transfer.
+ */
+public class CongestionControl {
+
+	private static final int INITIAL_WINDOW = 2;
+
+	// Queueing delay below this is taken for jitter, e.g. on a LAN
+	private static final long MIN_QUEUE_DELAY = 2000000L;
+
+	private final int maxWindow;
+
+	private double window;
+	private double threshold;
+	private long minRtt;
+
+	/**
+	 * @param maxWindow - the most blocks to send per round trip time
+	 */
+	public CongestionControl(int maxWindow) {
+		if (maxWindow < 1) {
+			throw new IllegalArgumentException("Invalid window size: " + maxWindow);
+		}
+
+		this.maxWindow = maxWindow;
+		this.window = Math.min(INITIAL_WINDOW, maxWindow);
+		this.threshold = maxWindow;
+	}
+
+	/**
+	 * Opens the window for blocks acknowledged.
+	 * @param blocks - the number of blocks the ACK acknowledged
+	 * @param smoothedRtt - the smoothed round trip time in
+	 * nanoseconds, 0 if there is no sample yet
+	 */
+	public void acknowledged(int blocks, long smoothedRtt) {
+		if (smoothedRtt > 0) {
+			minRtt = minRtt == 0 ? smoothedRtt : Math.min(minRtt, smoothedRtt);
+
+			if (smoothedRtt > 2 * minRtt && smoothedRtt - minRtt > MIN_QUEUE_DELAY) {
+				return;
+			}
+		}
+
+		if (window < threshold) {
+			window += blocks;
+		} else {
+			window += (double) blocks / window;
+		}
+
+		window = Math.min(window, maxWindow);
+	}
+
+	/**
+	 * Halves the window when blocks of it were lost.
+	 */
+	public void lost() {
+		threshold = Math.max(window / 2, 1);
+		window = threshold;
+	}
+
+	/**
+	 * Closes the window to a block when nothing came back in time.
+	 */
+	public void timedOut() {
+		threshold = Math.max(window / 2, 1);
+		window = 1;
+	}
+
+	/**
+	 * @return the number of blocks to send per round trip time
+	 */
+	public int getWindow() {
+		return (int) window;
+	}
+
+	/**
+	 * @param smoothedRtt - the smoothed round trip time in nanoseconds
+	 * @return the time in nanoseconds to leave between blocks,
+	 * 0 until there is a round trip time to spread them over
+	 */
+	public long getPacingInterval(long smoothedRtt) {
+		return smoothedRtt / Math.max(1, getWindow());
+	}
+}
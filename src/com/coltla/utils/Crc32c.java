@@ -0,0 +1,96 @@
+package com.coltla.utils;
+
+/**
+ *
+ * @author Anders
+ *
+ * Joins the CRC-32C of two pieces of data into the CRC-32C of the
+ * data as a whole, without reading either again. A server keeps the
+ * CRC of a partial file this way: the CRC of what was kept before is
+ * joined with the CRC of what is received now, which is all it ever
+ * reads. The method is that of zlib's crc32_combine.
+ */
+public class Crc32c {
+
+	// CRC-32C (Castagnoli), reflected
+	private static final long POLYNOMIAL = 0x82F63B78L;
+
+	private Crc32c() {
+	}
+
+	/**
+	 * @param crc1 - the CRC-32C of the first piece
+	 * @param crc2 - the CRC-32C of the second piece
+	 * @param length2 - the length of the second piece
+	 * @return the CRC-32C of the first piece followed by the second
+	 */
+	public static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+
+		// Operators appending 1, then 2 and 4 zero bits
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		odd[0] = POLYNOMIAL;
+
+		for (int n = 1; n < 32; n++) {
+			odd[n] = 1L << (n - 1);
+		}
+
+		square(even, odd);
+		square(odd, even);
+
+		// Append length2 zero bytes to crc1, squaring the
+		// operator for each bit of the length
+		do {
+			square(even, odd);
+
+			if ((length2 & 1) != 0) {
+				crc1 = times(even, crc1);
+			}
+
+			length2 >>>= 1;
+
+			if (length2 == 0) {
+				break;
+			}
+
+			square(odd, even);
+
+			if ((length2 & 1) != 0) {
+				crc1 = times(odd, crc1);
+			}
+
+			length2 >>>= 1;
+		} while (length2 != 0);
+
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+
+	/**
+	 * @param crc
+	 * @return the CRC as 8 hex digits, the form it is sent in
+	 */
+	public static String toHex(long crc) {
+		return String.format("%08x", crc & 0xFFFFFFFFL);
+	}
+}
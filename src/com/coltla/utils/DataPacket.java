@@ -1,5 +1,9 @@
 package com.coltla.utils;
+import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -19,10 +23,41 @@ public class DataPacket {
 	public final static String DATA = "03";
 	public final static String ACK = "04";
 	public final static String ERR = "05";
+	public final static String OACK = "06";
 	
+	// Default block size (RFC 1350), used unless a
+	// larger blksize has been negotiated (RFC 2348)
 	public static final int MAX_DATA_SIZE = 512;
+	public static final int MIN_BLOCK_SIZE = 8;
+	public static final int MAX_BLOCK_SIZE = 65464;
+	
+	// Window sizes (RFC 7440), 1 is the lock-step
+	// transfer of RFC 1350
+	public static final int MIN_WINDOW_SIZE = 1;
+	public static final int MAX_WINDOW_SIZE = 65535;
+	
+	public static final String OPTION_BLKSIZE = "blksize";
+	public static final String OPTION_WINDOWSIZE = "windowsize";
+	// Block number following 65535, 0 unless the
+	// server acknowledges a request for 1
+	public static final String OPTION_ROLLOVER = "rollover";
+	// Size of the file in bytes (RFC 2349), sent as 0
+	// in a RRQ to ask the server for it
+	public static final String OPTION_TSIZE = "tsize";
+	// Byte of the file the transfer starts at, to resume one
+	// that failed. Not a standard option, a server that does
+	// not know it ignores it and the transfer starts over.
+	public static final String OPTION_OFFSET = "offset";
+	// Identity of the file a resumable WRQ sends, its path, size
+	// and modification time. A server only resumes a partial file
+	// received from the same file.
+	public static final String OPTION_SOURCE = "srcid";
+	// CRC-32C of the bytes before the offset a server resumes a
+	// WRQ from, in hex, so the client can check they are its own
+	public static final String OPTION_OFFSET_CRC = "offsetcrc";
 	
 	protected byte[] data = new byte[0];
+	private Map<String, String> options = new LinkedHashMap<>();
 	private String errorMsg;
 	private String opCode;
 	private String mode;
@@ -38,16 +73,26 @@ public class DataPacket {
 	 * is parsed base on the opCode.
 	 */
 	public DataPacket(byte[] data) {
+		this(data, data.length);
+	}
+	
+	/**
+	 * Create object from the first length bytes
+	 * of the array, e.g. the valid part of a
+	 * received datagram buffer.
+	 */
+	public DataPacket(byte[] data, int length) {
 		super();
 		
+		if (length < data.length) {
+			data = Arrays.copyOf(data, length);
+		}
+		
 		if (data.length >= 2) {
 			logger.debug("Parsing op code");
 			
 			// First two bytes will be the operation code
-			Integer code1 = new Integer(data[0]);
-			Integer code2 = new Integer(data[1]);
-			
-			opCode = new String(code1.toString() + code2.toString());
+			opCode = toOpCode(PacketCodec.getOpCode(data, data.length));
 			logger.debug("Checking for op code: " + opCode);
 			
 			switch (opCode) {
@@ -66,6 +111,9 @@ public class DataPacket {
 			case ERR:
 				parseERR(data);
 				break;
+			case OACK:
+				parseOACK(data);
+				break;
 			default:
 				logger.error("Invalid opCode: " + opCode);
 				throw new IllegalArgumentException("Invalid opCode: " + opCode);
@@ -76,11 +124,37 @@ public class DataPacket {
 		}
 	}
 	
+	/**
+	 * Returns the opcode constant for a numeric opcode
+	 * so that known opcodes share the same String.
+	 * @param code
+	 * @return opCode
+	 */
+	private static String toOpCode(int code) {
+		switch (code) {
+		case PacketCodec.OP_RRQ:
+			return RRQ;
+		case PacketCodec.OP_WRQ:
+			return WRQ;
+		case PacketCodec.OP_DATA:
+			return DATA;
+		case PacketCodec.OP_ACK:
+			return ACK;
+		case PacketCodec.OP_ERR:
+			return ERR;
+		case PacketCodec.OP_OACK:
+			return OACK;
+		default:
+			return code < 10 ? "0" + code : Integer.toString(code);
+		}
+	}
+	
 	/**
 	 * Parses Read Request byte array
 	 * 0-1	opCode
 	 * 2-x	(terminated by 0x00)
 	 * x-y	(terminated by 0x00)
+	 * y-z	option/value pairs (each terminated by 0x00)
 	 * @param data
 	 */
 	private void parseRRQ(byte[] data) {
@@ -109,6 +183,7 @@ public class DataPacket {
 		}
 		
 		setMode(new String(Arrays.copyOfRange(data, posEndOfFilename + 1, posEndOfMode)));
+		parseOptions(data, posEndOfMode + 1);
 	}
 	
 	/**
@@ -116,6 +191,7 @@ public class DataPacket {
 	 * 0-1	opCode
 	 * 2-x	(terminated by 0x00)
 	 * x-y	(terminated by 0x00)
+	 * y-z	option/value pairs (each terminated by 0x00)
 	 * @param data
 	 */
 	private void parseWRQ(byte[] data) {
@@ -144,6 +220,7 @@ public class DataPacket {
 		}
 		
 		setMode(new String(Arrays.copyOfRange(data, posEndOfFilename + 1, posEndOfMode)));
+		parseOptions(data, posEndOfMode + 1);
 	}
 	
 	/**
@@ -157,10 +234,7 @@ public class DataPacket {
 		logger.debug("Parsing DATA");
 		
 		// Set block value
-		Integer code1 = new Integer(data[2]);
-		Integer code2 = new Integer(data[3]);
-		code1 = code1 << 8;
-		block = code1 + code2;
+		block = PacketCodec.getBlock(data, data.length);
 		
 		// Set data
 		setData(Arrays.copyOfRange(data, 4, data.length));
@@ -176,10 +250,7 @@ public class DataPacket {
 		logger.debug("Parsing DATA");
 		
 		// Set block value
-		Integer code1 = new Integer(data[2]);
-		Integer code2 = new Integer(data[3]);
-		code1 = code1 << 8;
-		block = code1 + code2;		
+		block = PacketCodec.getBlock(data, data.length);		
 	}
 
 	/**
@@ -192,16 +263,76 @@ public class DataPacket {
 	private void parseERR(byte[] data) {
 		logger.debug("Parsing ERR");
 		
-		// Set block value
-		Integer code1 = new Integer(data[2]);
-		Integer code2 = new Integer(data[3]);
-		code1 = code1 << 8;
-		errCode = code1 + code2;
+		// Set error code
+		errCode = PacketCodec.getBlock(data, data.length);
 		
 		// Set data
 		setErrorMsg(new String(Arrays.copyOfRange(data,4, data.length)));
 	}
 
+	/**
+	 * Parse Option Acknowledgement byte array
+	 * 0-1	opCode
+	 * 2-x	option/value pairs (each terminated by 0x00)
+	 * @param data
+	 */
+	private void parseOACK(byte[] data) {
+		logger.debug("Parsing OACK");
+		
+		parseOptions(data, 2);
+	}
+	
+	/**
+	 * Parses the null terminated option/value pairs
+	 * starting at position start. Option names are
+	 * case insensitive so they are stored in lower case.
+	 * An option without a value is ignored.
+	 * @param data
+	 * @param start
+	 */
+	private void parseOptions(byte[] data, int start) {
+		String name = null;
+		int pos = start;
+		
+		for (int i = start; i < data.length; i++) {
+			if (data[i] == 0x00) {
+				String value = new String(Arrays.copyOfRange(data, pos, i));
+				
+				if (name == null) {
+					name = value.toLowerCase();
+				} else {
+					options.put(name, value);
+					name = null;
+				}
+				
+				pos = i + 1;
+			}
+		}
+	}
+	
+	/**
+	 * Encodes option/value pairs as a sequence of
+	 * null terminated strings, ready to be appended
+	 * to a RRQ, WRQ or OACK packet.
+	 * @param options
+	 * @return byte array containing the options
+	 */
+	public static byte[] encodeOptions(Map<String, String> options) {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			byte[] name = option.getKey().getBytes();
+			byte[] value = option.getValue().getBytes();
+			
+			outputStream.write(name, 0, name.length);
+			outputStream.write(0x00);
+			outputStream.write(value, 0, value.length);
+			outputStream.write(0x00);
+		}
+		
+		return outputStream.toByteArray();
+	}
+
 	/**
 	 * @param data - the data to set
 	 */
@@ -279,6 +410,21 @@ public class DataPacket {
 		return errCode;
 	}
 	
+	/**
+	 * @return the options, keyed by lower case option name
+	 */
+	public Map<String, String> getOptions() {
+		return Collections.unmodifiableMap(options);
+	}
+	
+	/**
+	 * @param name - the option name
+	 * @return the option value or null if not present
+	 */
+	public String getOption(String name) {
+		return options.get(name.toLowerCase());
+	}
+	
 	/**
 	 * Check request is a read request
 	 * @return true or false
@@ -335,4 +481,32 @@ public class DataPacket {
 		return false;
 	}
 
+	/**
+	 * Check request is a block of data
+	 * @return true or false
+	 */
+	public boolean isDATA() {
+		if (getOpCode() != null) {
+			if (getOpCode().equals(DATA)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+
+	/**
+	 * Check request is an Option Acknowledgement
+	 * @return true or false
+	 */
+	public boolean isOACK() {
+		if (getOpCode() != null) {
+			if (getOpCode().equals(OACK)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+
 }
@@ -27,6 +27,21 @@ public class DataParser {
 			0x66, 0x6F, 0x75, 0x6E, 0x64, 0x00
 	};
 
+	public static final byte[] ACCESS_VIOLATION = {
+			0x00, 0x05, 0x00, 0x02,
+			0x41, 0x63, 0x63, 0x65, 0x73, 0x73, 0x20,
+			0x76, 0x69, 0x6F, 0x6C, 0x61, 0x74, 0x69, 0x6F, 0x6E, 0x00
+	};
+
+	public static final byte[] DISK_FULL = {
+			0x00, 0x05, 0x00, 0x03,
+			0x44, 0x69, 0x73, 0x6B, 0x20,
+			0x66, 0x75, 0x6C, 0x6C, 0x20,
+			0x6F, 0x72, 0x20,
+			0x61, 0x6C, 0x6C, 0x6F, 0x63, 0x61, 0x74, 0x69, 0x6F, 0x6E, 0x20,
+			0x65, 0x78, 0x63, 0x65, 0x65, 0x64, 0x65, 0x64, 0x00
+	};
+
 	public static final byte[] FILE_EXISTS = {
 			0x00, 0x05, 0x00, 0x06,
 			0x46, 0x69, 0x6C, 0x65, 0x20,
@@ -41,6 +56,19 @@ public class DataParser {
 			0x63, 0x6F, 0x6E, 0x6E, 0x65, 0x63, 0x74, 0x69, 0x6F,
 			0x6E, 0x73, 0x00
 	};
-}
 
+	// Sent by a client that has all the data it asked for
+	// before the end of the file, e.g. a segment of a striped GET
+	public static final byte[] TRANSFER_STOPPED = {
+			0x00, 0x05, 0x00, 0x00,
+			0x54, 0x72, 0x61, 0x6E, 0x73, 0x66, 0x65, 0x72, 0x20,
+			0x73, 0x74, 0x6F, 0x70, 0x70, 0x65, 0x64, 0x00
+	};
 
+	public static final byte[] OPTION_NEGOTIATION_FAILED = {
+			0x00, 0x05, 0x00, 0x08,
+			0x4F, 0x70, 0x74, 0x69, 0x6F, 0x6E, 0x20,
+			0x6E, 0x65, 0x67, 0x6F, 0x74, 0x69, 0x61, 0x74, 0x69, 0x6F, 0x6E, 0x20,
+			0x66, 0x61, 0x69, 0x6C, 0x65, 0x64, 0x00
+	};
+}
@@ -0,0 +1,208 @@
+package com.coltla.utils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ *
+ * @author Anders
+ *
+ * Ring of direct buffers a non-blocking channel is drained into,
+ * so that the datagrams waiting on it are received in one pass
+ * and then handled as a batch. The buffers are slices of a single
+ * direct allocation made up front, the socket writes into them
+ * and the file is written from them without a copy on the heap.
+ *
+ * The payloads of a batch that go to a file are retained and
+ * written together with one gathering write once the batch has
+ * been handled, instead of one write per block. They have to be
+ * written before the ring receives again.
+ *
+ * Not thread safe, a ring belongs to the handler of one channel.
+ */
+public class DatagramRing {
+
+	private final ByteBuffer[] slots;
+	private final SocketAddress[] senders;
+	private int head;
+	private int count;
+	private SocketAddress sender;
+
+	private final ByteBuffer[] retained;
+	private int retainedCount;
+
+	/**
+	 * Create a ring.
+	 * @param slots - the number of datagrams received in one pass
+	 * @param slotSize - the size of the largest datagram expected,
+	 * a larger one is cut short
+	 */
+	public DatagramRing(int slots, int slotSize) {
+		if (slots < 1 || slotSize < PacketCodec.HEADER_SIZE || (long) slots * slotSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid ring size: " + slots + " x " + slotSize);
+		}
+
+		this.slots = new ByteBuffer[slots];
+		this.senders = new SocketAddress[slots];
+		this.retained = new ByteBuffer[slots];
+
+		ByteBuffer memory = ByteBuffer.allocateDirect(slots * slotSize);
+
+		for (int i = 0; i < slots; i++) {
+			memory.limit((i + 1) * slotSize).position(i * slotSize);
+			this.slots[i] = memory.slice();
+		}
+	}
+
+	/**
+	 * Receives the datagrams waiting on the channel into the free
+	 * slots, until the channel has no more or the ring is full.
+	 * @param channel - a non-blocking channel, connected or not
+	 * @return the number of datagrams received
+	 * @throws IOException
+	 */
+	public int receive(DatagramChannel channel) throws IOException {
+		if (retainedCount > 0) {
+			throw new IllegalStateException("Retained payloads not written");
+		}
+
+		int received = 0;
+
+		while (count < slots.length) {
+			int slot = (head + count) % slots.length;
+			ByteBuffer buf = slots[slot];
+			buf.clear();
+
+			SocketAddress from = channel.receive(buf);
+
+			if (from == null) {
+				break;
+			}
+
+			buf.flip();
+			senders[slot] = from;
+			count++;
+			received++;
+		}
+
+		return received;
+	}
+
+	/**
+	 * Takes the oldest datagram received. It stays in its slot,
+	 * and may be retained, until the ring receives again.
+	 * @return a buffer holding the datagram from 0 to its limit,
+	 * or null if every datagram received has been taken
+	 */
+	public ByteBuffer poll() {
+		if (count == 0) {
+			return null;
+		}
+
+		ByteBuffer buf = slots[head];
+		sender = senders[head];
+		senders[head] = null;
+		head = (head + 1) % slots.length;
+		count--;
+
+		return buf;
+	}
+
+	/**
+	 * @return the sender of the datagram last taken by poll()
+	 */
+	public SocketAddress getSender() {
+		return sender;
+	}
+
+	/**
+	 * @return the number of datagrams received and not yet taken
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Keeps the remaining bytes of a datagram taken from the
+	 * ring, e.g. PacketCodec.payload(), to be written by write().
+	 * @param payload
+	 */
+	public void retain(ByteBuffer payload) {
+		retained[retainedCount++] = payload;
+	}
+
+	/**
+	 * Writes the retained payloads, in the order they were
+	 * retained, to the current position of a file.
+	 * @param file
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long write(FileChannel file) throws IOException {
+		long remaining = 0;
+
+		for (int i = 0; i < retainedCount; i++) {
+			remaining += retained[i].remaining();
+		}
+
+		long written = remaining;
+		int offset = 0;
+
+		// A write may take less than offered
+		while (remaining > 0) {
+			remaining -= file.write(retained, offset, retainedCount - offset);
+
+			while (offset < retainedCount && !retained[offset].hasRemaining()) {
+				offset++;
+			}
+		}
+
+		Arrays.fill(retained, 0, retainedCount, null);
+		retainedCount = 0;
+
+		return written;
+	}
+
+	/**
+	 * Writes the retained payloads, in the order they were
+	 * retained, to a file starting at the given position. The
+	 * position of the file is not used, so several writers may
+	 * share the channel, e.g. the segments of a striped GET.
+	 * @param file
+	 * @param position - the position of the first byte
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long write(FileChannel file, long position) throws IOException {
+		long written = 0;
+
+		for (int i = 0; i < retainedCount; i++) {
+			ByteBuffer payload = retained[i];
+
+			while (payload.hasRemaining()) {
+				written += file.write(payload, position + written);
+			}
+		}
+
+		Arrays.fill(retained, 0, retainedCount, null);
+		retainedCount = 0;
+
+		return written;
+	}
+
+	/**
+	 * Drops the datagrams not yet taken and the retained payloads.
+	 */
+	public void clear() {
+		Arrays.fill(senders, null);
+		Arrays.fill(retained, 0, retainedCount, null);
+		head = 0;
+		count = 0;
+		retainedCount = 0;
+		sender = null;
+	}
+}
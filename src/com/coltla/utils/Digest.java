@@ -0,0 +1,180 @@
+package com.coltla.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ *
+ * @author Anders
+ *
+ * A checksum or hash of the data of a transfer, updated block by
+ * block as the data passes through the engine so that a file is
+ * verified without being read again. A digest is written as the
+ * algorithm and the value in hex, e.g. "sha256:9f86d0...", the
+ * same form an expected digest is given in.
+ *
+ * Not thread safe, a digest belongs to a single transfer.
+ */
+public class Digest {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public enum Algorithm {
+		CRC32C("crc32c"), SHA256("sha256");
+
+		private final String name;
+
+		private Algorithm(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the name the algorithm is written with
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @param name - crc32c, sha256 or sha-256, in any case
+		 * @return the algorithm
+		 */
+		public static Algorithm forName(String name) {
+			switch (name.toLowerCase(Locale.ROOT)) {
+			case "crc32c":
+				return CRC32C;
+			case "sha256":
+			case "sha-256":
+				return SHA256;
+			default:
+				throw new IllegalArgumentException("Invalid digest algorithm: " + name);
+			}
+		}
+	}
+
+	private final Algorithm algorithm;
+	private final CRC32C crc;
+	private final MessageDigest sha;
+
+	/**
+	 * @param algorithm
+	 */
+	public Digest(Algorithm algorithm) {
+		this.algorithm = algorithm;
+
+		if (algorithm == Algorithm.CRC32C) {
+			crc = new CRC32C();
+			sha = null;
+		} else {
+			crc = null;
+
+			try {
+				sha = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException ex) {
+				// Every Java platform has SHA-256
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+
+	/**
+	 * @param expected - a digest as algorithm:hex
+	 * @return the algorithm of the digest
+	 */
+	public static Algorithm algorithmOf(String expected) {
+		int colon = expected.indexOf(':');
+
+		if (colon < 0) {
+			throw new IllegalArgumentException("Invalid digest, expected algorithm:hex: " + expected);
+		}
+
+		return Algorithm.forName(expected.substring(0, colon));
+	}
+
+	/**
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public void update(byte[] data, int offset, int length) {
+		if (crc != null) {
+			crc.update(data, offset, length);
+		} else {
+			sha.update(data, offset, length);
+		}
+	}
+
+	/**
+	 * Adds the remaining bytes of a buffer, leaving
+	 * its position at its limit.
+	 * @param data
+	 */
+	public void update(ByteBuffer data) {
+		if (crc != null) {
+			crc.update(data);
+		} else {
+			sha.update(data);
+		}
+	}
+
+	/**
+	 * Starts over, as if no data had been added.
+	 */
+	public void reset() {
+		if (crc != null) {
+			crc.reset();
+		} else {
+			sha.reset();
+		}
+	}
+
+	/**
+	 * Completes the digest of the data added. A SHA-256
+	 * digest starts over once its value has been taken.
+	 * @return the digest as algorithm:hex
+	 */
+	public String getValue() {
+		byte[] value;
+
+		if (crc != null) {
+			long crcValue = crc.getValue();
+			value = new byte[] { (byte) (crcValue >>> 24), (byte) (crcValue >>> 16), (byte) (crcValue >>> 8),
+					(byte) crcValue };
+		} else {
+			value = sha.digest();
+		}
+
+		StringBuilder text = new StringBuilder(algorithm.getName().length() + 1 + value.length * 2);
+		text.append(algorithm.getName()).append(':');
+
+		for (byte b : value) {
+			text.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+		}
+
+		return text.toString();
+	}
+
+	/**
+	 * @param value - a digest as returned by getValue()
+	 * @param expected - the digest expected, as algorithm:hex in any case
+	 * @return true if they are the same digest
+	 */
+	public static boolean matches(String value, String expected) {
+		if (algorithmOf(value) != algorithmOf(expected)) {
+			return false;
+		}
+
+		return value.substring(value.indexOf(':') + 1)
+				.equalsIgnoreCase(expected.substring(expected.indexOf(':') + 1).trim());
+	}
+
+	/**
+	 * @return the algorithm
+	 */
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+}
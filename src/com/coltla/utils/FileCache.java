@@ -0,0 +1,348 @@
+package com.coltla.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author Anders
+ *
+ * Size bounded cache of whole files held off the heap, for the
+ * few files sent over and over again, e.g. the boot images of a
+ * network install. A block is then a slice of the cached file
+ * rather than a read from disk.
+ *
+ * Files are kept by path and checked against their size and
+ * modification time on every lookup, so a changed file is read
+ * again. The least recently used files are evicted once the
+ * cached files take more than the byte budget.
+ *
+ * get waits for a file to be read, getNow never does and reads
+ * a missing file in the background, for threads that must not
+ * block such as the event loop of the server.
+ *
+ * Thread safe, one cache may be shared by many transfers.
+ */
+public class FileCache {
+
+	// Reads files for getNow, one at a time
+	private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "tftp-file-cache");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final long budget;
+	private final long maxFileSize;
+
+	// In access order, the eldest entry is the least recently used
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+
+	// Files being read. Lookups of a file being read wait
+	// for it, so a file wanted by many transfers at once
+	// is only read, and held in memory, once.
+	private final Map<Path, CompletableFuture<Entry>> loading = new HashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private static class Entry {
+		private final ByteBuffer data;
+		private final long size;
+		private final FileTime modified;
+
+		private Entry(ByteBuffer data, long size, FileTime modified) {
+			this.data = data;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		private boolean matches(BasicFileAttributes attributes) {
+			return size == attributes.size() && modified.equals(attributes.lastModifiedTime());
+		}
+	}
+
+	/**
+	 * Create a cache. Files larger than the budget,
+	 * or than 2 GB, are never cached.
+	 * @param budget - the number of bytes the cached files may take
+	 */
+	public FileCache(long budget) {
+		if (budget < 1) {
+			throw new IllegalArgumentException("Invalid cache budget: " + budget);
+		}
+
+		this.budget = budget;
+		this.maxFileSize = Math.min(budget, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the content of a file, reading it into the
+	 * cache unless it is cached already and unchanged.
+	 * @param path
+	 * @return a read only buffer holding the whole file from
+	 * position 0, or null if the file is too large to cache
+	 * @throws IOException if the file cannot be read
+	 */
+	public ByteBuffer get(Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		CompletableFuture<Entry> load;
+		boolean owner = false;
+
+		synchronized (this) {
+			Entry entry = entries.get(path);
+
+			if (entry != null) {
+				if (entry.matches(attributes)) {
+					hits.incrementAndGet();
+					return entry.data.duplicate();
+				}
+
+				remove(path);
+				invalidations.incrementAndGet();
+			}
+
+			if (attributes.size() > maxFileSize) {
+				misses.incrementAndGet();
+				return null;
+			}
+
+			load = loading.get(path);
+
+			if (load != null) {
+				hits.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+				load = new CompletableFuture<>();
+				loading.put(path, load);
+				owner = true;
+			}
+		}
+
+		if (owner) {
+			// Read outside the lock so that
+			// other files can be served meanwhile
+			load(path, attributes, load);
+		}
+
+		try {
+			return load.join().data.duplicate();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+
+			throw new IOException("Unable to read " + path, ex.getCause());
+		}
+	}
+
+	/**
+	 * Returns the content of a file if it is cached and unchanged,
+	 * without waiting for it to be read. A file that is not cached
+	 * is read in the background for the lookups that follow, the
+	 * caller reads it from disk meanwhile.
+	 * @param path
+	 * @return a read only buffer holding the whole file from
+	 * position 0, or null if the file is not cached
+	 * @throws IOException if the attributes of the file cannot be read
+	 */
+	public ByteBuffer getNow(Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		CompletableFuture<Entry> load;
+
+		synchronized (this) {
+			Entry entry = entries.get(path);
+
+			if (entry != null) {
+				if (entry.matches(attributes)) {
+					hits.incrementAndGet();
+					return entry.data.duplicate();
+				}
+
+				remove(path);
+				invalidations.incrementAndGet();
+			}
+
+			misses.incrementAndGet();
+
+			if (attributes.size() > maxFileSize || loading.containsKey(path)) {
+				return null;
+			}
+
+			load = new CompletableFuture<>();
+			loading.put(path, load);
+		}
+
+		LOADER.execute(() -> {
+			try {
+				load(path, attributes, load);
+			} catch (IOException | RuntimeException ex) {
+				// The next lookup tries again
+			}
+		});
+
+		return null;
+	}
+
+	/**
+	 * Reads a file into the cache and completes
+	 * the lookups waiting for it.
+	 * @param path
+	 * @param attributes - the attributes the file was looked up with
+	 * @param load - completed with the file once read
+	 * @throws IOException if the file cannot be read
+	 */
+	private void load(Path path, BasicFileAttributes attributes, CompletableFuture<Entry> load)
+			throws IOException {
+		try {
+			Entry entry = new Entry(read(path, attributes.size()), attributes.size(),
+					attributes.lastModifiedTime());
+
+			synchronized (this) {
+				loading.remove(path);
+				entries.put(path, entry);
+				size += entry.size;
+				evict();
+			}
+
+			load.complete(entry);
+		} catch (IOException | RuntimeException ex) {
+			synchronized (this) {
+				loading.remove(path);
+			}
+
+			load.completeExceptionally(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Reads a whole file into a direct buffer.
+	 * @param path
+	 * @param length - the size of the file
+	 * @return the file, read only
+	 * @throws IOException if the file cannot be read or has changed size
+	 */
+	private static ByteBuffer read(Path path, long length) throws IOException {
+		ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (data.hasRemaining()) {
+				if (file.read(data) < 0) {
+					throw new IOException("File changed while read: " + path);
+				}
+			}
+		}
+
+		data.flip();
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Removes the least recently used files
+	 * until the cache is within its budget.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+
+		while (size > budget && it.hasNext()) {
+			size -= it.next().getValue().size;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void remove(Path path) {
+		Entry entry = entries.remove(path);
+
+		if (entry != null) {
+			size -= entry.size;
+		}
+	}
+
+	/**
+	 * Drops a file from the cache, e.g. once it has been replaced.
+	 * @param path
+	 */
+	public synchronized void invalidate(Path path) {
+		remove(path);
+	}
+
+	/**
+	 * Drops every file from the cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return the number of bytes the cached files may take
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return the number of bytes the cached files take
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of files cached
+	 */
+	public synchronized int getFileCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache,
+	 * including lookups that waited for the file to be read
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that had to read the file,
+	 * including files too large to cache and lookups by getNow
+	 * of a file being read
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of files evicted to stay within the budget
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of cached files found to have changed
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+}
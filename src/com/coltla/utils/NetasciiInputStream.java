@@ -0,0 +1,171 @@
+package com.coltla.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Converts local text to NETASCII while it is read.
+ * Every end of line in the source, whether LF, CR LF or
+ * a lone CR, is read as the TFTP end of line CR LF.
+ * The conversion works on bytes and keeps its state between
+ * reads, so a CR at the end of one read is matched with
+ * the LF at the start of the next.
+ */
+public class NetasciiInputStream extends FilterInputStream {
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	
+	private final byte[] buf = new byte[8192];
+	private int pos;
+	private int count;
+	private boolean eof;
+	
+	// A CR was read from the source, the next byte
+	// decides whether it ends a CR LF pair
+	private boolean pendingCR;
+	
+	// LF of a CR LF pair that did not fit in the
+	// caller's buffer, or -1
+	private int spill = -1;
+	
+	public NetasciiInputStream(InputStream in) {
+		super(in);
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		
+		return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = 0;
+		
+		if (spill >= 0 && len > 0) {
+			b[off + n++] = (byte) spill;
+			spill = -1;
+		}
+		
+		while (n < len) {
+			if (pos == count) {
+				if (!fill()) {
+					if (pendingCR) {
+						pendingCR = false;
+						n = putEol(b, off, n, len);
+					}
+					
+					break;
+				}
+			}
+			
+			byte c = buf[pos++];
+			
+			if (pendingCR) {
+				pendingCR = false;
+				n = putEol(b, off, n, len);
+				
+				if (c == LF || n == len) {
+					// CR LF is a single end of line. If the buffer is
+					// full the byte is read again on the next call.
+					if (c != LF) {
+						pos--;
+					}
+					
+					continue;
+				}
+			}
+			
+			if (c == CR) {
+				pendingCR = true;
+			} else if (c == LF) {
+				n = putEol(b, off, n, len);
+			} else {
+				b[off + n++] = c;
+			}
+		}
+		
+		if (n == 0 && len > 0) {
+			return -1;
+		}
+		
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] b = new byte[(int) Math.min(n, buf.length)];
+		long skipped = 0;
+		int count;
+		
+		while (skipped < n && (count = read(b, 0, (int) Math.min(b.length, n - skipped))) > 0) {
+			skipped += count;
+		}
+		
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (spill >= 0 ? 1 : 0) + count - pos;
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	@Override
+	public synchronized void mark(int readlimit) {
+		// Not supported
+	}
+	
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+	
+	/**
+	 * Writes CR LF, keeping the LF back if
+	 * there is no room left for it.
+	 * @return the new number of bytes in b
+	 */
+	private int putEol(byte[] b, int off, int n, int len) {
+		b[off + n++] = CR;
+		
+		if (n < len) {
+			b[off + n++] = LF;
+		} else {
+			spill = LF;
+		}
+		
+		return n;
+	}
+	
+	/**
+	 * Reads the next chunk of the source.
+	 * @return false at end of file
+	 */
+	private boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		
+		count = in.read(buf, 0, buf.length);
+		pos = 0;
+		
+		if (count <= 0) {
+			count = 0;
+			eof = true;
+			return false;
+		}
+		
+		return true;
+	}
+}
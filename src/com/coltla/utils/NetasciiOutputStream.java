@@ -0,0 +1,117 @@
+package com.coltla.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Converts NETASCII to local text while it is written.
+ * CR LF (and a bare LF) is written as the system end of line,
+ * CR NUL as a plain CR. The conversion works on bytes and keeps
+ * its state between writes, so a CR at the end of one block is
+ * matched with the byte at the start of the next.
+ */
+public class NetasciiOutputStream extends FilterOutputStream {
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	private static final byte NUL = 0x00;
+	
+	private final byte[] eol;
+	private final byte[] buf = new byte[8192];
+	private int count;
+	
+	// A CR was written, the next byte decides what it means
+	private boolean pendingCR;
+	
+	public NetasciiOutputStream(OutputStream out) {
+		this(out, DataParser.SYSTEM_STRING_EOL);
+	}
+	
+	/**
+	 * @param out
+	 * @param eol - the local end of line
+	 */
+	public NetasciiOutputStream(OutputStream out, String eol) {
+		super(out);
+		this.eol = eol.getBytes();
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		translate((byte) b);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			translate(b[i]);
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (pendingCR) {
+			pendingCR = false;
+			put(CR);
+		}
+		
+		flushBuffer();
+		out.close();
+	}
+	
+	private void translate(byte c) throws IOException {
+		if (pendingCR) {
+			pendingCR = false;
+			
+			if (c == LF) {
+				putEol();
+				return;
+			}
+			
+			put(CR);
+			
+			if (c == NUL) {
+				return;
+			}
+		}
+		
+		if (c == CR) {
+			pendingCR = true;
+		} else if (c == LF) {
+			putEol();
+		} else {
+			put(c);
+		}
+	}
+	
+	private void putEol() throws IOException {
+		for (byte c : eol) {
+			put(c);
+		}
+	}
+	
+	private void put(byte c) throws IOException {
+		if (count == buf.length) {
+			flushBuffer();
+		}
+		
+		buf[count++] = c;
+	}
+	
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+}
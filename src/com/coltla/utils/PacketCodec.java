@@ -0,0 +1,219 @@
+package com.coltla.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Flyweight view of a TFTP packet held in a ByteBuffer.
+ * Unlike DataPacket nothing is copied or allocated: the header
+ * fields are read and written in place using primitive opcodes
+ * and block numbers, and the payload is viewed in the buffer
+ * it arrived in. A codec is meant to be kept and re-wrapped
+ * around each packet of a transfer.
+ * 
+ * The packet occupies the buffer from index 0 up to its limit.
+ */
+public class PacketCodec {
+
+	public static final int OP_RRQ = 1;
+	public static final int OP_WRQ = 2;
+	public static final int OP_DATA = 3;
+	public static final int OP_ACK = 4;
+	public static final int OP_ERR = 5;
+	public static final int OP_OACK = 6;
+	
+	// Opcode and block number (or error code)
+	public static final int HEADER_SIZE = 4;
+	
+	private ByteBuffer buffer;
+	
+	/**
+	 * Points the codec at a received packet.
+	 * @param buffer - buffer holding the packet from 0 to its limit
+	 * @return this codec
+	 */
+	public PacketCodec wrap(ByteBuffer buffer) {
+		this.buffer = buffer;
+		return this;
+	}
+	
+	/**
+	 * @return the opcode, or -1 if the packet is too short to hold one
+	 */
+	public int getOpCode() {
+		if (buffer.limit() < 2) {
+			return -1;
+		}
+		
+		return buffer.getShort(0) & 0xFFFF;
+	}
+	
+	/**
+	 * @return the block number of a DATA or ACK packet, or -1
+	 * if the packet is too short to hold one
+	 */
+	public int getBlock() {
+		if (buffer.limit() < HEADER_SIZE) {
+			return -1;
+		}
+		
+		return buffer.getShort(2) & 0xFFFF;
+	}
+	
+	/**
+	 * @return the error code of an ERR packet
+	 */
+	public int getErrCode() {
+		return getBlock();
+	}
+	
+	/**
+	 * @return the number of payload bytes after the header
+	 */
+	public int getPayloadLength() {
+		return Math.max(0, buffer.limit() - HEADER_SIZE);
+	}
+	
+	/**
+	 * Positions the buffer at the payload so the caller can
+	 * read or write it directly, e.g. FileChannel.write(payload()).
+	 * @return the wrapped buffer, positioned at the payload
+	 */
+	public ByteBuffer payload() {
+		buffer.position(Math.min(HEADER_SIZE, buffer.limit()));
+		return buffer;
+	}
+	
+	/**
+	 * @return true if the packet is a DATA packet
+	 */
+	public boolean isDATA() {
+		return getOpCode() == OP_DATA;
+	}
+	
+	/**
+	 * @return true if the packet is an ACK packet
+	 */
+	public boolean isACK() {
+		return getOpCode() == OP_ACK;
+	}
+	
+	/**
+	 * @return true if the packet is an ERR packet
+	 */
+	public boolean isERR() {
+		return getOpCode() == OP_ERR;
+	}
+	
+	/**
+	 * @return true if the packet is an OACK packet
+	 */
+	public boolean isOACK() {
+		return getOpCode() == OP_OACK;
+	}
+	
+	/**
+	 * Copies the packet out of the buffer, for the rare
+	 * ERR and OACK packets parsed with DataPacket. A direct
+	 * buffer has no array to hand to it.
+	 * @return the bytes of the packet
+	 */
+	public byte[] toArray() {
+		byte[] packet = new byte[buffer.limit()];
+		ByteBuffer view = buffer.duplicate();
+		
+		view.position(0);
+		view.get(packet);
+		
+		return packet;
+	}
+	
+	/**
+	 * Writes an ACK packet and flips the buffer ready to send.
+	 * @param buffer
+	 * @param block
+	 * @return the buffer
+	 */
+	public static ByteBuffer putAck(ByteBuffer buffer, int block) {
+		buffer.clear();
+		buffer.putShort((short) OP_ACK);
+		buffer.putShort((short) block);
+		buffer.flip();
+		
+		return buffer;
+	}
+	
+	/**
+	 * Writes the header of a DATA packet, leaving the buffer
+	 * positioned at the payload. The caller fills in the payload
+	 * and flips the buffer.
+	 * @param buffer
+	 * @param block
+	 * @return the buffer
+	 */
+	public static ByteBuffer putDataHeader(ByteBuffer buffer, int block) {
+		buffer.clear();
+		buffer.putShort((short) OP_DATA);
+		buffer.putShort((short) block);
+		
+		return buffer;
+	}
+	
+	/**
+	 * Writes an ACK packet into the start of a byte array.
+	 * @param packet
+	 * @param block
+	 * @return the length of the packet
+	 */
+	public static int putAck(byte[] packet, int block) {
+		putHeader(packet, OP_ACK, block);
+		return HEADER_SIZE;
+	}
+	
+	/**
+	 * Writes the header of a DATA packet into the start of
+	 * a byte array. The payload follows at HEADER_SIZE.
+	 * @param packet
+	 * @param block
+	 */
+	public static void putDataHeader(byte[] packet, int block) {
+		putHeader(packet, OP_DATA, block);
+	}
+	
+	/**
+	 * Reads the opcode from the start of a byte array.
+	 * @param packet
+	 * @param length - the length of the packet
+	 * @return the opcode, or -1 if the packet is too short to hold one
+	 */
+	public static int getOpCode(byte[] packet, int length) {
+		if (length < 2) {
+			return -1;
+		}
+		
+		return (packet[0] & 0xFF) << 8 | (packet[1] & 0xFF);
+	}
+	
+	/**
+	 * Reads the block number from the start of a byte array.
+	 * @param packet
+	 * @param length - the length of the packet
+	 * @return the block number, or -1 if the packet is too short to hold one
+	 */
+	public static int getBlock(byte[] packet, int length) {
+		if (length < HEADER_SIZE) {
+			return -1;
+		}
+		
+		return (packet[2] & 0xFF) << 8 | (packet[3] & 0xFF);
+	}
+	
+	private static void putHeader(byte[] packet, int opCode, int block) {
+		packet[0] = (byte) (opCode >> 8);
+		packet[1] = (byte) opCode;
+		packet[2] = (byte) (block >> 8);
+		packet[3] = (byte) block;
+	}
+}
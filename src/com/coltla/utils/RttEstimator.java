@@ -0,0 +1,143 @@
+package com.coltla.utils;
+
+/**
+ *
+ * @author Anders
+ *
+ * Estimates the round trip time to a server and derives the
+ * retransmit timeout from it, in the style of RFC 6298.
+ * The smoothed round trip time (SRTT) and its variation
+ * (RTTVAR) are updated from each sample and the timeout is
+ * SRTT + 4 * RTTVAR, kept between a minimum and a maximum.
+ * Each expired timeout doubles the timeout until the next
+ * sample. Following Karn's rule the caller must not take
+ * samples from packets that were sent more than once.
+ *
+ * Not thread safe, an estimator belongs to a single transfer.
+ */
+public class RttEstimator {
+
+	public static final int DEFAULT_INITIAL_TIMEOUT = 1000;
+	public static final int DEFAULT_MIN_TIMEOUT = 20;
+	public static final int DEFAULT_MAX_TIMEOUT = 10000;
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	// Clock granularity, the least the timeout
+	// may exceed the smoothed round trip time by
+	private static final long GRANULARITY = NANOS_PER_MILLI;
+
+	private final long initialTimeout;
+	private final long minTimeout;
+	private final long maxTimeout;
+
+	private long smoothedRtt;
+	private long rttVariation;
+	private long timeout;
+
+	private int samples;
+	private int backoffs;
+
+	public RttEstimator() {
+		this(DEFAULT_INITIAL_TIMEOUT, DEFAULT_MIN_TIMEOUT, DEFAULT_MAX_TIMEOUT);
+	}
+
+	/**
+	 * @param initialTimeout - the timeout in milliseconds until the first sample
+	 * @param minTimeout - the least timeout in milliseconds
+	 * @param maxTimeout - the greatest timeout in milliseconds
+	 */
+	public RttEstimator(int initialTimeout, int minTimeout, int maxTimeout) {
+		if (minTimeout < 1 || maxTimeout < minTimeout
+				|| initialTimeout < minTimeout || initialTimeout > maxTimeout) {
+			throw new IllegalArgumentException("Invalid timeouts: " + initialTimeout
+					+ ", " + minTimeout + ", " + maxTimeout);
+		}
+
+		this.initialTimeout = initialTimeout * NANOS_PER_MILLI;
+		this.minTimeout = minTimeout * NANOS_PER_MILLI;
+		this.maxTimeout = maxTimeout * NANOS_PER_MILLI;
+		reset();
+	}
+
+	/**
+	 * Forgets every sample and returns to the initial timeout.
+	 */
+	public void reset() {
+		smoothedRtt = 0;
+		rttVariation = 0;
+		timeout = initialTimeout;
+		samples = 0;
+		backoffs = 0;
+	}
+
+	/**
+	 * Adds a round trip time measured for a packet
+	 * that was sent only once.
+	 * @param rttNanos - the round trip time in nanoseconds
+	 */
+	public void sample(long rttNanos) {
+		if (rttNanos < 0) {
+			return;
+		}
+
+		if (samples == 0) {
+			smoothedRtt = rttNanos;
+			rttVariation = rttNanos / 2;
+		} else {
+			// RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+			rttVariation += (Math.abs(smoothedRtt - rttNanos) - rttVariation) / 4;
+			smoothedRtt += (rttNanos - smoothedRtt) / 8;
+		}
+
+		samples++;
+		timeout = clamp(smoothedRtt + Math.max(GRANULARITY, 4 * rttVariation));
+	}
+
+	/**
+	 * Doubles the timeout after it has expired.
+	 */
+	public void backoff() {
+		backoffs++;
+		timeout = clamp(timeout * 2);
+	}
+
+	private long clamp(long value) {
+		return Math.max(minTimeout, Math.min(maxTimeout, value));
+	}
+
+	/**
+	 * @return the retransmit timeout in milliseconds
+	 */
+	public int getTimeout() {
+		return (int) (timeout / NANOS_PER_MILLI);
+	}
+
+	/**
+	 * @return the smoothed round trip time in nanoseconds
+	 */
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * @return the round trip time variation in nanoseconds
+	 */
+	public long getRttVariation() {
+		return rttVariation;
+	}
+
+	/**
+	 * @return the number of round trip times measured
+	 */
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the number of times the timeout expired
+	 */
+	public int getBackoffs() {
+		return backoffs;
+	}
+}
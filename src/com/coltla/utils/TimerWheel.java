@@ -0,0 +1,181 @@
+package com.coltla.utils;
+
+/**
+ * 
+ * @author Anders
+ *
+ * Hashed timer wheel for retransmit timers. Timers are kept
+ * in one of a fixed number of slots by the tick they expire
+ * on, so scheduling and cancelling take constant time however
+ * many timers are pending. Expiry is only accurate to a tick.
+ * 
+ * Not thread safe, a wheel belongs to a single event loop.
+ */
+public class TimerWheel {
+
+	private final long tickNanos;
+	private final Timeout[] slots;
+	private final int mask;
+	private final long startNanos;
+	
+	// Last tick processed
+	private long currentTick;
+	private int pending;
+	
+	/**
+	 * A scheduled task. Timeouts are linked into the
+	 * list of their slot so they can be cancelled
+	 * without searching the slot.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadlineTick;
+		private Timeout prev;
+		private Timeout next;
+		private TimerWheel wheel;
+		
+		private Timeout(TimerWheel wheel, Runnable task, long deadlineTick) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+		
+		/**
+		 * Cancels the timeout, does nothing if it
+		 * has already expired or been cancelled.
+		 */
+		public void cancel() {
+			if (wheel != null) {
+				wheel.remove(this);
+			}
+		}
+		
+		/**
+		 * @return true until the timeout expires or is cancelled
+		 */
+		public boolean isPending() {
+			return wheel != null;
+		}
+	}
+	
+	/**
+	 * Create a wheel.
+	 * @param tickMillis - the resolution of the timers
+	 * @param wheelSize - the number of slots, rounded up to a power of two
+	 */
+	public TimerWheel(long tickMillis, int wheelSize) {
+		if (tickMillis < 1 || wheelSize < 1) {
+			throw new IllegalArgumentException("Invalid timer wheel: " + tickMillis + "/" + wheelSize);
+		}
+		
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize) {
+			size <<= 1;
+		}
+		
+		this.tickNanos = tickMillis * 1000000L;
+		this.slots = new Timeout[size];
+		this.mask = size - 1;
+		this.startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Schedules a task to run once the delay has passed.
+	 * @param task
+	 * @param delayMillis
+	 * @return the timeout, used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		long ticks = Math.max(1, (delayMillis * 1000000L + tickNanos - 1) / tickNanos);
+		Timeout timeout = new Timeout(this, task, currentTick + ticks);
+		
+		int slot = (int) (timeout.deadlineTick & mask);
+		timeout.next = slots[slot];
+		
+		if (slots[slot] != null) {
+			slots[slot].prev = timeout;
+		}
+		
+		slots[slot] = timeout;
+		pending++;
+		
+		return timeout;
+	}
+	
+	/**
+	 * Runs the tasks of all timeouts that have expired.
+	 * @param nowNanos - the current System.nanoTime()
+	 */
+	public void advance(long nowNanos) {
+		long tick = (nowNanos - startNanos) / tickNanos;
+		
+		while (currentTick < tick) {
+			currentTick++;
+			
+			if (pending == 0) {
+				// Nothing to expire, skip straight to now
+				currentTick = tick;
+				break;
+			}
+			
+			// Timeouts in the slot that belong to a later
+			// round of the wheel stay where they are
+			Timeout timeout = slots[(int) (currentTick & mask)];
+			
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				
+				if (timeout.deadlineTick <= currentTick) {
+					remove(timeout);
+					timeout.task.run();
+					
+					// The task may have cancelled the next timeout
+					if (next != null && next.wheel == null) {
+						next = slots[(int) (currentTick & mask)];
+					}
+				}
+				
+				timeout = next;
+			}
+		}
+	}
+	
+	/**
+	 * @return the milliseconds until the next tick, or 0
+	 * if no timeouts are pending and there is no need to wake up
+	 */
+	public long millisToNextTick() {
+		if (pending == 0) {
+			return 0;
+		}
+		
+		long nextTickNanos = startNanos + (currentTick + 1) * tickNanos;
+		return Math.max(1, (nextTickNanos - System.nanoTime() + 999999) / 1000000);
+	}
+	
+	/**
+	 * @return the number of pending timeouts
+	 */
+	public int size() {
+		return pending;
+	}
+	
+	private void remove(Timeout timeout) {
+		int slot = (int) (timeout.deadlineTick & mask);
+		
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[slot] = timeout.next;
+		}
+		
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.wheel = null;
+		pending--;
+	}
+}
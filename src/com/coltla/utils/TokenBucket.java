@@ -0,0 +1,124 @@
+package com.coltla.utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author Anders
+ *
+ * Limits the rate data is sent at to a number of bytes per
+ * second. Tokens for the bytes accumulate at the rate, up to a
+ * burst, and a sender takes the tokens for each packet before
+ * it sends it. A sender that finds too few takes them anyway and
+ * waits until they would have accumulated, so senders sharing a
+ * bucket are served in turn and the rate holds over all of them.
+ *
+ * Thread safe, a bucket may be shared by the transfers to one
+ * server, or by all of them.
+ */
+public class TokenBucket {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	// Waits shorter than this are not worth parking for, the
+	// debt is paid off by the next packet of the sender instead
+	private static final long MIN_PARK_NANOS = 50000L;
+
+	private final long rate;
+	private final long burst;
+
+	private long tokens;
+	private long updated;
+
+	/**
+	 * Create a bucket allowing bursts of a twentieth of
+	 * a second of data, and at least a block of the
+	 * largest size.
+	 * @param rate - the number of bytes per second
+	 */
+	public TokenBucket(long rate) {
+		this(rate, Math.max(rate / 20, DataPacket.MAX_BLOCK_SIZE));
+	}
+
+	/**
+	 * Create a bucket, full.
+	 * @param rate - the number of bytes per second
+	 * @param burst - the number of bytes that may be sent at once
+	 */
+	public TokenBucket(long rate, long burst) {
+		if (rate < 1 || burst < 1) {
+			throw new IllegalArgumentException("Invalid rate: " + rate + "/" + burst);
+		}
+
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.updated = System.nanoTime();
+	}
+
+	/**
+	 * Takes the tokens for a packet.
+	 * @param bytes - the size of the packet
+	 * @return the time in nanoseconds until the tokens
+	 * taken would have accumulated, 0 if there were enough
+	 */
+	public synchronized long reserve(long bytes) {
+		long now = System.nanoTime();
+		long elapsed = now - updated;
+
+		// Time beyond that taken to fill the bucket from what is
+		// left in it, owed by senders sharing it maybe, adds nothing
+		if (elapsed >= (burst - tokens) * NANOS_PER_SECOND / rate) {
+			tokens = burst;
+			updated = now;
+		} else {
+			// Only whole bytes are added, the rest of the
+			// time is counted towards the next refill
+			long added = elapsed * rate / NANOS_PER_SECOND;
+
+			if (added > 0) {
+				tokens += added;
+				updated += added * NANOS_PER_SECOND / rate;
+			}
+		}
+
+		tokens -= bytes;
+
+		return tokens >= 0 ? 0 : -tokens * NANOS_PER_SECOND / rate;
+	}
+
+	/**
+	 * Takes the tokens for a packet, waiting until they
+	 * have accumulated. An interrupt ends the wait early
+	 * and is left set for the caller.
+	 * @param bytes - the size of the packet
+	 */
+	public void acquire(long bytes) {
+		park(reserve(bytes));
+	}
+
+	/**
+	 * Waits for the time given by reserve().
+	 * @param nanos
+	 */
+	public static void park(long nanos) {
+		if (nanos < MIN_PARK_NANOS) {
+			return;
+		}
+
+		long deadline = System.nanoTime() + nanos;
+		long remaining = nanos;
+
+		while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+			LockSupport.parkNanos(remaining);
+			remaining = deadline - System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return the number of bytes per second
+	 */
+	public long getRate() {
+		return rate;
+	}
+}
@@ -1,12 +1,20 @@
 package com.coltla.view;
 
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
+import javafx.scene.control.cell.ProgressBarTableCell;
 
 import javafx.fxml.FXML;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.coltla.event.MessageEvent;
 import com.coltla.event.MessageListener;
@@ -22,6 +30,42 @@ import javafx.scene.control.Alert.AlertType;
 
 public class ConnectionOverviewController implements MessageListener {
 
+	// Transfers running at once, the rest wait in the table
+	private static final int MAX_TRANSFERS = 4;
+	
+	// Transfers run on daemon threads so they
+	// never keep the application from exiting
+	private final ExecutorService executor = Executors.newFixedThreadPool(MAX_TRANSFERS, r -> {
+		Thread thread = new Thread(r, "tftp-ui-transfer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	// Messages not shown yet. One runLater at a time appends
+	// all of them, it is scheduled by the first message to
+	// arrive after the last one ran.
+	private final Queue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean showScheduled = new AtomicBoolean();
+	private final Runnable showMessages = new Runnable() {
+		
+		@Override
+		public void run() {
+			// Messages queued from now on schedule the next run
+			showScheduled.set(false);
+			
+			StringBuilder text = new StringBuilder();
+			String message;
+			
+			while ((message = pendingMessages.poll()) != null) {
+				text.append(message).append('\n');
+			}
+			
+			if (text.length() > 0) {
+				statusField.appendText(text.toString());
+			}
+		}
+	};
+
 	@FXML
 	private TextField serverIPField;
 	@FXML
@@ -32,6 +76,16 @@ public class ConnectionOverviewController implements MessageListener {
 	private TextField fileNameField;
 	@FXML
 	private TextArea statusField;
+	@FXML
+	private TableView<TransferTask> transferTable;
+	@FXML
+	private TableColumn<TransferTask, String> fileColumn;
+	@FXML
+	private TableColumn<TransferTask, String> stateColumn;
+	@FXML
+	private TableColumn<TransferTask, Double> progressColumn;
+	@FXML
+	private TableColumn<TransferTask, String> throughputColumn;
 	
 	/**
 	 * Initializes the controller class.
@@ -59,6 +113,14 @@ public class ConnectionOverviewController implements MessageListener {
 		directionField.getItems().addAll("GET", "PUT");
 		directionField.getSelectionModel().select("GET");
 		
+		// Each row shows a transfer task, its cells follow
+		// the properties the task updates as it runs
+		fileColumn.setCellValueFactory(cell -> cell.getValue().titleProperty());
+		stateColumn.setCellValueFactory(cell -> cell.getValue().stateProperty().asString());
+		progressColumn.setCellValueFactory(cell -> cell.getValue().progressProperty().asObject());
+		progressColumn.setCellFactory(ProgressBarTableCell.forTableColumn());
+		throughputColumn.setCellValueFactory(cell -> cell.getValue().messageProperty());
+		
 		// Set the focus for the cursor to be
 		// the first field at the top of the scene.
 		// This is the set after all the items are 
@@ -83,6 +145,9 @@ public class ConnectionOverviewController implements MessageListener {
 		fileNameField.setText("");
 		statusField.clear();
 		
+		// Keep the transfers still queued or running
+		transferTable.getItems().removeIf(task -> task.isDone());
+		
 		serverIPField.requestFocus();
 	}
 	
@@ -93,8 +158,8 @@ public class ConnectionOverviewController implements MessageListener {
 	private void handleGo() {
 
 		if (isInputValid()) {
-			// Call the TFTP server
-			statusField.clear();
+			// Queue the transfer, it runs on a background
+			// thread so the UI stays responsive
 			statusField.appendText("-->\tCalling TFTP server...\n");
 			
 			Direction direction = (directionField.getSelectionModel().getSelectedItem().equals("PUT") ? Engine.Direction.PUT : Engine.Direction.GET);
@@ -103,7 +168,13 @@ public class ConnectionOverviewController implements MessageListener {
 			try {
 				Engine tftpEngine = new Engine();
 				tftpEngine.addMsgListener(this);
-				tftpEngine.transfer(InetAddress.getByName(serverIPField.getText()), direction, mode, fileNameField.getText());
+				
+				TransferTask task = new TransferTask(tftpEngine, InetAddress.getByName(serverIPField.getText()),
+						direction, mode, fileNameField.getText());
+				
+				transferTable.getItems().add(task);
+				transferTable.getSelectionModel().select(task);
+				executor.execute(task);
 			} catch (UnknownHostException ex) {
 				statusField.appendText("ERROR Calling TFTP server.");
 				ex.printStackTrace();
@@ -111,6 +182,19 @@ public class ConnectionOverviewController implements MessageListener {
 		}		
 	}
 	
+	/**
+	 * Called when the user clicks cancel, cancels
+	 * the transfer selected in the table.
+	 */
+	@FXML
+	private void handleCancel() {
+		TransferTask task = transferTable.getSelectionModel().getSelectedItem();
+		
+		if (task != null) {
+			task.cancel();
+		}
+	}
+	
 	/**
 	 * Check if user input is valid.
 	 * 
@@ -155,6 +239,12 @@ public class ConnectionOverviewController implements MessageListener {
 
 	@Override
 	public void sendMessage(MessageEvent msg) {
-		statusField.appendText(msg.getMessage() + "\n");
+		// Messages arrive on the engine's dispatcher thread,
+		// the text area may only be changed on the FX thread
+		pendingMessages.add(msg.getMessage());
+		
+		if (showScheduled.compareAndSet(false, true)) {
+			Platform.runLater(showMessages);
+		}
 	}
 }
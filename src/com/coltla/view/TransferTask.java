@@ -0,0 +1,99 @@
+package com.coltla.view;
+
+import java.net.InetAddress;
+
+import com.coltla.event.ProgressEvent;
+import com.coltla.tftp.Engine;
+import com.coltla.tftp.Engine.Direction;
+import com.coltla.tftp.Engine.Mode;
+import com.coltla.tftp.TransferResult;
+
+import javafx.concurrent.Task;
+
+/**
+ *
+ * @author Anders
+ *
+ * Runs a single transfer off the FX Application Thread. Progress
+ * events of the engine are turned into the task's progress and a
+ * throughput readout in its message. Task coalesces these updates
+ * into one Platform.runLater at a time, so a fast transfer does
+ * not flood the FX thread. Cancelling the task cancels the engine.
+ */
+public class TransferTask extends Task<TransferResult> {
+
+	private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
+	private final Engine engine;
+	private final InetAddress serverIP;
+	private final Direction direction;
+	private final Mode mode;
+	private final String fileName;
+
+	public TransferTask(Engine engine, InetAddress serverIP, Direction direction, Mode mode, String fileName) {
+		this.engine = engine;
+		this.serverIP = serverIP;
+		this.direction = direction;
+		this.mode = mode;
+		this.fileName = fileName;
+
+		updateTitle(direction + " " + fileName);
+		updateMessage("Queued");
+	}
+
+	@Override
+	protected TransferResult call() throws Exception {
+		engine.addProgressListener(event -> progress(event));
+		updateMessage("Connecting");
+
+		TransferResult result = engine.transfer(serverIP, direction, mode, fileName);
+
+		if (result.isComplete()) {
+			updateProgress(1, 1);
+			updateMessage(throughput(result.getBytesTransferred(), result.getElapsedNanos()));
+		} else if (!isCancelled()) {
+			updateMessage("Failed");
+		}
+
+		return result;
+	}
+
+	/**
+	 * The size of a GET is only known if the server gives it,
+	 * otherwise the progress bar stays indeterminate.
+	 * @param event
+	 */
+	private void progress(ProgressEvent event) {
+		String message = throughput(event.getBytesTransferred(), event.getElapsedNanos());
+
+		if (event.getTotalBytes() > 0) {
+			updateProgress(event.getBytesTransferred(), event.getTotalBytes());
+		}
+
+		if (event.getRemainingNanos() >= 0) {
+			message += String.format(", %.0f s left", event.getRemainingNanos() / 1e9);
+		}
+
+		updateMessage(message);
+	}
+
+	private static String throughput(long bytes, long nanos) {
+		double seconds = nanos / 1e9;
+		double rate = seconds > 0 ? bytes / BYTES_PER_MEGABYTE / seconds : 0;
+
+		return String.format("%.1f MB/s", rate);
+	}
+
+	@Override
+	protected void cancelled() {
+		engine.cancel();
+		updateMessage("Cancelled");
+	}
+
+	/**
+	 * @return the engine running the transfer
+	 */
+	public Engine getEngine() {
+		return engine;
+	}
+}